@@ -0,0 +1,40 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import java.util.Random;
+
+// Delays between reconnect attempts. Doubles every attempt up to a cap, and
+// only the first half is fixed: the rest is random, so both ends of a link
+// that dropped at the same moment do not retry in lockstep.
+class Backoff {
+    private final long baseMillis;
+    private final long maxMillis;
+    private final int maxAttempts;
+    private final Random random;
+    private int attempts;
+
+    Backoff(long baseMillis, long maxMillis, int maxAttempts, Random random) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.maxAttempts = maxAttempts;
+        this.random = random;
+    }
+
+    // delay before the next attempt, or -1 once all attempts are used up
+    long nextDelayMillis() {
+        if (attempts >= maxAttempts) {
+            return -1;
+        }
+        long delay = Math.min(maxMillis, baseMillis << Math.min(attempts, 30));
+        attempts++;
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    void reset() {
+        attempts = 0;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+}
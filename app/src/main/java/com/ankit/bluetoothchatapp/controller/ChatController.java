@@ -1,36 +1,126 @@
 package com.ankit.bluetoothchatapp.controller;
 
-import android.Manifest;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.os.Build;
-
-import androidx.core.app.ActivityCompat;
+import com.ankit.bluetoothchatapp.protocol.FrameCodec;
+import com.ankit.bluetoothchatapp.protocol.FrameDecoder;
+import com.ankit.bluetoothchatapp.protocol.FrameReader;
+import com.ankit.bluetoothchatapp.protocol.PayloadCompressor;
+import com.ankit.bluetoothchatapp.transport.Transport;
+import com.ankit.bluetoothchatapp.transport.TransportConnection;
+import com.ankit.bluetoothchatapp.transport.TransportServer;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Keeps one session per connected peer, keyed by address, and keeps
+// accepting new peers while sessions are open. Every session has its own
+// reader thread; writes of all sessions share a small writer pool.
+// Chat state of a peer outlives its link: when a link we opened drops we dial
+// again with backoff, and both ends resume the message sequence if the peer
+// still has the same session token. The dialing side sends its HELLO first;
+// the accepting side answers once it knows from the node id in it which peer
+// is back, since over TCP the address it sees changes with every link. A link
+// without a HELLO within HELLO_TIMEOUT_MILLIS is dropped. A tentative link, one
+// dialed on a cached channel, gets TENTATIVE_HELLO_TIMEOUT_MILLIS; without a
+// HELLO as its first frame it is dialed again. With a MessageStore set, every new
+// session starts by exchanging the messages one side stored and the other
+// did not (see HistorySync).
 public class ChatController {
-    private static final String APP_NAME = "BluetoothChatApp";
-    private static final UUID MY_UUID = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+    private static final int WRITER_THREADS = 2;
+    private static final long ACK_TIMEOUT_MILLIS = 5000;
+    // chat messages waiting for room in the send window
+    private static final int BACKLOG_CAPACITY = 64;
+    private static final long RETRANSMIT_CHECK_MILLIS = 100;
+    private static final long RECONNECT_BASE_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 30000;
+    private static final int RECONNECT_ATTEMPTS = 8;
+    // how long the accepting side keeps the chat state of a dropped peer
+    private static final long RESUME_TIMEOUT_MILLIS = 120000;
+    private static final int CAPABILITIES = FrameCodec.CAP_DEFLATE | FrameCodec.CAP_SYNC;
+    private static final long SYNC_SEND_TIMEOUT_MILLIS = 5000;
+    private static final long HELLO_TIMEOUT_MILLIS = 10000;
+    private static final long TENTATIVE_HELLO_TIMEOUT_MILLIS = 3000;
 
-    private BluetoothAdapter bluetoothAdapter;
+    private Transport transport;
     private AcceptThread acceptThread;
-    private ConnectThread connectThread;
-    private ReadWriteThread connectedThread;
+    private final Map<String, ConnectThread> connectThreads = new HashMap<>();
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final Map<String, Peer> peers = new HashMap<>();
     private int state;
+    private final CopyOnWriteArrayList<Registration> listeners = new CopyOnWriteArrayList<>();
+    private final Map<Long, FileTransfer> outgoingFiles = new ConcurrentHashMap<>();
+    private final Map<Long, FileReceiver> incomingFiles = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+    // who we are in HELLO, the same for every link while the process lives
+    private final long nodeId = newNodeId(random);
+    private File downloadDirectory;
+    private final ExecutorService writerExecutor = Executors.newFixedThreadPool(WRITER_THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "OutboundWriter-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private ScheduledExecutorService timer;
+    private volatile MessageStore messageStore;
+    // history sync reads and writes the store, which can block for seconds,
+    // so it runs here and never on a session's reader thread
+    private final ExecutorService syncExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HistorySync");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // history sync stats
+    private final AtomicLong syncBytes = new AtomicLong();
+    private final AtomicLong syncedMessages = new AtomicLong();
+
+    // link recovery stats, guarded by this
+    private int recoveries;
+    private int resumedSessions;
+    private long recoveryNanos;
+    private long lastRecoveryNanos;
+
+    // outgoing connect stats, guarded by this
+    private int connects;
+    private long connectNanos;
+    private long lastConnectNanos;
 
     public static final int STATE_NONE = 0;
     static final int STATE_LISTEN = 1;
     static final int STATE_CONNECTING = 2;
     public static final int STATE_CONNECTED = 3;
-    Context context;
+    // longest chat message write() takes, in UTF-8 bytes: one frame less the uid
+    public static final int MAX_MESSAGE_BYTES = FrameCodec.MAX_PAYLOAD_SIZE - 8;
+    // where listeners added without an executor get their events, null for the calling thread
+    private volatile Executor mainExecutor;
 
     private static final ChatController ourInstance = new ChatController();
 
@@ -38,153 +128,721 @@ public class ChatController {
         return ourInstance;
     }
 
-    public void init(Context context) {
-        this.context = context;
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    public ChatController() {
+    }
+
+    private static long newNodeId(Random random) {
+        long id = 0;
+        while (id == 0) {
+            id = random.nextLong();
+        }
+        return id;
+    }
+
+    // controller running on a custom transport, e.g. for tests and benchmarks off-device
+    public ChatController(Transport transport) {
+        this.transport = transport;
         state = STATE_NONE;
     }
 
+    // Sets up the process-wide instance: the link layer (Bluetooth on a phone),
+    // where incoming files go and the thread listeners run on. A transport
+    // set before is kept
+    public synchronized void init(Transport transport, File downloadDirectory, Executor mainExecutor) {
+        if (this.transport == null) {
+            this.transport = transport;
+        }
+        if (this.downloadDirectory == null) {
+            this.downloadDirectory = downloadDirectory;
+        }
+        this.mainExecutor = mainExecutor;
+    }
+
+    // where incoming files and partial downloads are kept
+    public void setDownloadDirectory(File downloadDirectory) {
+        this.downloadDirectory = downloadDirectory;
+    }
+
+    // null until init() on the process-wide instance
+    public synchronized Transport getTransport() {
+        return transport;
+    }
+
+    // history to reconcile with peers when a session starts, null to skip it
+    public void setMessageStore(MessageStore messageStore) {
+        this.messageStore = messageStore;
+    }
+
+    // deliver events on the executor given to init(), or on the calling thread without one
+    public void addListener(ChatEventListener listener) {
+        Executor executor = mainExecutor;
+        addListener(listener, executor != null ? executor : new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    public void addListener(ChatEventListener listener, Executor executor) {
+        listeners.add(new Registration(listener, executor));
+    }
+
+    public void removeListener(ChatEventListener listener) {
+        for (Registration registration : listeners) {
+            if (registration.listener == listener) {
+                listeners.remove(registration);
+            }
+        }
+    }
+
     // Set the current state of the chat connection
-    private synchronized void setState(int state) {
+    private synchronized void setState(final int state) {
+        if (this.state == state) {
+            return;
+        }
         this.state = state;
+        for (final Registration registration : listeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onStateChanged(state);
+                }
+            });
+        }
+    }
+
+    // recompute the overall state from the open sessions and pending connects
+    private synchronized void updateState() {
+        if (!sessions.isEmpty()) {
+            setState(STATE_CONNECTED);
+        } else if (!connectThreads.isEmpty()) {
+            setState(STATE_CONNECTING);
+        } else if (acceptThread != null) {
+            setState(STATE_LISTEN);
+        } else {
+            setState(STATE_NONE);
+        }
     }
 
-    // get current connection state
+    // get current connection state, STATE_CONNECTED while at least one peer is connected
     public synchronized int getState() {
         return state;
     }
 
-    // start service
-    public synchronized void start() {
-        // Cancel any thread
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
-        }
+    public synchronized boolean isConnected(String address) {
+        return sessions.containsKey(address);
+    }
 
-        // Cancel any running thresd
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
-        }
+    // the link dropped and is being recovered, messages written meanwhile are kept
+    public synchronized boolean isReconnecting(String address) {
+        return peers.containsKey(address) && !sessions.containsKey(address);
+    }
 
-        setState(STATE_LISTEN);
+    public synchronized List<String> getConnectedAddresses() {
+        return new ArrayList<>(sessions.keySet());
+    }
+
+    // start listening for incoming connections, open sessions are kept
+    public synchronized void start() {
         if (acceptThread == null) {
             acceptThread = new AcceptThread();
             acceptThread.start();
         }
+        updateState();
     }
 
-    // initiate connection to remote device
-    public synchronized void connect(BluetoothDevice device) {
-        // Cancel any thread
-        if (state == STATE_CONNECTING) {
-            if (connectThread != null) {
-                connectThread.cancel();
-                connectThread = null;
-            }
+    // initiate connection to a transport address
+    public synchronized void connect(String address) {
+        Session session = sessions.get(address);
+        if (session != null) {
+            // already talking to this peer
+            dispatchConnected(address, session.connection.getRemoteName());
+            return;
         }
 
-        // Cancel running thread
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        // Cancel any pending attempt to the same device
+        ConnectThread pending = connectThreads.remove(address);
+        if (pending != null) {
+            pending.cancel();
         }
 
         // Start the thread to connect with the given device
-        connectThread = new ConnectThread(device);
+        ConnectThread connectThread = new ConnectThread(address);
+        connectThreads.put(address, connectThread);
         connectThread.start();
-        setState(STATE_CONNECTING);
+        updateState();
     }
 
-    // manage Bluetooth connection
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        // Cancel the thread
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+    // manage the established connection
+    public synchronized void connected(TransportConnection connection) {
+        String address = connection.getRemoteAddress();
+
+        ConnectThread pending = connectThreads.remove(address);
+        boolean outgoing = pending != null && pending.socket == connection;
+        if (pending != null && !outgoing) {
+            pending.cancel();
         }
 
-        // Cancel running thread
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        // A peer that reconnects replaces its old session
+        Session old = sessions.remove(address);
+        if (old != null) {
+            old.cancel();
+            old.peer.detach(old.writer);
         }
 
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            peer = new Peer(address);
+            peers.put(address, peer);
         }
+        // only the side that dialed the latest link dials again
+        peer.initiator = outgoing;
+        while (outgoing && peer.token == 0) {
+            peer.token = random.nextLong();
+        }
+        peer.cancelRecovery();
 
         // Start the thread to manage the connection and perform transmissions
-        connectedThread = new ReadWriteThread(socket);
-        connectedThread.start();
+        final Session session = new Session(connection, peer, outgoing);
+        sessions.put(address, session);
+        session.start();
+        // a peer that connects but never says HELLO would hold the link forever
+        final boolean tentative = connection.isTentative();
+        session.helloTimeout = timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (tentative) {
+                    redial(session);
+                } else {
+                    session.cancel();
+                }
+            }
+        }, tentative ? TENTATIVE_HELLO_TIMEOUT_MILLIS : HELLO_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
 
-        Intent i = new Intent("MESSAGE_DEVICE_OBJECT");
-        i.putExtra("DEVICE_OBJECT", device);
-        context.sendBroadcast(i);
+        updateState();
+        // a tentative link is reported once its HELLO is in
+        if (!tentative) {
+            dispatchConnected(address, connection.getRemoteName());
+        }
+    }
 
-        setState(STATE_CONNECTED);
+    // A tentative link that did not bring the peer's HELLO reached the wrong
+    // service or none at all. The transport forgets the guess, so the new
+    // attempt looks the service up again
+    private synchronized void redial(Session session) {
+        String address = session.connection.getRemoteAddress();
+        if (sessions.get(address) != session || session.helloReceived) {
+            return;
+        }
+        sessions.remove(address);
+        session.redialed = true;
+        session.connection.reject();
+        session.cancel();
+        ConnectThread connectThread = new ConnectThread(address);
+        connectThreads.put(address, connectThread);
+        connectThread.start();
+        updateState();
     }
 
     // stop all threads
     public synchronized void stop() {
-        if (connectThread != null) {
+        for (ConnectThread connectThread : connectThreads.values()) {
             connectThread.cancel();
-            connectThread = null;
+        }
+        connectThreads.clear();
+
+        for (Session session : sessions.values()) {
+            session.cancel();
+        }
+        sessions.clear();
+        for (Peer peer : new ArrayList<>(peers.values())) {
+            forget(peer);
         }
 
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        for (FileTransfer transfer : outgoingFiles.values()) {
+            transfer.cancel();
+        }
+        outgoingFiles.clear();
+        for (FileReceiver receiver : incomingFiles.values()) {
+            receiver.close();
         }
+        incomingFiles.clear();
 
         if (acceptThread != null) {
             acceptThread.cancel();
             acceptThread = null;
         }
-        setState(STATE_NONE);
+        updateState();
+    }
+
+    // close the session with one peer
+    public synchronized void disconnect(String address) {
+        Session session = sessions.remove(address);
+        if (session != null) {
+            session.cancel();
+            detachTransfers(address);
+            dispatchDisconnected(address);
+        }
+        Peer peer = peers.get(address);
+        if (peer != null) {
+            forget(peer);
+        }
+        updateState();
+    }
+
+    // queue a message without blocking, returns false for an unknown peer, when the send queue is full
+    // or when the message is longer than MAX_MESSAGE_BYTES; such a message could never be sent and
+    // would hold up the ones after it. Messages written while the link is being recovered go out once
+    // it is back. onMessageWritten fires once the peer acknowledged it, onMessageFailed if the peer is given up
+    public boolean write(String address, byte[] out) {
+        if (out.length > MAX_MESSAGE_BYTES) {
+            return false;
+        }
+        Peer peer;
+        synchronized (this) {
+            peer = peers.get(address);
+        }
+        return peer != null && peer.send(withUid(out));
+    }
+
+    // queue a message, waiting up to timeoutMillis for space in the send queue
+    public boolean write(String address, byte[] out, long timeoutMillis) throws InterruptedException {
+        if (out.length > MAX_MESSAGE_BYTES) {
+            return false;
+        }
+        Peer peer;
+        synchronized (this) {
+            peer = peers.get(address);
+        }
+        return peer != null && peer.send(withUid(out), timeoutMillis);
+    }
+
+    // [long uid][text], what the send window holds for every chat message
+    private byte[] withUid(byte[] out) {
+        long uid = 0;
+        while (uid == 0) {
+            uid = random.nextLong() & Long.MAX_VALUE;
+        }
+        byte[] payload = new byte[8 + out.length];
+        ByteBuffer.wrap(payload).putLong(uid).put(out);
+        return payload;
+    }
+
+    // RTT, window and retransmission stats of a peer, null when it is neither connected nor being recovered
+    public synchronized SendWindow getSendWindow(String address) {
+        Peer peer = peers.get(address);
+        return peer == null ? null : peer.sendWindow;
+    }
+
+    // links that came back after dropping
+    public synchronized int getRecoveries() {
+        return recoveries;
+    }
+
+    // recovered links that continued the old message sequence
+    public synchronized int getResumedSessions() {
+        return resumedSessions;
+    }
+
+    // time from losing a link to talking over the new one
+    public synchronized long getLastRecoveryMillis() {
+        return lastRecoveryNanos / 1000000;
+    }
+
+    public synchronized long getAverageRecoveryMillis() {
+        return recoveries == 0 ? 0 : recoveryNanos / recoveries / 1000000;
+    }
+
+    // outgoing connects that succeeded, and how long opening the link took
+    public synchronized int getConnects() {
+        return connects;
+    }
+
+    public synchronized long getLastConnectMillis() {
+        return lastConnectNanos / 1000000;
+    }
+
+    public synchronized long getAverageConnectMillis() {
+        return connects == 0 ? 0 : connectNanos / connects / 1000000;
+    }
+
+    private synchronized void connectedIn(long nanos) {
+        connects++;
+        connectNanos += nanos;
+        lastConnectNanos = nanos;
+    }
+
+    // TYPE_SYNC payload bytes sent and received
+    public long getSyncBytes() {
+        return syncBytes.get();
+    }
+
+    // messages received through history sync
+    public long getSyncedMessages() {
+        return syncedMessages.get();
+    }
+
+    private synchronized void recovered(long nanos, boolean resumed) {
+        recoveries++;
+        if (resumed) {
+            resumedSessions++;
+        }
+        recoveryNanos += nanos;
+        lastRecoveryNanos = nanos;
     }
 
-    public void write(byte[] out) {
-        ReadWriteThread r;
+    // reconnects, expiry of dropped peers and retransmissions share one daemon thread
+    private synchronized ScheduledExecutorService timer() {
+        if (timer != null) {
+            return timer;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RetransmitTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                List<Peer> open;
+                synchronized (ChatController.this) {
+                    open = new ArrayList<>(peers.values());
+                }
+                long now = System.nanoTime();
+                for (Peer peer : open) {
+                    peer.retransmit(now);
+                }
+            }
+        }, RETRANSMIT_CHECK_MILLIS, RETRANSMIT_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        return timer;
+    }
+
+    // after a link dropped: dial again if we opened it, otherwise wait for the peer to come back
+    private synchronized void scheduleRecovery(final Peer peer) {
+        if (peer.initiator) {
+            long delay = peer.backoff.nextDelayMillis();
+            if (delay < 0) {
+                forget(peer);
+                sendToast("Unable to reconnect device");
+                return;
+            }
+            peer.recovery = timer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reconnect(peer);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } else {
+            peer.recovery = timer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ChatController.this) {
+                        if (peers.get(peer.address) == peer && !sessions.containsKey(peer.address)) {
+                            forget(peer);
+                        }
+                    }
+                }
+            }, RESUME_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void reconnect(Peer peer) {
+        if (peers.get(peer.address) != peer || sessions.containsKey(peer.address)
+                || connectThreads.containsKey(peer.address)) {
+            return;
+        }
+        ConnectThread connectThread = new ConnectThread(peer.address);
+        connectThreads.put(peer.address, connectThread);
+        connectThread.start();
+        updateState();
+    }
+
+    // give up on a peer, its unacknowledged messages are reported as failed
+    private synchronized void forget(Peer peer) {
+        if (peers.get(peer.address) == peer) {
+            peers.remove(peer.address);
+        }
+        peer.cancelRecovery();
+        peer.failPending();
+    }
+
+    // stream a file to the peer, it resumes by itself if the link drops and comes back
+    public FileTransfer sendFile(String address, File file) {
+        return sendFile(address, file, FileTransfer.DEFAULT_CHUNK_SIZE);
+    }
+
+    public synchronized FileTransfer sendFile(String address, File file, int chunkSize) {
+        FileTransfer transfer = new FileTransfer(random.nextLong(), address, file, chunkSize, fileTransferListener);
+        outgoingFiles.put(transfer.getTransferId(), transfer);
+        Session session = sessions.get(address);
+        if (session != null && session.helloReceived) {
+            transfer.attach(session.writer);
+        }
+        transfer.start();
+        return transfer;
+    }
+
+    public synchronized void cancelFile(long transferId) {
+        FileTransfer transfer = outgoingFiles.remove(transferId);
+        if (transfer != null) {
+            transfer.cancel();
+        }
+    }
+
+    // continue file transfers that were cut off with this peer, once its HELLO is in
+    private synchronized void attachTransfers(Session session) {
+        if (sessions.get(session.peer.address) != session) {
+            return;
+        }
+        for (FileTransfer transfer : outgoingFiles.values()) {
+            if (transfer.getAddress().equals(session.peer.address)) {
+                transfer.attach(session.writer);
+            }
+        }
+    }
+
+    // The accepting side of a new link learned from HELLO that the peer is
+    // one we still keep state for under another address, as happens over TCP
+    // where every link comes from a new port. That state moves to the new
+    // address, along with anything written to the new address meanwhile.
+    // Returns the peer the session continues with
+    private synchronized Peer rebind(Session session, long peerNodeId) {
+        Peer current = session.peer;
+        if (peerNodeId == 0 || sessions.get(current.address) != session) {
+            return current;
+        }
+        Peer known = null;
+        for (Peer peer : peers.values()) {
+            if (peer != current && peer.nodeId == peerNodeId) {
+                known = peer;
+                break;
+            }
+        }
+        if (known == null) {
+            return current;
+        }
+        String oldAddress = known.address;
+        Session old = sessions.remove(oldAddress);
+        if (old != null) {
+            // the old link is half open, the peer has already left it
+            old.cancel();
+            known.detach(old.writer);
+        }
+        peers.remove(oldAddress);
+        known.cancelRecovery();
+        known.address = current.address;
+        known.initiator = false;
+        peers.put(known.address, known);
+        for (byte[] payload : current.drainBacklog()) {
+            known.send(payload);
+        }
+        for (FileTransfer transfer : outgoingFiles.values()) {
+            if (transfer.getAddress().equals(oldAddress)) {
+                transfer.setAddress(known.address);
+            }
+        }
+        return known;
+    }
+
+    private void detachTransfers(String address) {
+        for (FileTransfer transfer : outgoingFiles.values()) {
+            if (transfer.getAddress().equals(address)) {
+                transfer.detach();
+            }
+        }
+    }
+
+    private final FileTransfer.Listener fileTransferListener = new FileTransfer.Listener() {
+        @Override
+        public void onProgress(final FileTransfer transfer) {
+            for (final Registration registration : listeners) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onFileProgress(transfer);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onFinished(final FileTransfer transfer) {
+            outgoingFiles.remove(transfer.getTransferId());
+            for (final Registration registration : listeners) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onFileSent(transfer);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onFailed(FileTransfer transfer, IOException e) {
+            outgoingFiles.remove(transfer.getTransferId());
+            sendToast("Unable to send " + transfer.getFile().getName());
+        }
+    };
+
+    // send queue stats of a session, null when not connected
+    public synchronized OutboundWriter getWriter(String address) {
+        Session session = sessions.get(address);
+        return session == null ? null : session.writer;
+    }
+
+    // compression stats of what we received from a peer, null when not connected
+    public synchronized PayloadCompressor getInboundCompressor(String address) {
+        Session session = sessions.get(address);
+        return session == null ? null : session.reader.getDecompressor();
+    }
+
+    private void connectionFailed(String address, ConnectThread connectThread) {
         synchronized (this) {
-            if (state != STATE_CONNECTED)
+            if (connectThreads.get(address) == connectThread) {
+                connectThreads.remove(address);
+            }
+            Peer peer = peers.get(address);
+            if (peer != null && peer.lostAt != 0 && !sessions.containsKey(address)) {
+                // a reconnect attempt, try again later
+                scheduleRecovery(peer);
+                updateState();
                 return;
-            r = connectedThread;
+            }
+            updateState();
+        }
+        sendToast("Unable to connect device");
+    }
+
+    private void connectionLost(Session session) {
+        String address = session.connection.getRemoteAddress();
+        synchronized (this) {
+            if (sessions.get(address) != session) {
+                // already replaced or closed on purpose
+                return;
+            }
+            sessions.remove(address);
+            detachTransfers(address);
+            session.peer.detach(session.writer);
+            if (peers.get(address) == session.peer) {
+                session.peer.lostAt = System.nanoTime();
+                scheduleRecovery(session.peer);
+            }
+            updateState();
         }
-        r.write(out);
+        sendToast("Device connection was lost");
+        dispatchDisconnected(address);
     }
 
-    private void connectionFailed() {
-        Intent i = new Intent("MESSAGE_TOAST");
-        i.putExtra("toast", "Unable to connect device");
-        context.sendBroadcast(i);
+    private void dispatchConnected(final String address, final String name) {
+        for (final Registration registration : listeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onDeviceConnected(address, name);
+                }
+            });
+        }
+    }
+
+    private void dispatchDisconnected(final String address) {
+        for (final Registration registration : listeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onDeviceDisconnected(address);
+                }
+            });
+        }
+    }
 
-        // Start the service over to restart listening mode
-        ChatController.this.start();
+    private void sendToast(final String toast) {
+        for (final Registration registration : listeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onToast(toast);
+                }
+            });
+        }
     }
 
-    private void connectionLost() {
-        Intent i = new Intent("MESSAGE_TOAST");
-        i.putExtra("toast", "Device connection was lost");
-        context.sendBroadcast(i);
+    private static final int MESSAGE_READ = 0;
+    private static final int MESSAGE_WRITTEN = 1;
+    private static final int MESSAGE_FAILED = 2;
 
-        // Start the service over to restart listening mode
-        ChatController.this.start();
+    // Chat messages that got through are stored before the listeners hear of
+    // them, so they are kept whether or not a chat screen is open
+    private void sendMessage(final String address, String name, final String message, final long uid, final int event) {
+        MessageStore store = messageStore;
+        if (store == null || event == MESSAGE_FAILED) {
+            dispatchMessage(address, message, uid, event);
+            return;
+        }
+        store.addMessage(address, name != null ? name : address,
+                new MessageStore.Message(uid, event == MESSAGE_WRITTEN, System.currentTimeMillis(), message), new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchMessage(address, message, uid, event);
+                    }
+                });
+    }
+
+    private void dispatchMessage(final String address, final String message, final long uid, final int event) {
+        for (final Registration registration : listeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    switch (event) {
+                        case MESSAGE_READ:
+                            registration.listener.onMessageRead(address, message, uid);
+                            break;
+                        case MESSAGE_WRITTEN:
+                            registration.listener.onMessageWritten(address, message, uid);
+                            break;
+                        case MESSAGE_FAILED:
+                            registration.listener.onMessageFailed(address, message);
+                            break;
+                    }
+                }
+            });
+        }
+    }
+
+    private void dispatchSynced(final String address, final int messages) {
+        syncedMessages.addAndGet(messages);
+        for (final Registration registration : listeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onHistorySynced(address, messages);
+                }
+            });
+        }
+    }
+
+    private static class Registration {
+        final ChatEventListener listener;
+        final Executor executor;
+
+        Registration(ChatEventListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
     }
 
     // runs while listening for incoming connections
     private class AcceptThread extends Thread {
-        private BluetoothServerSocket serverSocket = null;
+        private TransportServer serverSocket = null;
 
         public AcceptThread() {
-            BluetoothServerSocket tmp = null;
+            TransportServer tmp = null;
             try {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                    return;
-                }
-                tmp = bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(APP_NAME, MY_UUID);
+                tmp = transport.listen();
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
@@ -193,8 +851,8 @@ public class ChatController {
 
         public void run() {
             setName("AcceptThread");
-            BluetoothSocket socket;
-            while (state != STATE_CONNECTED) {
+            TransportConnection socket;
+            while (true) {
                 try {
                     socket = serverSocket.accept();
                 } catch (Exception e) {
@@ -204,25 +862,26 @@ public class ChatController {
                 // If a connection was accepted
                 if (socket != null) {
                     synchronized (ChatController.this) {
-                        switch (state) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // start the connected thread.
-                                connected(socket, socket.getRemoteDevice());
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate
-                                // new socket.
-                                try {
-                                    socket.close();
-                                } catch (Exception e) {
-                                }
-                                break;
+                        if (acceptThread == this) {
+                            // start the session, other sessions stay open
+                            connected(socket);
+                        } else {
+                            // Stopped meanwhile. Terminate new socket.
+                            try {
+                                socket.close();
+                            } catch (Exception e) {
+                            }
                         }
                     }
                 }
             }
+
+            synchronized (ChatController.this) {
+                if (acceptThread == this) {
+                    acceptThread = null;
+                    updateState();
+                }
+            }
         }
 
         public void cancel() {
@@ -235,17 +894,14 @@ public class ChatController {
 
     // runs while attempting to make an outgoing connection
     private class ConnectThread extends Thread {
-        private BluetoothSocket socket = null;
-        private BluetoothDevice device = null;
+        private final String address;
+        private TransportConnection socket = null;
 
-        public ConnectThread(BluetoothDevice device) {
-            this.device = device;
-            BluetoothSocket tmp = null;
+        public ConnectThread(String address) {
+            this.address = address;
+            TransportConnection tmp = null;
             try {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                    return;
-                }
-                tmp = device.createInsecureRfcommSocketToServiceRecord(MY_UUID);
+                tmp = transport.openConnection(address);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -255,31 +911,32 @@ public class ChatController {
         public void run() {
             setName("ConnectThread");
 
-            // Always cancel discovery because it will slow down a connection
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
-                return;
-            }
-            bluetoothAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the remote device
+            long start = System.nanoTime();
             try {
                 socket.connect();
+                connectedIn(System.nanoTime() - start);
             } catch (Exception e) {
                 try {
                     socket.close();
                 } catch (Exception e2) {
                 }
-                connectionFailed();
+                connectionFailed(address, this);
                 return;
             }
 
-            // Reset the ConnectThread because we're done
             synchronized (ChatController.this) {
-                connectThread = null;
+                if (connectThreads.get(address) != this) {
+                    // cancelled while connecting
+                    try {
+                        socket.close();
+                    } catch (Exception e) {
+                    }
+                    return;
+                }
+                // Start the session
+                connected(socket);
             }
-
-            // Start the connected thread
-            connected(socket, device);
         }
 
         public void cancel() {
@@ -290,66 +947,511 @@ public class ChatController {
         }
     }
 
-    // runs during a connection with a remote device
-    private class ReadWriteThread extends Thread {
-        private final BluetoothSocket bluetoothSocket;
+    // chat state of one peer, kept across links until we give up on it
+    private class Peer {
+        // changes only in rebind()
+        volatile String address;
+        // from the peer's HELLO, 0 until one arrived
+        volatile long nodeId;
+        // device name of the latest link, null until its HELLO
+        volatile String name;
+        // shared by both ends, picked by the side that dialed; 0 until known
+        volatile long token;
+        // we dialed the latest link, so we dial again when it drops; guarded by ChatController.this
+        boolean initiator;
+        final Backoff backoff = new Backoff(RECONNECT_BASE_MILLIS, RECONNECT_MAX_MILLIS, RECONNECT_ATTEMPTS, random);
+        // when the last link dropped, 0 while connected; guarded by ChatController.this
+        long lostAt;
+        ScheduledFuture<?> recovery;
+
+        // outgoing chat messages: in flight in sendWindow or waiting in backlog, guarded by sendLock
+        final SendWindow sendWindow = new SendWindow();
+        private final ArrayDeque<byte[]> backlog = new ArrayDeque<>();
+        private final Object sendLock = new Object();
+        // writer of the current link once its HELLO arrived
+        private OutboundWriter writer;
+        // the current link carries message uids
+        private boolean messageIds;
+        private boolean closed;
+
+        // last chat message delivered, only touched by the reader thread of the current link
+        volatile int receivedSeq;
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        void cancelRecovery() {
+            if (recovery != null) {
+                recovery.cancel(false);
+                recovery = null;
+            }
+        }
+
+        boolean send(byte[] payload) {
+            synchronized (sendLock) {
+                if (closed || backlog.size() >= BACKLOG_CAPACITY) {
+                    return false;
+                }
+                backlog.add(payload);
+                pump();
+                return true;
+            }
+        }
+
+        boolean send(byte[] payload, long timeoutMillis) throws InterruptedException {
+            synchronized (sendLock) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (!closed && backlog.size() >= BACKLOG_CAPACITY) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(sendLock, remaining);
+                }
+                return send(payload);
+            }
+        }
+
+        // move backlog into the window while it has room, called with sendLock held
+        private void pump() {
+            if (writer == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            while (!backlog.isEmpty() && !sendWindow.isFull()) {
+                SendWindow.Entry entry = sendWindow.add(backlog.poll(), now);
+                // if the writer is full the retransmit timer sends it later
+                offer(writer, entry);
+            }
+            sendLock.notifyAll();
+        }
+
+        // the peer's HELLO arrived on a new link. Resumed: it has everything up
+        // to peerReceivedSeq and the rest goes out again. Otherwise it lost our
+        // session, so what was in flight is failed and numbering restarts
+        void attach(OutboundWriter w, boolean ids, boolean resumed, int peerReceivedSeq) {
+            List<SendWindow.Entry> delivered;
+            List<SendWindow.Entry> failed;
+            synchronized (sendLock) {
+                writer = w;
+                messageIds = ids;
+                if (resumed) {
+                    delivered = sendWindow.resume(peerReceivedSeq);
+                    failed = new ArrayList<>();
+                    for (SendWindow.Entry entry : sendWindow.rewind(System.nanoTime())) {
+                        offer(w, entry);
+                    }
+                } else {
+                    delivered = new ArrayList<>();
+                    failed = sendWindow.clear();
+                }
+                pump();
+            }
+            for (SendWindow.Entry entry : delivered) {
+                dispatch(entry.payload, MESSAGE_WRITTEN);
+            }
+            for (SendWindow.Entry entry : failed) {
+                dispatch(entry.payload, MESSAGE_FAILED);
+            }
+        }
+
+        // peers without CAP_SYNC get the text alone
+        private void offer(OutboundWriter w, SendWindow.Entry entry) {
+            if (messageIds) {
+                w.offer(FrameCodec.TYPE_MESSAGE, entry.seq, entry.payload);
+            } else {
+                w.offer(FrameCodec.TYPE_MESSAGE, entry.seq, Arrays.copyOfRange(entry.payload, 8, entry.payload.length));
+            }
+        }
+
+        // payload as built by withUid()
+        private void dispatch(byte[] payload, int event) {
+            sendMessage(address, name, new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8),
+                    ByteBuffer.wrap(payload).getLong(), event);
+        }
+
+        // messages not handed to any link yet, for rebind()
+        List<byte[]> drainBacklog() {
+            synchronized (sendLock) {
+                List<byte[]> drained = new ArrayList<>(backlog);
+                backlog.clear();
+                sendLock.notifyAll();
+                return drained;
+            }
+        }
+
+        // the link of w is gone, keep everything for the next one
+        void detach(OutboundWriter w) {
+            synchronized (sendLock) {
+                if (writer == w) {
+                    writer = null;
+                }
+            }
+        }
+
+        void onAck(int seq) {
+            for (SendWindow.Entry entry : sendWindow.ack(seq, System.nanoTime())) {
+                dispatch(entry.payload, MESSAGE_WRITTEN);
+            }
+            synchronized (sendLock) {
+                pump();
+            }
+        }
+
+        void retransmit(long now) {
+            synchronized (sendLock) {
+                if (writer == null) {
+                    return;
+                }
+                for (SendWindow.Entry entry : sendWindow.due(now)) {
+                    offer(writer, entry);
+                }
+            }
+        }
+
+        // report everything not acknowledged as not delivered
+        void failPending() {
+            List<byte[]> failed = new ArrayList<>();
+            synchronized (sendLock) {
+                closed = true;
+                writer = null;
+                for (SendWindow.Entry entry : sendWindow.clear()) {
+                    failed.add(entry.payload);
+                }
+                failed.addAll(backlog);
+                backlog.clear();
+                sendLock.notifyAll();
+            }
+            for (byte[] payload : failed) {
+                dispatch(payload, MESSAGE_FAILED);
+            }
+        }
+    }
+
+    // one connected peer: reads on its own thread, writes through the shared writer pool
+    private class Session extends Thread implements FrameDecoder.FrameListener, OutboundWriter.Listener {
+        private final TransportConnection connection;
+        // replaced by rebind() when the HELLO names a peer known under another address
+        private volatile Peer peer;
+        private final boolean outgoing;
+        volatile boolean helloReceived;
+        // dialed again by redial(), whatever still arrives here is ignored
+        volatile boolean redialed;
+        // guarded by ChatController.this
+        ScheduledFuture<?> helloTimeout;
         private final InputStream inputStream;
-        private final OutputStream outputStream;
+        private final OutboundWriter writer;
+        private final FrameReader reader = new FrameReader();
+        private int peerCapabilities;
+        // both ends have CAP_SYNC: chat messages carry uids
+        private boolean messageIds;
+        // null unless both ends can sync and we have a MessageStore
+        private HistorySync sync;
+        private boolean ackNeeded;
 
-        public ReadWriteThread(BluetoothSocket socket) {
-            this.bluetoothSocket = socket;
+        public Session(TransportConnection connection, Peer peer, boolean outgoing) {
+            this.connection = connection;
+            this.peer = peer;
+            this.outgoing = outgoing;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = connection.getInputStream();
+                tmpOut = connection.getOutputStream();
             } catch (Exception e) {
             }
 
             inputStream = tmpIn;
-            outputStream = tmpOut;
+            writer = new OutboundWriter(tmpOut, OutboundWriter.DEFAULT_CAPACITY, writerExecutor, this);
+            setName("Session-" + connection.getRemoteAddress());
+
+            // the dialing side goes first, so HELLO is the first frame of every link
+            if (outgoing) {
+                sendHello(peer.token, peer.receivedSeq);
+            }
         }
 
-        public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
+        // what we support, where we left off and who we are
+        private void sendHello(long token, int receivedSeq) {
+            ByteBuffer hello = ByteBuffer.allocate(25);
+            hello.put(FrameCodec.PROTOCOL_VERSION).putInt(CAPABILITIES);
+            hello.putLong(token).putInt(receivedSeq).putLong(nodeId);
+            writer.offer(FrameCodec.TYPE_HELLO, hello.array());
+        }
 
+        public void run() {
             // Keep listening to the InputStream
             while (true) {
                 try {
-                    // Read from the InputStream
-                    bytes = inputStream.read(buffer);
-
-                    String readMessage = new String(buffer, 0, bytes);
-                    Intent i = new Intent("MESSAGE_READ");
-                    i.putExtra("message", readMessage);
-                    context.sendBroadcast(i);
+                    // Read from the InputStream, complete frames arrive in onFrame()
+                    if (reader.readFrom(inputStream, this) < 0) {
+                        throw new IOException("End of stream");
+                    }
+                    // one cumulative ack for everything this read delivered
+                    if (ackNeeded) {
+                        ackNeeded = false;
+                        writer.offer(FrameCodec.TYPE_ACK, peer.receivedSeq, new byte[0]);
+                    }
                 } catch (Exception e) {
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    ChatController.this.start();
+                    writer.close();
+                    reader.release();
+                    if (!helloReceived && connection.isTentative()) {
+                        redial(this);
+                    } else {
+                        connectionLost(this);
+                    }
                     break;
                 }
             }
         }
 
-        // write to OutputStream
-        public void write(byte[] buffer) {
+        @Override
+        public void onFrame(byte type, int seq, byte[] buffer, int offset, int length) {
+            if (redialed) {
+                return;
+            }
+            // HELLO comes first on every link, on a tentative one anything else is another service
+            if (!helloReceived && type != FrameCodec.TYPE_HELLO && connection.isTentative()) {
+                redial(this);
+                return;
+            }
+            // already inflated by the FrameReader
+            switch (type) {
+                case FrameCodec.TYPE_HELLO:
+                    ByteBuffer hello = ByteBuffer.wrap(buffer, offset, length);
+                    hello.get();
+                    peerCapabilities = hello.getInt();
+                    if ((peerCapabilities & CAPABILITIES & FrameCodec.CAP_DEFLATE) != 0) {
+                        writer.setCompressor(new PayloadCompressor());
+                    }
+                    messageIds = (peerCapabilities & CAPABILITIES & FrameCodec.CAP_SYNC) != 0;
+                    onHello(hello);
+                    break;
+                case FrameCodec.TYPE_MESSAGE:
+                    if (seq == peer.receivedSeq + 1) {
+                        peer.receivedSeq = seq;
+                        long uid = 0;
+                        if (messageIds && length >= 8) {
+                            uid = ByteBuffer.wrap(buffer, offset, length).getLong();
+                            offset += 8;
+                            length -= 8;
+                        }
+                        sendMessage(connection.getRemoteAddress(), connection.getRemoteName(),
+                                new String(buffer, offset, length, StandardCharsets.UTF_8), uid, MESSAGE_READ);
+                    }
+                    // duplicates and frames after a gap are dropped, the sender goes back to our ack
+                    ackNeeded = true;
+                    break;
+                case FrameCodec.TYPE_ACK:
+                    peer.onAck(seq);
+                    break;
+                case FrameCodec.TYPE_SYNC:
+                    if (sync != null) {
+                        syncBytes.addAndGet(length);
+                        final HistorySync target = sync;
+                        // the buffer is reused by the next read
+                        final ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOfRange(buffer, offset, offset + length));
+                        syncExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                target.onFrame(frame);
+                            }
+                        });
+                    }
+                    break;
+                case FrameCodec.TYPE_FILE_OFFER:
+                    onFileOffer(ByteBuffer.wrap(buffer, offset, length));
+                    break;
+                case FrameCodec.TYPE_FILE_CHUNK:
+                    onFileChunk(buffer, offset, length);
+                    break;
+                case FrameCodec.TYPE_FILE_ACK:
+                    ByteBuffer ack = ByteBuffer.wrap(buffer, offset, length);
+                    FileTransfer transfer = outgoingFiles.get(ack.getLong());
+                    if (transfer != null) {
+                        long ackOffset = ack.getLong();
+                        transfer.onAck(ackOffset, ack.get() == 1);
+                    }
+                    break;
+            }
+        }
+
+        private void onFileOffer(ByteBuffer offer) {
+            long id = offer.getLong();
+            long size = offer.getLong();
+            String name = new String(offer.array(), offer.position(), offer.remaining(), StandardCharsets.UTF_8);
             try {
-                outputStream.write(buffer);
-                String readMessage = new String(buffer, 0, buffer.length);
-                Intent i = new Intent("MESSAGE_WRITE");
-                i.putExtra("message", readMessage);
-                context.sendBroadcast(i);
-            } catch (Exception e) {
+                FileReceiver receiver = incomingFiles.get(id);
+                if (receiver == null) {
+                    receiver = new FileReceiver(downloadDirectory, id, name, size);
+                    incomingFiles.put(id, receiver);
+                }
+                // tell the sender where to continue from
+                sendAck(receiver.ack(false));
+                if (receiver.isComplete()) {
+                    finishFile(id, receiver);
+                }
+            } catch (IOException e) {
                 e.printStackTrace();
+                sendToast("Unable to receive " + name);
             }
         }
 
+        private void onFileChunk(byte[] buffer, int offset, int length) {
+            long id = ByteBuffer.wrap(buffer, offset, length).getLong();
+            FileReceiver receiver = incomingFiles.get(id);
+            if (receiver == null) {
+                return;
+            }
+            try {
+                byte[] ack = receiver.onChunk(buffer, offset, length);
+                if (ack != null) {
+                    sendAck(ack);
+                }
+                if (receiver.isComplete()) {
+                    finishFile(id, receiver);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                incomingFiles.remove(id);
+                receiver.close();
+                sendToast("Unable to receive file");
+            }
+        }
+
+        private void finishFile(long id, FileReceiver receiver) throws IOException {
+            incomingFiles.remove(id);
+            final File file = receiver.finish();
+            final String address = connection.getRemoteAddress();
+            for (final Registration registration : listeners) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onFileReceived(address, file);
+                    }
+                });
+            }
+        }
+
+        private void sendAck(byte[] ack) {
+            try {
+                // the sender stalls without acks, so wait for room rather than drop one
+                writer.offer(FrameCodec.TYPE_FILE_ACK, ack, ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void onHello(ByteBuffer hello) {
+            if (helloReceived) {
+                return;
+            }
+            helloReceived = true;
+            synchronized (ChatController.this) {
+                if (redialed) {
+                    return;
+                }
+                if (helloTimeout != null) {
+                    helloTimeout.cancel(false);
+                }
+            }
+            if (connection.isTentative()) {
+                // the cached channel still leads to us
+                connection.confirm();
+                dispatchConnected(connection.getRemoteAddress(), connection.getRemoteName());
+            }
+            // peers without resume support send the short form
+            long peerToken = hello.remaining() >= 12 ? hello.getLong() : 0;
+            int peerReceivedSeq = hello.remaining() >= 4 ? hello.getInt() : 0;
+            long peerNodeId = hello.remaining() >= 8 ? hello.getLong() : 0;
+            if (!outgoing) {
+                peer = rebind(this, peerNodeId);
+                // answer with what we had, so both ends agree on whether this resumes
+                sendHello(peer.token, peer.receivedSeq);
+            }
+            peer.nodeId = peerNodeId;
+            peer.name = connection.getRemoteName();
+            boolean resumed = peer.token != 0 && peerToken == peer.token;
+            if (!resumed) {
+                // a new session: the dialing side's token wins
+                peer.receivedSeq = 0;
+                if (!outgoing) {
+                    peer.token = peerToken;
+                }
+            }
+            peer.attach(writer, messageIds, resumed, peerReceivedSeq);
+            attachTransfers(this);
+            startSync();
+
+            long lostAt;
+            synchronized (ChatController.this) {
+                lostAt = peer.lostAt;
+                peer.lostAt = 0;
+                peer.backoff.reset();
+            }
+            if (lostAt != 0) {
+                recovered(System.nanoTime() - lostAt, resumed);
+            }
+        }
+
+        // once per link, the dialing side sends the first digests
+        private void startSync() {
+            MessageStore store = messageStore;
+            if (!messageIds || store == null) {
+                return;
+            }
+            sync = new HistorySync(connection.getRemoteAddress(), connection.getRemoteName(), store, new HistorySync.Sender() {
+                @Override
+                public void send(byte[] payload) {
+                    syncBytes.addAndGet(payload.length);
+                    try {
+                        // a dropped frame would leave part of the history out until the next link
+                        if (!writer.offer(FrameCodec.TYPE_SYNC, payload, SYNC_SEND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                            cancel();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, new HistorySync.Listener() {
+                @Override
+                public void onSynced(String address, int messages) {
+                    dispatchSynced(address, messages);
+                }
+            });
+            if (outgoing) {
+                final HistorySync target = sync;
+                syncExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        target.start();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onWritten(byte type, int seq, byte[] payload, long latencyNanos) {
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            // closing the link makes the read loop report it
+            cancel();
+        }
+
+        @Override
+        public void onFrameRejected(byte type, int seq, byte[] payload, RuntimeException e) {
+            // only the frame is lost, the others of its batch went out
+            e.printStackTrace();
+        }
+
         public void cancel() {
+            writer.close();
             try {
-                bluetoothSocket.close();
+                connection.close();
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,57 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import java.io.File;
+
+// Events published by ChatController, delivered on the executor the listener
+// was registered with. Override only what you need.
+public interface ChatEventListener {
+
+    // With a MessageStore set, received and acknowledged messages are stored
+    // before onMessageRead / onMessageWritten
+    default void onMessageRead(String address, String message) {
+    }
+
+    // uid names the message on both devices, 0 if the peer does not send uids
+    default void onMessageRead(String address, String message, long uid) {
+        onMessageRead(address, message);
+    }
+
+    // the peer acknowledged the message
+    default void onMessageWritten(String address, String message) {
+    }
+
+    default void onMessageWritten(String address, String message, long uid) {
+        onMessageWritten(address, message);
+    }
+
+    // the link went down before the peer acknowledged the message
+    default void onMessageFailed(String address, String message) {
+    }
+
+    default void onStateChanged(int state) {
+    }
+
+    default void onDeviceConnected(String address, String name) {
+    }
+
+    default void onDeviceDisconnected(String address) {
+    }
+
+    // history sync stored messages of address that were missing here
+    default void onHistorySynced(String address, int messages) {
+    }
+
+    default void onFileProgress(FileTransfer transfer) {
+    }
+
+    // the peer acknowledged the last chunk, transfer holds the throughput stats
+    default void onFileSent(FileTransfer transfer) {
+    }
+
+    default void onFileReceived(String address, File file) {
+    }
+
+    // user visible connection errors
+    default void onToast(String toast) {
+    }
+}
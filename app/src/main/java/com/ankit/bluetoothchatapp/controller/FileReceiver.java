@@ -0,0 +1,109 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+// Incoming file. Chunks go to "<id>.part" in the download directory, so the
+// bytes already on disk are the offset a resumed transfer continues from.
+class FileReceiver {
+    private final long id;
+    private final String name;
+    private final long size;
+    private final File partFile;
+    private final File directory;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private long expectedOffset;
+    // a resend was requested and nothing arrived at expectedOffset since
+    private boolean resendRequested;
+
+    FileReceiver(File directory, long id, String name, long size) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.id = id;
+        this.name = new File(name).getName();
+        this.size = size;
+        this.directory = directory;
+        this.partFile = new File(directory, Long.toHexString(id) + ".part");
+        this.randomAccessFile = new RandomAccessFile(partFile, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.expectedOffset = Math.min(channel.size(), size);
+    }
+
+    long getExpectedOffset() {
+        return expectedOffset;
+    }
+
+    boolean isComplete() {
+        return expectedOffset >= size;
+    }
+
+    // write one chunk, returns the ack payload to send back or null to stay quiet
+    byte[] onChunk(byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(buffer, offset, length);
+        header.getLong();
+        long chunkOffset = header.getLong();
+        int checksum = header.getInt();
+        int dataOffset = offset + FileTransfer.CHUNK_HEADER_SIZE;
+        int dataLength = length - FileTransfer.CHUNK_HEADER_SIZE;
+
+        if (chunkOffset < expectedOffset) {
+            // a duplicate: our ack for it may be what got lost, repeat where we are
+            return ack(false);
+        }
+        if (chunkOffset != expectedOffset) {
+            // behind a corrupt chunk, the resend request covers it
+            return null;
+        }
+        crc.reset();
+        crc.update(buffer, dataOffset, dataLength);
+        if ((int) crc.getValue() != checksum) {
+            if (resendRequested) {
+                return null;
+            }
+            resendRequested = true;
+            return ack(true);
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(buffer, dataOffset, dataLength);
+        while (data.hasRemaining()) {
+            channel.write(data, chunkOffset + data.position() - dataOffset);
+        }
+        expectedOffset += dataLength;
+        resendRequested = false;
+        return ack(false);
+    }
+
+    byte[] ack(boolean resend) {
+        ByteBuffer ack = ByteBuffer.allocate(17);
+        ack.putLong(id).putLong(expectedOffset).put((byte) (resend ? 1 : 0));
+        return ack.array();
+    }
+
+    // close the part file and move it to its final name
+    File finish() throws IOException {
+        close();
+        File target = new File(directory, name);
+        for (int i = 1; target.exists(); i++) {
+            target = new File(directory, i + "_" + name);
+        }
+        if (!partFile.renameTo(target)) {
+            throw new IOException("Cannot rename " + partFile + " to " + target);
+        }
+        return target;
+    }
+
+    void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
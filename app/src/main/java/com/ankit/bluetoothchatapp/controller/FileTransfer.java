@@ -0,0 +1,233 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import com.ankit.bluetoothchatapp.protocol.FrameCodec;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Outgoing file, streamed in fixed-size chunks next to the chat traffic of
+// the same session. Survives a dropped link: once the peer is back the offer
+// is repeated and the receiver answers with the offset it already has.
+public class FileTransfer extends Thread {
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    static final int CHUNK_HEADER_SIZE = 20;
+    // chunks on the wire before we wait for an ack
+    private static final int WINDOW_CHUNKS = 8;
+    private static final long OFFER_TIMEOUT_MILLIS = 5000;
+    // go back to the last acked offset when the peer went quiet this long
+    private static final long ACK_TIMEOUT_MILLIS = 10000;
+
+    public interface Listener {
+        void onProgress(FileTransfer transfer);
+
+        void onFinished(FileTransfer transfer);
+
+        void onFailed(FileTransfer transfer, IOException e);
+    }
+
+    private final long id;
+    private volatile String address;
+    private final File file;
+    private final long size;
+    private final int chunkSize;
+    private final Listener listener;
+
+    // guarded by this
+    private OutboundWriter writer;
+    private long ackedOffset = -1;
+    private long nextOffset;
+    private long acknowledged;
+    private long lastAckAt;
+    private boolean cancelled;
+
+    private final long startedAt = System.nanoTime();
+    private volatile long finishedAt;
+    private volatile long initialOffset = -1;
+    private volatile int resumes;
+    private volatile int resentChunks;
+
+    FileTransfer(long id, String address, File file, int chunkSize, Listener listener) {
+        if (chunkSize <= 0 || chunkSize > FrameCodec.MAX_PAYLOAD_SIZE - CHUNK_HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        this.id = id;
+        this.address = address;
+        this.file = file;
+        this.size = file.length();
+        this.chunkSize = chunkSize;
+        this.listener = listener;
+        setName("FileTransfer-" + id);
+    }
+
+    // the peer's session came up, (re)send the offer and wait for its ack
+    synchronized void attach(OutboundWriter writer) {
+        this.writer = writer;
+        ackedOffset = -1;
+        byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer offer = ByteBuffer.allocate(16 + name.length);
+        offer.putLong(id).putLong(size).put(name);
+        // the session was just opened, so its queue has room
+        writer.offer(FrameCodec.TYPE_FILE_OFFER, offer.array());
+        notifyAll();
+    }
+
+    // the link dropped, pause until attach() is called again
+    synchronized void detach() {
+        writer = null;
+        ackedOffset = -1;
+        notifyAll();
+    }
+
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    void onAck(long offset, boolean resend) {
+        synchronized (this) {
+            if (ackedOffset < 0) {
+                // first ack after an offer: continue from what the receiver has
+                if (initialOffset < 0) {
+                    initialOffset = offset;
+                } else {
+                    resumes++;
+                }
+                nextOffset = offset;
+            } else if (resend) {
+                resentChunks++;
+                nextOffset = offset;
+            } else if (offset > nextOffset) {
+                // went back after a lost ack, the receiver already has these
+                nextOffset = offset;
+            }
+            ackedOffset = Math.max(ackedOffset, offset);
+            acknowledged = Math.max(acknowledged, offset);
+            lastAckAt = System.nanoTime();
+            notifyAll();
+        }
+        listener.onProgress(this);
+    }
+
+    public void run() {
+        CRC32 crc = new CRC32();
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            while (true) {
+                long offset;
+                int length;
+                OutboundWriter w;
+                synchronized (this) {
+                    while (!cancelled && ackedOffset < size
+                            && (writer == null || ackedOffset < 0 || nextOffset >= size
+                            || nextOffset - ackedOffset >= (long) WINDOW_CHUNKS * chunkSize)) {
+                        wait(ACK_TIMEOUT_MILLIS);
+                        if (writer != null && ackedOffset >= 0 && nextOffset > ackedOffset
+                                && System.nanoTime() - lastAckAt > TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MILLIS)) {
+                            // an ack got lost, send everything after the last one again
+                            resentChunks++;
+                            nextOffset = ackedOffset;
+                            lastAckAt = System.nanoTime();
+                        }
+                    }
+                    if (cancelled) {
+                        return;
+                    }
+                    if (ackedOffset >= size) {
+                        break;
+                    }
+                    offset = nextOffset;
+                    length = (int) Math.min(chunkSize, size - offset);
+                    nextOffset += length;
+                    w = writer;
+                }
+
+                byte[] payload = new byte[CHUNK_HEADER_SIZE + length];
+                ByteBuffer data = ByteBuffer.wrap(payload, CHUNK_HEADER_SIZE, length);
+                while (data.hasRemaining()) {
+                    if (channel.read(data, offset + data.position() - CHUNK_HEADER_SIZE) < 0) {
+                        throw new IOException("File changed while sending: " + file);
+                    }
+                }
+                crc.reset();
+                crc.update(payload, CHUNK_HEADER_SIZE, length);
+                ByteBuffer.wrap(payload).putLong(id).putLong(offset).putInt((int) crc.getValue());
+
+                if (!w.offer(FrameCodec.TYPE_FILE_CHUNK, payload, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    // writer stalled or closed, send this chunk again on the next round
+                    synchronized (this) {
+                        if (nextOffset == offset + length) {
+                            nextOffset = offset;
+                        }
+                    }
+                }
+            }
+            finishedAt = System.nanoTime();
+            listener.onFinished(this);
+        } catch (InterruptedException e) {
+            // cancelled
+        } catch (IOException e) {
+            listener.onFailed(this, e);
+        }
+    }
+
+    public long getTransferId() {
+        return id;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    // the peer came back under another address
+    void setAddress(String address) {
+        this.address = address;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public synchronized long getAcknowledgedBytes() {
+        return acknowledged;
+    }
+
+    public boolean isFinished() {
+        return finishedAt != 0;
+    }
+
+    // time to complete, or time so far while running
+    public long getElapsedMillis() {
+        long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+        return (end - startedAt) / 1000000;
+    }
+
+    // bytes sent per second, not counting what the receiver already had from an earlier run
+    public long getThroughputBytesPerSecond() {
+        long elapsed = getElapsedMillis();
+        long sent = getAcknowledgedBytes() - Math.max(initialOffset, 0);
+        return elapsed == 0 ? 0 : sent * 1000 / elapsed;
+    }
+
+    // times the transfer continued after a dropped link
+    public int getResumes() {
+        return resumes;
+    }
+
+    public int getResentChunks() {
+        return resentChunks;
+    }
+}
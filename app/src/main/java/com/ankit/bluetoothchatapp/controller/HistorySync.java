@@ -0,0 +1,333 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import com.ankit.bluetoothchatapp.protocol.FrameCodec;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Reconciles the message history of both ends of a session. Uids are
+// positive longs; a range [lo, hi] of them is summarized by its count and
+// the sum of a mixed hash of every uid, so equal ranges cost one digest.
+// Ranges that differ are split FANOUT ways and compared again, small ones
+// are settled by listing their uids. Traffic grows with the number of
+// missing messages times the depth of the split, not with the history.
+//
+// TYPE_SYNC payloads, all big endian:
+//   OP_RANGES   [int n] n * [long lo][long hi][int count][long hash]
+//   OP_IDS      [long lo][long hi][int n] n * [long uid]   the sender's uids in the range
+//   OP_REQUEST  [int n] n * [long uid]                      send me these
+//   OP_MESSAGES [int n] n * [long uid][byte 1 if sent by the frame's sender][long created at][int length][utf-8]
+// Counts and lengths from the peer are checked against the bytes actually
+// left in the frame and against what our own frames can carry; a frame
+// that does not add up ends the sync for this link.
+// Not thread-safe, the controller calls it from one thread at a time.
+class HistorySync {
+    static final byte OP_RANGES = 1;
+    static final byte OP_IDS = 2;
+    static final byte OP_REQUEST = 3;
+    static final byte OP_MESSAGES = 4;
+
+    static final int FANOUT = 16;
+    // ranges with at most this many messages on both ends are listed instead of split
+    static final int LEAF_SIZE = 16;
+    private static final int RANGE_SIZE = 28;
+    private static final int MAX_PAYLOAD = 32 * 1024;
+    private static final int MAX_IDS = (MAX_PAYLOAD - 21) / 8;
+    private static final int MAX_RANGES = (MAX_PAYLOAD - 5) / RANGE_SIZE;
+    private static final int MESSAGE_HEADER_SIZE = 21;
+    private static final int MAX_MESSAGES = (MAX_PAYLOAD - 5) / MESSAGE_HEADER_SIZE;
+
+    interface Sender {
+        void send(byte[] payload);
+    }
+
+    interface Listener {
+        // messages the store did not have yet
+        void onSynced(String address, int messages);
+    }
+
+    private final String address;
+    private final String name;
+    private final MessageStore store;
+    private final Sender sender;
+    private final Listener listener;
+
+    // our uids, sorted, and prefix sums of their hashes. Loaded on first use
+    private long[] ids;
+    private long[] hashes;
+    // set by a malformed frame, everything after it is ignored
+    private boolean dropped;
+
+    HistorySync(String address, String name, MessageStore store, Sender sender, Listener listener) {
+        this.address = address;
+        this.name = name;
+        this.store = store;
+        this.sender = sender;
+        this.listener = listener;
+    }
+
+    // the dialing side opens with the digests of the whole uid space
+    void start() {
+        List<long[]> ranges = new ArrayList<>();
+        split(1, Long.MAX_VALUE, ranges);
+        sendRanges(ranges);
+    }
+
+    void onFrame(ByteBuffer frame) {
+        if (dropped) {
+            return;
+        }
+        try {
+            switch (frame.get()) {
+                case OP_RANGES:
+                    onRanges(frame);
+                    break;
+                case OP_IDS:
+                    onIds(frame);
+                    break;
+                case OP_REQUEST:
+                    long[] uids = new long[readCount(frame, 8, MAX_IDS)];
+                    for (int i = 0; i < uids.length; i++) {
+                        uids[i] = frame.getLong();
+                    }
+                    push(uids);
+                    break;
+                case OP_MESSAGES:
+                    onMessages(frame);
+                    break;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // the next link starts over
+            dropped = true;
+            e.printStackTrace();
+        }
+    }
+
+    boolean isDropped() {
+        return dropped;
+    }
+
+    // a count followed by that many elements of size bytes, at most max
+    private static int readCount(ByteBuffer frame, int size, int max) {
+        int n = frame.getInt();
+        if (n < 0 || n > max || (long) n * size > frame.remaining()) {
+            throw new IllegalArgumentException("Invalid count " + n + " with " + frame.remaining() + " bytes left");
+        }
+        return n;
+    }
+
+    private void onRanges(ByteBuffer frame) {
+        int n = readCount(frame, RANGE_SIZE, MAX_RANGES);
+        List<long[]> split = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            long lo = frame.getLong();
+            long hi = frame.getLong();
+            int peerCount = frame.getInt();
+            long peerHash = frame.getLong();
+            int from = lowerBound(lo);
+            int to = upperBound(hi);
+            int count = to - from;
+            if (count == peerCount && hashes[to] - hashes[from] == peerHash) {
+                continue;
+            }
+            if (peerCount == 0) {
+                // the peer has none of them
+                push(Arrays.copyOfRange(ids, from, to));
+            } else if (count == 0 || (count <= LEAF_SIZE && peerCount <= LEAF_SIZE) || hi - lo < FANOUT) {
+                sendIds(lo, hi, from, to);
+            } else {
+                split(lo, hi, split);
+            }
+        }
+        if (!split.isEmpty()) {
+            sendRanges(split);
+        }
+    }
+
+    // the peer listed its uids in [lo, hi]: send what it lacks, ask for the rest
+    private void onIds(ByteBuffer frame) {
+        long lo = frame.getLong();
+        long hi = frame.getLong();
+        long[] peerIds = new long[readCount(frame, 8, MAX_IDS)];
+        for (int i = 0; i < peerIds.length; i++) {
+            peerIds[i] = frame.getLong();
+        }
+        Arrays.sort(peerIds);
+        int from = lowerBound(lo);
+        int to = upperBound(hi);
+
+        long[] missing = new long[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (Arrays.binarySearch(peerIds, ids[i]) < 0) {
+                missing[count++] = ids[i];
+            }
+        }
+        push(Arrays.copyOf(missing, count));
+
+        long[] wanted = new long[peerIds.length];
+        count = 0;
+        for (long uid : peerIds) {
+            if (Arrays.binarySearch(ids, from, to, uid) < 0) {
+                wanted[count++] = uid;
+            }
+        }
+        for (int start = 0; start < count; start += MAX_IDS) {
+            int end = Math.min(start + MAX_IDS, count);
+            ByteBuffer request = ByteBuffer.allocate(5 + (end - start) * 8);
+            request.put(OP_REQUEST).putInt(end - start);
+            for (int i = start; i < end; i++) {
+                request.putLong(wanted[i]);
+            }
+            send(request.array());
+        }
+    }
+
+    private void onMessages(ByteBuffer frame) {
+        int n = readCount(frame, MESSAGE_HEADER_SIZE, MAX_MESSAGES);
+        List<MessageStore.Message> messages = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            long uid = frame.getLong();
+            // theirs is ours the other way round
+            boolean outgoing = frame.get() == 0;
+            long createdAt = frame.getLong();
+            int length = frame.getInt();
+            if (length < 0 || length > frame.remaining()) {
+                throw new IllegalArgumentException("Invalid message length " + length);
+            }
+            String text = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+            frame.position(frame.position() + length);
+            messages.add(new MessageStore.Message(uid, outgoing, createdAt, text));
+        }
+        int added = store.addMessages(address, name, messages);
+        if (added > 0) {
+            listener.onSynced(address, added);
+        }
+    }
+
+    private void push(long[] uids) {
+        if (uids.length == 0) {
+            return;
+        }
+        List<MessageStore.Message> messages = store.getMessages(address, uids);
+        List<byte[]> texts = new ArrayList<>();
+        int size = 5;
+        int start = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            byte[] text = messages.get(i).text.getBytes(StandardCharsets.UTF_8);
+            if (5 + MESSAGE_HEADER_SIZE + text.length > FrameCodec.MAX_PAYLOAD_SIZE) {
+                // does not fit a frame even alone, the writer would drop the whole frame
+                if (i > start) {
+                    sendMessages(messages.subList(start, i), texts, size);
+                    texts.clear();
+                    size = 5;
+                }
+                start = i + 1;
+                continue;
+            }
+            if (i > start && size + MESSAGE_HEADER_SIZE + text.length > MAX_PAYLOAD) {
+                sendMessages(messages.subList(start, i), texts, size);
+                texts.clear();
+                size = 5;
+                start = i;
+            }
+            texts.add(text);
+            size += MESSAGE_HEADER_SIZE + text.length;
+        }
+        if (start < messages.size()) {
+            sendMessages(messages.subList(start, messages.size()), texts, size);
+        }
+    }
+
+    private void sendMessages(List<MessageStore.Message> messages, List<byte[]> texts, int size) {
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.put(OP_MESSAGES).putInt(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            MessageStore.Message message = messages.get(i);
+            payload.putLong(message.uid).put((byte) (message.outgoing ? 1 : 0)).putLong(message.createdAt)
+                    .putInt(texts.get(i).length).put(texts.get(i));
+        }
+        send(payload.array());
+    }
+
+    // only used for leaf ranges, at most LEAF_SIZE or FANOUT uids
+    private void sendIds(long lo, long hi, int from, int to) {
+        ByteBuffer payload = ByteBuffer.allocate(21 + (to - from) * 8);
+        payload.put(OP_IDS).putLong(lo).putLong(hi).putInt(to - from);
+        for (int i = from; i < to; i++) {
+            payload.putLong(ids[i]);
+        }
+        send(payload.array());
+    }
+
+    private void sendRanges(List<long[]> ranges) {
+        int perFrame = (MAX_PAYLOAD - 5) / RANGE_SIZE;
+        for (int start = 0; start < ranges.size(); start += perFrame) {
+            int end = Math.min(start + perFrame, ranges.size());
+            ByteBuffer payload = ByteBuffer.allocate(5 + (end - start) * RANGE_SIZE);
+            payload.put(OP_RANGES).putInt(end - start);
+            for (int i = start; i < end; i++) {
+                long lo = ranges.get(i)[0];
+                long hi = ranges.get(i)[1];
+                int from = lowerBound(lo);
+                int to = upperBound(hi);
+                payload.putLong(lo).putLong(hi).putInt(to - from).putLong(hashes[to] - hashes[from]);
+            }
+            send(payload.array());
+        }
+    }
+
+    private void send(byte[] payload) {
+        sender.send(payload);
+    }
+
+    // [lo, hi] in FANOUT parts of about equal width
+    private static void split(long lo, long hi, List<long[]> out) {
+        long width = (hi - lo) / FANOUT + 1;
+        for (long start = lo; start <= hi; ) {
+            long end = hi - start < width ? hi : start + width - 1;
+            out.add(new long[]{start, end});
+            if (end == hi) {
+                break;
+            }
+            start = end + 1;
+        }
+    }
+
+    private void load() {
+        if (ids != null) {
+            return;
+        }
+        ids = store.getSyncIds(address).clone();
+        Arrays.sort(ids);
+        hashes = new long[ids.length + 1];
+        for (int i = 0; i < ids.length; i++) {
+            hashes[i + 1] = hashes[i] + mix(ids[i]);
+        }
+    }
+
+    // index of the first uid >= value
+    private int lowerBound(long value) {
+        load();
+        int index = Arrays.binarySearch(ids, value);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    // index after the last uid <= value
+    private int upperBound(long value) {
+        load();
+        int index = Arrays.binarySearch(ids, value);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    // splitmix64 finalizer, spreads neighbouring uids over the whole range
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
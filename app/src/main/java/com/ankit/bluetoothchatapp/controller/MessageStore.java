@@ -0,0 +1,43 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import java.util.Collections;
+import java.util.List;
+
+// The app's stored chat history, which ChatController reconciles with the
+// peer's at the start of every session. Messages are identified by the uid
+// their sender gave them. Called on session threads.
+public interface MessageStore {
+
+    class Message {
+        public final long uid;
+        // sent by the owner of the store
+        public final boolean outgoing;
+        public final long createdAt;
+        public final String text;
+
+        public Message(long uid, boolean outgoing, long createdAt, String text) {
+            this.uid = uid;
+            this.outgoing = outgoing;
+            this.createdAt = createdAt;
+            this.text = text;
+        }
+    }
+
+    // uids of the messages exchanged with address that take part in sync, any order
+    long[] getSyncIds(String address);
+
+    // the stored messages among uids
+    List<Message> getMessages(String address, long[] uids);
+
+    // messages the peer had and the store may not, returns once they are
+    // stored with how many were new
+    int addMessages(String address, String name, List<Message> messages);
+
+    // A message of the live link, received or sent and acknowledged. Called
+    // on the reader thread, so a store that can be slow queues the write and
+    // returns; stored runs once the message is in, or was already there
+    default void addMessage(String address, String name, Message message, Runnable stored) {
+        addMessages(address, name, Collections.singletonList(message));
+        stored.run();
+    }
+}
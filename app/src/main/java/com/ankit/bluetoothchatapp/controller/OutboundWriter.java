@@ -0,0 +1,242 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import com.ankit.bluetoothchatapp.protocol.FrameCodec;
+import com.ankit.bluetoothchatapp.protocol.PayloadCompressor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Writes frames off the caller's thread so callers never block on a full socket.
+// Drains run on a shared executor, one at a time per writer, so many sessions
+// can share a few writer threads. Frames queued while a write is in progress
+// are coalesced into one write. A frame that cannot be encoded, such as one
+// over FrameCodec.MAX_PAYLOAD_SIZE, is reported and skipped, the rest of
+// its batch still goes out.
+public class OutboundWriter implements Runnable {
+    // room for a full send window plus acks and file chunks
+    public static final int DEFAULT_CAPACITY = 128;
+    static final int MAX_COALESCE_BYTES = 16 * 1024;
+
+    public interface Listener {
+        // called on the writer executor once the frame was handed to the socket
+        void onWritten(byte type, int seq, byte[] payload, long latencyNanos);
+
+        void onWriteFailed(IOException e);
+
+        // the frame could not be encoded and was dropped, the link stays up
+        void onFrameRejected(byte type, int seq, byte[] payload, RuntimeException e);
+    }
+
+    private static class Pending {
+        final byte type;
+        final int seq;
+        final byte[] payload;
+        final long enqueuedAt;
+
+        Pending(byte type, int seq, byte[] payload) {
+            this.type = type;
+            this.seq = seq;
+            this.payload = payload;
+            this.enqueuedAt = System.nanoTime();
+        }
+    }
+
+    private final OutputStream outputStream;
+    private final BlockingQueue<Pending> queue;
+    private final Listener listener;
+    private final Executor executor;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final List<Pending> batch = new ArrayList<>();
+    // the frames encoded into buffer, not yet flushed
+    private final List<Pending> encoded = new ArrayList<>();
+    private byte[] buffer = new byte[MAX_COALESCE_BYTES];
+    private volatile boolean closed;
+    // set once both sides agreed on compression
+    private volatile PayloadCompressor compressor;
+
+    // stats, written by the drain only
+    private volatile long writtenFrames;
+    private volatile long socketWrites;
+    private volatile long totalLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private final AtomicLong rejectedFrames = new AtomicLong();
+
+    public OutboundWriter(OutputStream outputStream, int capacity, Executor executor, Listener listener) {
+        this.outputStream = outputStream;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    // queue a frame without blocking, returns false if the queue is full
+    public boolean offer(byte type, byte[] payload) {
+        return offer(type, 0, payload);
+    }
+
+    public boolean offer(byte type, int seq, byte[] payload) {
+        if (closed || !queue.offer(new Pending(type, seq, payload))) {
+            rejectedFrames.incrementAndGet();
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    // queue a frame, waiting up to the timeout for space
+    public boolean offer(byte type, byte[] payload, long timeout, TimeUnit unit) throws InterruptedException {
+        if (closed || !queue.offer(new Pending(type, 0, payload), timeout, unit)) {
+            rejectedFrames.incrementAndGet();
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    // compress chat messages from now on, only touched by the drain afterwards
+    public void setCompressor(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    public PayloadCompressor getCompressor() {
+        return compressor;
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    // one drain: write everything queued so far, then give the thread back
+    public void run() {
+        try {
+            if (!closed) {
+                queue.drainTo(batch);
+                if (!batch.isEmpty()) {
+                    writeBatch();
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                closed = true;
+                listener.onWriteFailed(e);
+            }
+        } catch (RuntimeException e) {
+            // a listener bug must not take the pool thread down
+            e.printStackTrace();
+        } finally {
+            batch.clear();
+            encoded.clear();
+            scheduled.set(false);
+        }
+        // frames offered after the drain started need another pass
+        if (!closed && !queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        int length = 0;
+        PayloadCompressor compressor = this.compressor;
+        for (int i = 0; i < batch.size(); i++) {
+            Pending pending = batch.get(i);
+            byte type = pending.type;
+            byte[] data = pending.payload;
+            int dataLength = data.length;
+            // compressed or not, the receiver takes no more than this once inflated
+            if (dataLength > FrameCodec.MAX_PAYLOAD_SIZE) {
+                reject(pending, new IllegalArgumentException("Payload too large: " + dataLength));
+                continue;
+            }
+            if (compressor != null && type == FrameCodec.TYPE_MESSAGE) {
+                try {
+                    int compressed = compressor.compress(data, 0, dataLength);
+                    if (compressed > 0) {
+                        type |= FrameCodec.FLAG_COMPRESSED;
+                        data = compressor.getBuffer();
+                        dataLength = compressed;
+                    }
+                } catch (RuntimeException e) {
+                    reject(pending, e);
+                    continue;
+                }
+            }
+
+            int frameSize = FrameCodec.HEADER_SIZE + dataLength;
+            if (length > 0 && length + frameSize > MAX_COALESCE_BYTES) {
+                flush(length);
+                length = 0;
+            }
+            if (frameSize > buffer.length) {
+                buffer = new byte[frameSize];
+            }
+            length += FrameCodec.encode(type, pending.seq, data, 0, dataLength, buffer, length);
+            encoded.add(pending);
+        }
+        if (length > 0) {
+            flush(length);
+        }
+    }
+
+    private void reject(Pending pending, RuntimeException e) {
+        rejectedFrames.incrementAndGet();
+        listener.onFrameRejected(pending.type, pending.seq, pending.payload, e);
+    }
+
+    private void flush(int length) throws IOException {
+        outputStream.write(buffer, 0, length);
+        outputStream.flush();
+        socketWrites++;
+
+        long now = System.nanoTime();
+        for (int i = 0; i < encoded.size(); i++) {
+            Pending pending = encoded.get(i);
+            long latency = now - pending.enqueuedAt;
+            writtenFrames++;
+            totalLatencyNanos += latency;
+            if (latency > maxLatencyNanos) {
+                maxLatencyNanos = latency;
+            }
+            listener.onWritten(pending.type, pending.seq, pending.payload, latency);
+        }
+        encoded.clear();
+    }
+
+    public long getWrittenFrames() {
+        return writtenFrames;
+    }
+
+    public long getSocketWrites() {
+        return socketWrites;
+    }
+
+    public long getRejectedFrames() {
+        return rejectedFrames.get();
+    }
+
+    public long getAverageLatencyNanos() {
+        long frames = writtenFrames;
+        return frames == 0 ? 0 : totalLatencyNanos / frames;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+}
@@ -0,0 +1,160 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Chat messages sent but not yet acknowledged by the peer. The window grows
+// while the measured RTT stays close to the best RTT seen (the link is not
+// queueing yet) and shrinks once it climbs, so the pipe stays full without
+// piling messages up in socket buffers. Timeouts follow RFC 6298 and
+// resend everything after the last ack (go-back-N).
+public class SendWindow {
+    static final int MIN_WINDOW = 2;
+    static final int INITIAL_WINDOW = 4;
+    static final int MAX_WINDOW = 64;
+    private static final long INITIAL_RTO_MILLIS = 1000;
+    private static final long MIN_RTO_MILLIS = 200;
+    private static final long MAX_RTO_MILLIS = 10000;
+
+    static class Entry {
+        final int seq;
+        final byte[] payload;
+        long sentAt;
+        boolean retransmitted;
+
+        Entry(int seq, byte[] payload, long sentAt) {
+            this.seq = seq;
+            this.payload = payload;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final ArrayDeque<Entry> unacked = new ArrayDeque<>();
+    private int nextSeq = 1;
+    private int window = INITIAL_WINDOW;
+
+    // all in nanoseconds
+    private long srtt = -1;
+    private long rttvar;
+    private long minRtt = Long.MAX_VALUE;
+    private long rto = INITIAL_RTO_MILLIS * 1000000;
+
+    private long retransmissions;
+
+    synchronized boolean isFull() {
+        return unacked.size() >= window;
+    }
+
+    synchronized Entry add(byte[] payload, long now) {
+        Entry entry = new Entry(nextSeq++, payload, now);
+        unacked.add(entry);
+        return entry;
+    }
+
+    // cumulative ack, returns the entries it covers
+    synchronized List<Entry> ack(int seq, long now) {
+        if (unacked.isEmpty() || unacked.peekFirst().seq - seq > 0) {
+            return Collections.emptyList();
+        }
+        List<Entry> acked = new ArrayList<>();
+        long sample = -1;
+        while (!unacked.isEmpty() && unacked.peekFirst().seq - seq <= 0) {
+            Entry entry = unacked.pollFirst();
+            acked.add(entry);
+            // Karn: resent frames give ambiguous samples
+            if (!entry.retransmitted) {
+                sample = now - entry.sentAt;
+            }
+        }
+        if (sample >= 0) {
+            onRttSample(sample);
+        }
+        return acked;
+    }
+
+    private void onRttSample(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.min(Math.max(srtt + 4 * rttvar, MIN_RTO_MILLIS * 1000000), MAX_RTO_MILLIS * 1000000);
+        minRtt = Math.min(minRtt, rtt);
+
+        if (srtt < minRtt + minRtt / 2) {
+            window = Math.min(window + 1, MAX_WINDOW);
+        } else if (srtt > 2 * minRtt) {
+            window = Math.max(window - 1, MIN_WINDOW);
+        }
+    }
+
+    // entries to send again because the oldest one timed out
+    synchronized List<Entry> due(long now) {
+        Entry oldest = unacked.peekFirst();
+        if (oldest == null || now - oldest.sentAt < rto) {
+            return Collections.emptyList();
+        }
+        rto = Math.min(rto * 2, MAX_RTO_MILLIS * 1000000);
+        window = Math.max(window / 2, MIN_WINDOW);
+        List<Entry> resend = new ArrayList<>(unacked);
+        for (Entry entry : resend) {
+            entry.retransmitted = true;
+            entry.sentAt = now;
+        }
+        retransmissions += resend.size();
+        return resend;
+    }
+
+    // the link came back and the peer has everything up to seq. No RTT
+    // sample: the outage would swamp it
+    synchronized List<Entry> resume(int seq) {
+        List<Entry> acked = new ArrayList<>();
+        while (!unacked.isEmpty() && unacked.peekFirst().seq - seq <= 0) {
+            acked.add(unacked.pollFirst());
+        }
+        return acked;
+    }
+
+    // everything still unacked, to send again right away on a new link
+    synchronized List<Entry> rewind(long now) {
+        List<Entry> resend = new ArrayList<>(unacked);
+        for (Entry entry : resend) {
+            entry.retransmitted = true;
+            entry.sentAt = now;
+        }
+        retransmissions += resend.size();
+        return resend;
+    }
+
+    // drop everything and count from 1 again, for a peer that lost our session
+    synchronized List<Entry> clear() {
+        List<Entry> dropped = new ArrayList<>(unacked);
+        unacked.clear();
+        nextSeq = 1;
+        return dropped;
+    }
+
+    public synchronized int getWindowSize() {
+        return window;
+    }
+
+    public synchronized int getInFlight() {
+        return unacked.size();
+    }
+
+    public synchronized long getSmoothedRttMillis() {
+        return srtt < 0 ? -1 : srtt / 1000000;
+    }
+
+    public synchronized long getRetransmissionTimeoutMillis() {
+        return rto / 1000000;
+    }
+
+    public synchronized long getRetransmissions() {
+        return retransmissions;
+    }
+}
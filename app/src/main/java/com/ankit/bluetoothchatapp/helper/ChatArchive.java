@@ -0,0 +1,352 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import com.ankit.bluetoothchatapp.models.Chats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Old messages moved out of SQLite, one pair of files per peer:
+//   <user id>.seg  append-only deflate blocks of BLOCK_MESSAGES messages
+//                  block: [int raw length][int count][deflate data]
+//                  message: [int id][byte sender][long created_at][int length][utf8]
+//   <user id>.idx  one entry per block: [int first id][int last id][long offset][int length]
+// Messages are appended in id order, so the sparse index is sorted and a page
+// needs a binary search plus one or two inflated blocks. Segments are read
+// through a memory mapping. A block only counts once its index entry is
+// written, anything after the last entry is a torn append and cut off on open.
+public class ChatArchive {
+    public static final int BLOCK_MESSAGES = 128;
+    private static final int INDEX_ENTRY_SIZE = 20;
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    private static class Segment {
+        final int userId;
+        final File data;
+        final File index;
+        int blocks;
+        int[] firstIds = new int[16];
+        int[] lastIds = new int[16];
+        long[] offsets = new long[16];
+        int[] lengths = new int[16];
+        // end of the last indexed block
+        long end;
+        MappedByteBuffer map;
+
+        // the block decoded last, paging backwards usually hits it again
+        int cachedBlock = -1;
+        List<Chats> cached;
+
+        Segment(int userId, File data, File index) {
+            this.userId = userId;
+            this.data = data;
+            this.index = index;
+        }
+
+        void addBlock(int firstId, int lastId, long offset, int length) {
+            if (blocks == firstIds.length) {
+                int capacity = blocks * 2;
+                firstIds = Arrays.copyOf(firstIds, capacity);
+                lastIds = Arrays.copyOf(lastIds, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            firstIds[blocks] = firstId;
+            lastIds[blocks] = lastId;
+            offsets[blocks] = offset;
+            lengths[blocks] = length;
+            blocks++;
+            end = offset + length;
+        }
+    }
+
+    private final File dir;
+    private final Map<Integer, Segment> segments = new HashMap<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private byte[] buffer = new byte[64 * 1024];
+
+    public ChatArchive(File dir) {
+        this.dir = dir;
+    }
+
+    // newest archived message id of userId, 0 if none
+    public synchronized int getLastId(int userId) throws IOException {
+        Segment segment = segment(userId);
+        return segment.blocks == 0 ? 0 : segment.lastIds[segment.blocks - 1];
+    }
+
+    // chats must be of userId, ordered by id and newer than getLastId(userId).
+    // Returns once they are on disk
+    public synchronized void append(int userId, List<Chats> chats) throws IOException {
+        if (chats.isEmpty()) {
+            return;
+        }
+        Segment segment = segment(userId);
+        if (chats.get(0).id <= getLastId(userId)) {
+            throw new IllegalArgumentException("Already archived: " + chats.get(0).id);
+        }
+        ByteBuffer entries = ByteBuffer.allocate((chats.size() / BLOCK_MESSAGES + 1) * INDEX_ENTRY_SIZE);
+        try (RandomAccessFile file = new RandomAccessFile(segment.data, "rw")) {
+            FileChannel channel = file.getChannel();
+            long offset = segment.end;
+            for (int start = 0; start < chats.size(); start += BLOCK_MESSAGES) {
+                List<Chats> block = chats.subList(start, Math.min(start + BLOCK_MESSAGES, chats.size()));
+                ByteBuffer encoded = encode(block);
+                int length = encoded.remaining();
+                while (encoded.hasRemaining()) {
+                    channel.write(encoded, offset + length - encoded.remaining());
+                }
+                entries.putInt(block.get(0).id).putInt(block.get(block.size() - 1).id).putLong(offset).putInt(length);
+                offset += length;
+            }
+            channel.force(false);
+        }
+        entries.flip();
+        try (RandomAccessFile file = new RandomAccessFile(segment.index, "rw")) {
+            FileChannel channel = file.getChannel();
+            long position = (long) segment.blocks * INDEX_ENTRY_SIZE;
+            while (entries.hasRemaining()) {
+                position += channel.write(entries, position);
+            }
+            channel.force(false);
+        }
+        entries.rewind();
+        while (entries.hasRemaining()) {
+            segment.addBlock(entries.getInt(), entries.getInt(), entries.getLong(), entries.getInt());
+        }
+    }
+
+    // up to limit archived messages of userId older than beforeId, oldest first
+    public synchronized List<Chats> getChats(int userId, int beforeId, int limit) throws IOException {
+        Segment segment = segment(userId);
+        int block = lastBlockBefore(segment, beforeId);
+        if (block < 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<Chats> newestFirst = new ArrayList<>(Math.min(limit, BLOCK_MESSAGES * 2));
+        for (; block >= 0 && newestFirst.size() < limit; block--) {
+            List<Chats> chats = decode(segment, block);
+            for (int i = chats.size() - 1; i >= 0 && newestFirst.size() < limit; i--) {
+                if (chats.get(i).id < beforeId) {
+                    newestFirst.add(chats.get(i));
+                }
+            }
+        }
+        Collections.reverse(newestFirst);
+        return newestFirst;
+    }
+
+    // up to limit archived messages of userId newer than afterId, oldest first
+    public synchronized List<Chats> getChatsAfter(int userId, int afterId, int limit) throws IOException {
+        Segment segment = segment(userId);
+        List<Chats> oldestFirst = new ArrayList<>(Math.min(limit, BLOCK_MESSAGES * 2));
+        // the first block that can hold an id after afterId
+        int block = lastBlockBefore(segment, afterId + 1);
+        if (block < 0 || segment.lastIds[block] <= afterId) {
+            block++;
+        }
+        for (; block < segment.blocks && oldestFirst.size() < limit; block++) {
+            for (Chats chat : decode(segment, block)) {
+                if (chat.id > afterId && oldestFirst.size() < limit) {
+                    oldestFirst.add(chat);
+                }
+            }
+        }
+        return oldestFirst;
+    }
+
+    // archived messages of userId
+    public synchronized int getCount(int userId) throws IOException {
+        Segment segment = segment(userId);
+        if (segment.blocks == 0) {
+            return 0;
+        }
+        map(segment);
+        int count = 0;
+        for (int i = 0; i < segment.blocks; i++) {
+            count += segment.map.getInt((int) segment.offsets[i] + 4);
+        }
+        return count;
+    }
+
+    // bytes of all segments and indexes on disk
+    public synchronized long getSizeBytes() {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    // index of the newest block holding an id below beforeId, -1 if none
+    private static int lastBlockBefore(Segment segment, int beforeId) {
+        int low = 0;
+        int high = segment.blocks - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segment.firstIds[mid] < beforeId) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private Segment segment(int userId) throws IOException {
+        Segment segment = segments.get(userId);
+        if (segment == null) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            segment = new Segment(userId, new File(dir, userId + ".seg"), new File(dir, userId + ".idx"));
+            load(segment);
+            segments.put(userId, segment);
+        }
+        return segment;
+    }
+
+    private static void load(Segment segment) throws IOException {
+        if (segment.index.exists()) {
+            try (RandomAccessFile file = new RandomAccessFile(segment.index, "rw")) {
+                long entries = file.length() / INDEX_ENTRY_SIZE;
+                // a torn index write
+                file.setLength(entries * INDEX_ENTRY_SIZE);
+                ByteBuffer index = ByteBuffer.allocate((int) (entries * INDEX_ENTRY_SIZE));
+                FileChannel channel = file.getChannel();
+                while (index.hasRemaining()) {
+                    if (channel.read(index, index.position()) < 0) {
+                        break;
+                    }
+                }
+                index.flip();
+                while (index.remaining() >= INDEX_ENTRY_SIZE) {
+                    segment.addBlock(index.getInt(), index.getInt(), index.getLong(), index.getInt());
+                }
+            }
+        }
+        if (segment.data.exists() && segment.data.length() > segment.end) {
+            // blocks written before a crash but never indexed
+            try (RandomAccessFile file = new RandomAccessFile(segment.data, "rw")) {
+                file.setLength(segment.end);
+            }
+        }
+    }
+
+    private ByteBuffer encode(List<Chats> chats) {
+        int rawLength = 0;
+        List<byte[]> messages = new ArrayList<>(chats.size());
+        for (Chats chat : chats) {
+            byte[] message = chat.message.getBytes(StandardCharsets.UTF_8);
+            messages.add(message);
+            rawLength += 17 + message.length;
+        }
+        ByteBuffer raw = ByteBuffer.allocate(rawLength);
+        for (int i = 0; i < chats.size(); i++) {
+            Chats chat = chats.get(i);
+            raw.putInt(chat.id).put((byte) chat.sender).putLong(chat.created_at)
+                    .putInt(messages.get(i).length).put(messages.get(i));
+        }
+
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, rawLength);
+        deflater.finish();
+        ensureCapacity(BLOCK_HEADER_SIZE + rawLength + rawLength / 100 + 64);
+        int size = BLOCK_HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (size == buffer.length) {
+                ensureCapacity(buffer.length * 2);
+            }
+            size += deflater.deflate(buffer, size, buffer.length - size);
+        }
+        ByteBuffer block = ByteBuffer.wrap(buffer, 0, size);
+        block.putInt(0, rawLength).putInt(4, chats.size());
+        return block;
+    }
+
+    private List<Chats> decode(Segment segment, int block) throws IOException {
+        if (segment.cachedBlock == block) {
+            return segment.cached;
+        }
+        map(segment);
+        ByteBuffer data = segment.map.duplicate();
+        data.position((int) segment.offsets[block]);
+        int rawLength = data.getInt();
+        int count = data.getInt();
+        int length = segment.lengths[block] - BLOCK_HEADER_SIZE;
+        ensureCapacity(length + rawLength);
+        data.get(buffer, 0, length);
+
+        inflater.reset();
+        inflater.setInput(buffer, 0, length);
+        try {
+            int size = 0;
+            while (size < rawLength) {
+                int n = inflater.inflate(buffer, length + size, rawLength - size);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated archive block " + block + " in " + segment.data);
+                }
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt archive block " + block + " in " + segment.data, e);
+        }
+
+        ByteBuffer raw = ByteBuffer.wrap(buffer, length, rawLength);
+        List<Chats> chats = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int id = raw.getInt();
+            int sender = raw.get();
+            long createdAt = raw.getLong();
+            int messageLength = raw.getInt();
+            String message = new String(buffer, raw.position(), messageLength, StandardCharsets.UTF_8);
+            raw.position(raw.position() + messageLength);
+            chats.add(new Chats(id, message, segment.userId, sender, createdAt));
+        }
+        segment.cachedBlock = block;
+        segment.cached = chats;
+        return chats;
+    }
+
+    // map the indexed part of the segment, again after appends grew it
+    private static void map(Segment segment) throws IOException {
+        if (segment.map != null && segment.map.capacity() >= segment.end) {
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.data, "r")) {
+            // stays valid after the channel is closed
+            segment.map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segment.end);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity) {
+            buffer = new byte[Math.max(capacity, buffer.length * 2)];
+        }
+    }
+
+    public synchronized void close() {
+        deflater.end();
+        inflater.end();
+        segments.clear();
+    }
+}
@@ -0,0 +1,142 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.ankit.bluetoothchatapp.models.Chats;
+import com.ankit.bluetoothchatapp.models.Users;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Background thread moving messages older than the archive age from SQLite
+// into the ChatArchive. Per user only the oldest run of messages moves, so
+// the archive always holds a prefix of the history by id and a page can be
+// read from the database first and completed from the archive. Rows are
+// deleted through the write queue only after their block is on disk; a
+// crash in between leaves them in both places, readers skip the copies.
+// Search still finds them, their text moves to the archive's FTS table.
+class ChatArchiver extends Thread {
+    static final long DEFAULT_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final long INITIAL_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(6);
+    private static final int BATCH = 4 * ChatArchive.BLOCK_MESSAGES;
+
+    private final DatabaseHelper helper;
+    private final ChatArchive archive;
+    // held for a whole pass
+    private final Object passLock = new Object();
+    private volatile long ageMillis = DEFAULT_AGE_MILLIS;
+    // guarded by this
+    private boolean requested;
+
+    // counters
+    private volatile long archivedChats;
+    private volatile long passes;
+
+    ChatArchiver(DatabaseHelper helper, ChatArchive archive) {
+        this.helper = helper;
+        this.archive = archive;
+        setName("ChatArchiver");
+        setDaemon(true);
+        setPriority(MIN_PRIORITY);
+    }
+
+    void setAgeMillis(long ageMillis) {
+        this.ageMillis = ageMillis;
+    }
+
+    // run a pass now instead of waiting for the next interval
+    synchronized void request() {
+        requested = true;
+        notifyAll();
+    }
+
+    public void run() {
+        long delay = INITIAL_DELAY_MILLIS;
+        while (true) {
+            try {
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + delay;
+                    long left;
+                    while (!requested && (left = deadline - System.currentTimeMillis()) > 0) {
+                        wait(left);
+                    }
+                    requested = false;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            archive(System.currentTimeMillis() - ageMillis);
+            delay = INTERVAL_MILLIS;
+        }
+    }
+
+    private void archive(long cutoff) {
+        synchronized (passLock) {
+            try {
+                for (Users user : helper.getAllUsers()) {
+                    archiveUser(user.id, cutoff);
+                }
+            } catch (IOException | SQLiteException e) {
+                // nothing was deleted that is not archived, try again next pass
+                e.printStackTrace();
+            }
+            passes++;
+        }
+    }
+
+    // while held no messages move between the database and the archive
+    Object lock() {
+        return passLock;
+    }
+
+    private void archiveUser(int userId, long cutoff) throws IOException {
+        int lastId = archive.getLastId(userId);
+        if (lastId > 0) {
+            // left over if the process died between append and delete
+            helper.deleteArchivedChats(userId, lastId);
+        }
+        SQLiteDatabase db = helper.getReadableDatabase();
+        while (true) {
+            List<Chats> batch = new ArrayList<>(BATCH);
+            boolean more;
+            Cursor cursor = db.rawQuery(ChatSchema.SELECT_CHATS_AFTER,
+                    new String[]{String.valueOf(userId), String.valueOf(lastId), String.valueOf(BATCH)});
+            try {
+                more = cursor.getCount() == BATCH;
+                while (cursor.moveToNext()) {
+                    if (cursor.getLong(4) >= cutoff) {
+                        // stop at the first recent message, newer ones stay too
+                        more = false;
+                        break;
+                    }
+                    batch.add(new Chats(cursor.getInt(0), cursor.getString(1), cursor.getInt(2), cursor.getInt(3), cursor.getLong(4)));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            archive.append(userId, batch);
+            lastId = batch.get(batch.size() - 1).id;
+            helper.deleteArchivedChats(userId, lastId);
+            archivedChats += batch.size();
+            if (!more) {
+                return;
+            }
+        }
+    }
+
+    long getArchivedChats() {
+        return archivedChats;
+    }
+
+    long getPasses() {
+        return passes;
+    }
+}
@@ -0,0 +1,315 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import com.ankit.bluetoothchatapp.models.Chats;
+import com.ankit.bluetoothchatapp.models.Users;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Backup file of users and chats, written and read one record at a time so
+// neither side holds more than a record in memory. gzip around:
+//   [int MAGIC][int VERSION]
+//   user:  [byte RECORD_USER][int id][string name][string address]
+//   chat:  [byte RECORD_CHAT][int id][int user id][byte sender][long created_at][long uid][string message]
+//   end:   [byte RECORD_END][long users][long chats]
+// string: [int length, -1 for null][utf8]. Every chat follows its user; ids
+// are the ones of the exporting device and get mapped on import. Version 1
+// chats have no uid.
+public class ChatBackup {
+    public static final int MAGIC = 0x42544342; // "BTCB"
+    public static final int VERSION = 2;
+
+    public static final int RECORD_END = 0;
+    public static final int RECORD_USER = 1;
+    public static final int RECORD_CHAT = 2;
+
+    // chats read per query on export, rows written per transaction on import
+    public static final int EXPORT_BATCH = 1000;
+    public static final int IMPORT_BATCH = 10000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_STRING_SIZE = 16 * 1024 * 1024;
+
+    public static class Writer {
+        private final GZIPOutputStream gzip;
+        private final DataOutputStream out;
+        private long users;
+        private long chats;
+
+        public Writer(OutputStream stream) throws IOException {
+            gzip = new GZIPOutputStream(stream, BUFFER_SIZE);
+            out = new DataOutputStream(new BufferedOutputStream(gzip, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        public void writeUser(Users user) throws IOException {
+            out.writeByte(RECORD_USER);
+            out.writeInt(user.id);
+            writeString(user.name);
+            writeString(user.address);
+            users++;
+        }
+
+        public void writeChat(Chats chat) throws IOException {
+            out.writeByte(RECORD_CHAT);
+            out.writeInt(chat.id);
+            out.writeInt(chat.other_user_id);
+            out.writeByte(chat.sender);
+            out.writeLong(chat.created_at);
+            out.writeLong(chat.uid);
+            writeString(chat.message);
+            chats++;
+        }
+
+        // writes the end record and the gzip trailer, the stream stays open
+        public void finish() throws IOException {
+            out.writeByte(RECORD_END);
+            out.writeLong(users);
+            out.writeLong(chats);
+            out.flush();
+            gzip.finish();
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    public static class Reader {
+        private final DataInputStream in;
+        private final int version;
+        private byte[] buffer = new byte[256];
+        private Users user;
+        private Chats chat;
+        private long users;
+        private long chats;
+
+        public Reader(InputStream stream) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(stream, BUFFER_SIZE), BUFFER_SIZE));
+            int magic = in.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("Not a chat backup");
+            }
+            version = in.readInt();
+            if (version > VERSION) {
+                throw new IOException("Backup version " + version + " is newer than this app");
+            }
+        }
+
+        // type of the next record, its content is in getUser() or getChat().
+        // RECORD_END once the whole file is read and checked
+        public int next() throws IOException {
+            try {
+                int type = in.readByte();
+                switch (type) {
+                    case RECORD_USER:
+                        user = new Users(in.readInt(), readString(), readString());
+                        users++;
+                        return type;
+                    case RECORD_CHAT:
+                        int id = in.readInt();
+                        int userId = in.readInt();
+                        int sender = in.readByte();
+                        long createdAt = in.readLong();
+                        long uid = version >= 2 ? in.readLong() : 0;
+                        chat = new Chats(id, readString(), userId, sender, createdAt);
+                        chat.uid = uid;
+                        chats++;
+                        return type;
+                    case RECORD_END:
+                        if (in.readLong() != users || in.readLong() != chats) {
+                            throw new IOException("Backup is missing records");
+                        }
+                        // reading past the end checks the gzip trailer
+                        if (in.read() != -1) {
+                            throw new IOException("Data after the end of the backup");
+                        }
+                        return type;
+                    default:
+                        throw new IOException("Unknown record " + type);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Backup is truncated", e);
+            }
+        }
+
+        public Users getUser() {
+            return user;
+        }
+
+        public Chats getChat() {
+            return chat;
+        }
+
+        private String readString() throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            if (length > MAX_STRING_SIZE) {
+                throw new IOException("Invalid string length: " + length);
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Where an export reads from. The app reads SQLite and the archive, the
+    // benchmark module a desktop SQLite through JDBC
+    public interface Source {
+        List<Users> getUsers() throws IOException;
+
+        // up to limit chats of userId with an id above lastId, oldest first
+        List<Chats> getChatsAfter(int userId, int lastId, int limit) throws IOException;
+    }
+
+    // Where an import writes to. Calls arrive in file order, commit() ends
+    // every IMPORT_BATCH rows and the last, partial batch
+    public interface Target {
+        // messageKey() of every stored message of userId that a uid cannot
+        // match: those without one and the archived ones. Called once per
+        // user, before the first of its chats
+        Set<Long> getMessageKeys(int userId) throws IOException;
+
+        // id of the user stored with this address, -1 for none
+        int findUser(String address) throws IOException;
+
+        // the new user's id
+        int insertUser(Users user) throws IOException;
+
+        // false when the user already has a message with this uid
+        boolean insertChat(Chats chat, int userId) throws IOException;
+
+        void commit() throws IOException;
+    }
+
+    // Every user, then every chat of each user in id order, EXPORT_BATCH
+    // rows per query
+    public static Stats export(Source source, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        Writer writer = new Writer(out);
+        List<Users> users = source.getUsers();
+        for (Users user : users) {
+            writer.writeUser(user);
+        }
+        long chats = 0;
+        for (Users user : users) {
+            int lastId = 0;
+            List<Chats> batch;
+            do {
+                batch = source.getChatsAfter(user.id, lastId, EXPORT_BATCH);
+                for (Chats chat : batch) {
+                    writer.writeChat(chat);
+                    lastId = chat.id;
+                }
+                chats += batch.size();
+            } while (batch.size() == EXPORT_BATCH);
+        }
+        writer.finish();
+        return new Stats(users.size(), chats, (System.nanoTime() - start) / 1000000);
+    }
+
+    // Users are matched by address, chats go to the user they belong to here.
+    // A chat is skipped when the user has it already: same uid, or same
+    // time, sender and text as a message getMessageKeys() returned. That
+    // covers rows exported without uid and rows archived since, so importing
+    // a file twice adds nothing the second time. Counts only what was added
+    public static Stats importFrom(InputStream in, Target target) throws IOException {
+        long start = System.nanoTime();
+        Reader reader = new Reader(in);
+        // backup user id -> id here
+        Map<Integer, Integer> userIds = new HashMap<>();
+        // user id here -> what was stored before the import
+        Map<Integer, Set<Long>> messageKeys = new HashMap<>();
+        long users = 0;
+        long chats = 0;
+        int rows = 0;
+        int type;
+        while ((type = reader.next()) != RECORD_END) {
+            if (type == RECORD_USER) {
+                Users user = reader.getUser();
+                int id = target.findUser(user.address);
+                if (id == -1) {
+                    id = target.insertUser(user);
+                    users++;
+                }
+                userIds.put(user.id, id);
+            } else {
+                Chats chat = reader.getChat();
+                Integer userId = userIds.get(chat.other_user_id);
+                if (userId == null) {
+                    throw new IOException("Chat " + chat.id + " of unknown user " + chat.other_user_id);
+                }
+                Set<Long> keys = messageKeys.get(userId);
+                if (keys == null) {
+                    keys = target.getMessageKeys(userId);
+                    messageKeys.put(userId, keys);
+                }
+                if (!keys.contains(messageKey(chat.created_at, chat.sender, chat.message)) && target.insertChat(chat, userId)) {
+                    chats++;
+                }
+            }
+            if (++rows == IMPORT_BATCH) {
+                target.commit();
+                rows = 0;
+            }
+        }
+        target.commit();
+        return new Stats(users, chats, (System.nanoTime() - start) / 1000000);
+    }
+
+    // identity of a message without its uid, for matching an imported chat
+    // against what is stored
+    public static long messageKey(long createdAt, int sender, String message) {
+        long key = createdAt * 31 + sender;
+        return key * 0x9E3779B97F4A7C15L + (message == null ? 0 : message.hashCode());
+    }
+
+    // what an export or import moved and how fast
+    public static class Stats {
+        public final long users;
+        public final long chats;
+        public final long elapsedMillis;
+
+        public Stats(long users, long chats, long elapsedMillis) {
+            this.users = users;
+            this.chats = chats;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getRowsPerSecond() {
+            return elapsedMillis == 0 ? 0 : (users + chats) * 1000 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return users + " users, " + chats + " chats in " + elapsedMillis + " ms (" + getRowsPerSecond() + " rows/s)";
+        }
+    }
+
+    private ChatBackup() {
+    }
+}
@@ -0,0 +1,87 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import com.ankit.bluetoothchatapp.controller.MessageStore;
+import com.ankit.bluetoothchatapp.models.Chats;
+import com.ankit.bluetoothchatapp.models.Users;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The chat database as ChatController's MessageStore. Peers are users by
+// Bluetooth address; a peer without a user row has no history yet.
+public class ChatHistoryStore implements MessageStore {
+    // how long a session thread waits for synced messages to be committed
+    private static final long WRITE_TIMEOUT_MILLIS = 10000;
+
+    private final DatabaseHelper db;
+
+    public ChatHistoryStore(DatabaseHelper db) {
+        this.db = db;
+    }
+
+    @Override
+    public long[] getSyncIds(String address) {
+        Users user = db.getUser(address);
+        return user == null ? new long[0] : db.getSyncIds(user.id);
+    }
+
+    @Override
+    public List<Message> getMessages(String address, long[] uids) {
+        List<Message> messages = new ArrayList<>();
+        Users user = db.getUser(address);
+        if (user == null) {
+            return messages;
+        }
+        for (Chats chat : db.getSyncChats(user.id, uids)) {
+            messages.add(new Message(chat.uid, chat.sender == Chats.SENDER_ME, chat.created_at, chat.message));
+        }
+        return messages;
+    }
+
+    // goes through the write queue like every other insert and waits for the
+    // commit, 0 when it did not come in time
+    @Override
+    public int addMessages(String address, String name, List<Message> messages) {
+        List<Chats> chats = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            chats.add(toChat(message));
+        }
+        final CountDownLatch committed = new CountDownLatch(1);
+        final AtomicLong added = new AtomicLong();
+        db.addSyncedChats(address, name != null ? name : address, chats, new DatabaseHelper.InsertCallback() {
+            @Override
+            public void onInserted(long id) {
+                // -1 when the user could not be created
+                added.set(Math.max(id, 0));
+                committed.countDown();
+            }
+        });
+        try {
+            committed.await(WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return (int) added.get();
+    }
+
+    // queued behind the other writes, stored runs on the main thread after the commit
+    @Override
+    public void addMessage(String address, String name, Message message, final Runnable stored) {
+        db.addSyncedChats(address, name, Collections.singletonList(toChat(message)), new DatabaseHelper.InsertCallback() {
+            @Override
+            public void onInserted(long id) {
+                stored.run();
+            }
+        });
+    }
+
+    private static Chats toChat(Message message) {
+        Chats chat = new Chats(0, message.text, 0, message.outgoing ? Chats.SENDER_ME : Chats.SENDER_OTHER, message.createdAt);
+        chat.uid = message.uid;
+        return chat;
+    }
+}
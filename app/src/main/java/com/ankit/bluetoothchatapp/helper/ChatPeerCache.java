@@ -0,0 +1,83 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import com.ankit.bluetoothchatapp.models.PeerInfo;
+import com.ankit.bluetoothchatapp.transport.PeerCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The peers table as a PeerCache. All rows are held in memory, loaded on
+// first use; every change is merged here and written through the write
+// queue as a whole row, so updates from discovery and connects do not race.
+public class ChatPeerCache implements PeerCache {
+    private final DatabaseHelper db;
+    // by address, null until loaded
+    private Map<String, PeerInfo> peers;
+
+    ChatPeerCache(DatabaseHelper db) {
+        this.db = db;
+    }
+
+    @Override
+    public synchronized PeerInfo getPeer(String address) {
+        return load().get(address);
+    }
+
+    @Override
+    public synchronized List<PeerInfo> getPeersSeenSince(long time) {
+        List<PeerInfo> seen = new ArrayList<>();
+        for (PeerInfo peer : load().values()) {
+            if (peer.last_seen >= time) {
+                seen.add(peer);
+            }
+        }
+        return seen;
+    }
+
+    @Override
+    public synchronized void onPeerSeen(String address, String name, int rssi, int deviceClass) {
+        PeerInfo known = load().get(address);
+        if (known == null) {
+            put(new PeerInfo(address, name, System.currentTimeMillis(), rssi, deviceClass, PeerInfo.CHANNEL_UNKNOWN));
+        } else {
+            put(new PeerInfo(address, name != null ? name : known.name, System.currentTimeMillis(), rssi,
+                    deviceClass != 0 ? deviceClass : known.device_class, known.channel));
+        }
+    }
+
+    @Override
+    public synchronized void onPeerConnected(String address, String name, int channel) {
+        PeerInfo known = load().get(address);
+        if (known == null) {
+            put(new PeerInfo(address, name, System.currentTimeMillis(), PeerInfo.RSSI_UNKNOWN, 0, channel));
+        } else {
+            put(new PeerInfo(address, name != null ? name : known.name, System.currentTimeMillis(), known.rssi,
+                    known.device_class, channel != PeerInfo.CHANNEL_UNKNOWN ? channel : known.channel));
+        }
+    }
+
+    @Override
+    public synchronized void clearChannel(String address) {
+        PeerInfo known = load().get(address);
+        if (known != null && known.channel != PeerInfo.CHANNEL_UNKNOWN) {
+            put(new PeerInfo(known.address, known.name, known.last_seen, known.rssi, known.device_class, PeerInfo.CHANNEL_UNKNOWN));
+        }
+    }
+
+    private void put(PeerInfo peer) {
+        peers.put(peer.address, peer);
+        db.putPeer(peer);
+    }
+
+    private Map<String, PeerInfo> load() {
+        if (peers == null) {
+            peers = new HashMap<>();
+            for (PeerInfo peer : db.getPeers()) {
+                peers.put(peer.address, peer);
+            }
+        }
+        return peers;
+    }
+}
@@ -0,0 +1,420 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Tables and statements of the chat database. Plain Java so the benchmark
+// module can run the exact same SQL on a desktop SQLite.
+public class ChatSchema {
+    public static final int VERSION = 9;
+
+    public static final String USERS_TABLE = "users";
+    public static final String KEY_ID = "id";
+    public static final String KEY_BLUETOOTH_NAME = "name";
+    public static final String KEY_BLUETOOTH_ADDRESS = "address";
+
+    public static final String CHATS_TABLE = "chats";
+    public static final String KEY_MESSAGE = "message";
+    public static final String KEY_OTHER_USER = "other_user_id";
+    public static final String KEY_SENDER = "sender"; // 1 - me,0 - other
+    public static final String KEY_CREATED_AT = "created_at"; // milliseconds since epoch
+    public static final String KEY_UID = "uid"; // same on both devices, NULL for messages from before version 5
+
+    // one row per user: the newest message and what is unread, kept by triggers
+    public static final String CONVERSATIONS_TABLE = "conversations";
+    public static final String KEY_USER_ID = "user_id";
+    public static final String KEY_LAST_CHAT_ID = "last_chat_id";
+    public static final String KEY_SNIPPET = "snippet";
+    public static final String KEY_LAST_AT = "last_at";
+    public static final String KEY_UNREAD = "unread";
+    public static final int SNIPPET_LENGTH = 100;
+
+    // Bluetooth devices seen by discovery or connected to, for fast reconnects
+    public static final String PEERS_TABLE = "peers";
+    public static final String KEY_LAST_SEEN = "last_seen"; // milliseconds since epoch
+    public static final String KEY_RSSI = "rssi"; // dBm, -32768 when unknown
+    public static final String KEY_DEVICE_CLASS = "device_class";
+    public static final String KEY_CHANNEL = "channel"; // RFCOMM channel of the chat service, -1 when unknown
+
+    public static final String CREATE_USERS = "CREATE TABLE " + USERS_TABLE + "("
+            + KEY_ID + " INTEGER PRIMARY KEY,"
+            + KEY_BLUETOOTH_NAME + " TEXT,"
+            + KEY_BLUETOOTH_ADDRESS + " TEXT" + ")";
+
+    private static final String CHATS_COLUMNS = "("
+            + KEY_ID + " INTEGER PRIMARY KEY,"
+            + KEY_MESSAGE + " TEXT,"
+            + KEY_OTHER_USER + " INTEGER NOT NULL REFERENCES " + USERS_TABLE + "(" + KEY_ID + "),"
+            + KEY_SENDER + " INTEGER NOT NULL DEFAULT 0" + ")";
+
+    // From version 8 ids are never reused, even after the archiver emptied
+    // the table: it deletes by id range and must not hit newer rows
+    private static final String CHATS_COLUMNS_V8 = "("
+            + KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + KEY_MESSAGE + " TEXT,"
+            + KEY_OTHER_USER + " INTEGER NOT NULL REFERENCES " + USERS_TABLE + "(" + KEY_ID + "),"
+            + KEY_SENDER + " INTEGER NOT NULL DEFAULT 0,"
+            + KEY_CREATED_AT + " INTEGER NOT NULL DEFAULT 0,"
+            + KEY_UID + " INTEGER" + ")";
+
+    public static final String CREATE_CHATS = "CREATE TABLE " + CHATS_TABLE + CHATS_COLUMNS_V8;
+
+    private static final String ADD_CREATED_AT = "ALTER TABLE " + CHATS_TABLE + " ADD COLUMN " + KEY_CREATED_AT + " INTEGER NOT NULL DEFAULT 0";
+
+    private static final String ADD_UID = "ALTER TABLE " + CHATS_TABLE + " ADD COLUMN " + KEY_UID + " INTEGER";
+
+    // a message arriving twice, live and through history sync, is stored once
+    private static final String CREATE_UID_INDEX = "CREATE UNIQUE INDEX chats_uid ON " + CHATS_TABLE
+            + "(" + KEY_OTHER_USER + "," + KEY_UID + ")";
+
+    // a conversation in id order is one range of this index
+    private static final String CHATS_INDEX = "chats_other_user_id";
+    public static final String CREATE_CHATS_INDEX = "CREATE INDEX " + CHATS_INDEX + " ON " + CHATS_TABLE
+            + "(" + KEY_OTHER_USER + "," + KEY_ID + ")";
+
+    // Full-text index of chats.message. External content: the text stays in
+    // chats only, the triggers keep the index in step with every change
+    public static final String FTS_TABLE = "chats_fts";
+
+    private static final String[] FTS_TRIGGERS = {
+            "CREATE TRIGGER chats_fts_insert AFTER INSERT ON " + CHATS_TABLE + " BEGIN"
+                    + " INSERT INTO " + FTS_TABLE + "(docid," + KEY_MESSAGE + ") VALUES (new." + KEY_ID + ",new." + KEY_MESSAGE + "); END",
+            "CREATE TRIGGER chats_fts_delete BEFORE DELETE ON " + CHATS_TABLE + " BEGIN"
+                    + " DELETE FROM " + FTS_TABLE + " WHERE docid=old." + KEY_ID + "; END",
+            "CREATE TRIGGER chats_fts_update_before BEFORE UPDATE OF " + KEY_MESSAGE + " ON " + CHATS_TABLE + " BEGIN"
+                    + " DELETE FROM " + FTS_TABLE + " WHERE docid=old." + KEY_ID + "; END",
+            "CREATE TRIGGER chats_fts_update_after AFTER UPDATE OF " + KEY_MESSAGE + " ON " + CHATS_TABLE + " BEGIN"
+                    + " INSERT INTO " + FTS_TABLE + "(docid," + KEY_MESSAGE + ") VALUES (new." + KEY_ID + ",new." + KEY_MESSAGE + "); END",
+    };
+
+    private static final String[] CREATE_FTS = concat(new String[]{
+            "CREATE VIRTUAL TABLE " + FTS_TABLE + " USING fts4(content=\"" + CHATS_TABLE + "\", "
+                    + KEY_MESSAGE + ", tokenize=unicode61)",
+    }, FTS_TRIGGERS);
+
+    private static final String REBUILD_FTS = "INSERT INTO " + FTS_TABLE + "(" + FTS_TABLE + ") VALUES ('rebuild')";
+
+    // Archived messages stay searchable here once the archiver deleted their
+    // rows. It has to hold its own copy of the text, snippet() cannot read
+    // the archive; the user and sender ride along unindexed. Only search
+    // reads it, the chats table and its index stay small
+    public static final String ARCHIVE_FTS_TABLE = "chats_archive_fts";
+
+    private static final String CREATE_ARCHIVE_FTS = "CREATE VIRTUAL TABLE " + ARCHIVE_FTS_TABLE + " USING fts4("
+            + KEY_MESSAGE + ", " + KEY_OTHER_USER + ", " + KEY_SENDER + ", notindexed=" + KEY_OTHER_USER + ", notindexed=" + KEY_SENDER
+            + ", tokenize=unicode61)";
+
+    // arguments: the archived id, the message, the other user's id, the
+    // sender, the id again. Nothing when chats still has the row, it is
+    // still in FTS_TABLE and COPY_ARCHIVED_TO_FTS takes it over later
+    public static final String INDEX_ARCHIVED_CHAT = "INSERT INTO " + ARCHIVE_FTS_TABLE + "(docid," + KEY_MESSAGE + ","
+            + KEY_OTHER_USER + "," + KEY_SENDER + ") SELECT ?,?,?,? WHERE NOT EXISTS"
+            + " (SELECT 1 FROM " + CHATS_TABLE + " WHERE " + KEY_ID + "=?)";
+
+    // Every chat insert moves its conversation to the top in the same
+    // transaction. No UPSERT before SQLite 3.24, hence insert-or-ignore + update
+    private static final String[] CONVERSATION_TRIGGERS = {
+            "CREATE TRIGGER conversations_user_insert AFTER INSERT ON " + USERS_TABLE + " BEGIN"
+                    + " INSERT OR IGNORE INTO " + CONVERSATIONS_TABLE + "(" + KEY_USER_ID + ") VALUES (new." + KEY_ID + "); END",
+            "CREATE TRIGGER conversations_chat_insert AFTER INSERT ON " + CHATS_TABLE + " BEGIN"
+                    + " INSERT OR IGNORE INTO " + CONVERSATIONS_TABLE + "(" + KEY_USER_ID + ") VALUES (new." + KEY_OTHER_USER + ");"
+                    + " UPDATE " + CONVERSATIONS_TABLE + " SET "
+                    + KEY_LAST_CHAT_ID + "=new." + KEY_ID + ","
+                    + KEY_SNIPPET + "=substr(new." + KEY_MESSAGE + ",1," + SNIPPET_LENGTH + "),"
+                    + KEY_LAST_AT + "=new." + KEY_CREATED_AT + ","
+                    + KEY_UNREAD + "=" + KEY_UNREAD + "+(new." + KEY_SENDER + "=0)"
+                    + " WHERE " + KEY_USER_ID + "=new." + KEY_OTHER_USER + "; END",
+    };
+
+    // newest first, ties in chat id order
+    private static final String CREATE_CONVERSATIONS_INDEX = "CREATE INDEX conversations_last_at ON " + CONVERSATIONS_TABLE
+            + "(" + KEY_LAST_AT + "," + KEY_LAST_CHAT_ID + ")";
+
+    private static final String[] CREATE_CONVERSATIONS = concat(new String[]{
+            "CREATE TABLE " + CONVERSATIONS_TABLE + "("
+                    + KEY_USER_ID + " INTEGER PRIMARY KEY REFERENCES " + USERS_TABLE + "(" + KEY_ID + "),"
+                    + KEY_LAST_CHAT_ID + " INTEGER,"
+                    + KEY_SNIPPET + " TEXT,"
+                    + KEY_LAST_AT + " INTEGER NOT NULL DEFAULT 0,"
+                    + KEY_UNREAD + " INTEGER NOT NULL DEFAULT 0" + ")",
+            CREATE_CONVERSATIONS_INDEX,
+    }, CONVERSATION_TRIGGERS);
+
+    // conversation rows from the chats themselves, for rows added without the
+    // triggers. Unread counts are kept
+    private static final String[] FILL_CONVERSATIONS = {
+            "INSERT OR IGNORE INTO " + CONVERSATIONS_TABLE + "(" + KEY_USER_ID + ") SELECT " + KEY_ID + " FROM " + USERS_TABLE,
+            "INSERT OR REPLACE INTO " + CONVERSATIONS_TABLE + "(" + KEY_USER_ID + "," + KEY_LAST_CHAT_ID + "," + KEY_SNIPPET + "," + KEY_LAST_AT + "," + KEY_UNREAD + ")"
+                    + " SELECT " + KEY_OTHER_USER + "," + KEY_ID + ",substr(" + KEY_MESSAGE + ",1," + SNIPPET_LENGTH + ")," + KEY_CREATED_AT + ","
+                    + " coalesce((SELECT " + KEY_UNREAD + " FROM " + CONVERSATIONS_TABLE + " WHERE " + KEY_USER_ID + "=" + KEY_OTHER_USER + "),0)"
+                    + " FROM " + CHATS_TABLE + " WHERE " + KEY_ID + " IN (SELECT max(" + KEY_ID + ") FROM " + CHATS_TABLE
+                    + " GROUP BY " + KEY_OTHER_USER + ")",
+    };
+
+    private static final String CREATE_PEERS = "CREATE TABLE " + PEERS_TABLE + "("
+            + KEY_BLUETOOTH_ADDRESS + " TEXT PRIMARY KEY,"
+            + KEY_BLUETOOTH_NAME + " TEXT,"
+            + KEY_LAST_SEEN + " INTEGER NOT NULL DEFAULT 0,"
+            + KEY_RSSI + " INTEGER NOT NULL DEFAULT -32768,"
+            + KEY_DEVICE_CLASS + " INTEGER NOT NULL DEFAULT 0,"
+            + KEY_CHANNEL + " INTEGER NOT NULL DEFAULT -1" + ")";
+
+    // statements creating the current schema on an empty database
+    public static final String[] CREATE = concat(concat(new String[]{CREATE_USERS, CREATE_CHATS,
+            CREATE_CHATS_INDEX, CREATE_UID_INDEX}, CREATE_FTS), concat(CREATE_CONVERSATIONS, new String[]{CREATE_PEERS, CREATE_ARCHIVE_FTS}));
+
+    // MIGRATIONS[v - 1] takes a database from version v to v + 1 and keeps its rows
+    private static final String[][] MIGRATIONS = {
+            // 1 -> 2: TEXT user id and sender become integers, SQLite cannot alter
+            // column types so the table is copied
+            {
+                    "CREATE TABLE chats_v2" + CHATS_COLUMNS,
+                    "INSERT INTO chats_v2(" + KEY_ID + "," + KEY_MESSAGE + "," + KEY_OTHER_USER + "," + KEY_SENDER + ")"
+                            + " SELECT " + KEY_ID + "," + KEY_MESSAGE + ","
+                            + " CAST(" + KEY_OTHER_USER + " AS INTEGER),"
+                            + " CASE WHEN " + KEY_SENDER + "='1' THEN 1 ELSE 0 END"
+                            + " FROM " + CHATS_TABLE,
+                    "DROP TABLE " + CHATS_TABLE,
+                    "ALTER TABLE chats_v2 RENAME TO " + CHATS_TABLE,
+                    CREATE_CHATS_INDEX,
+            },
+            // 2 -> 3: full-text index, filled from the existing messages
+            concat(CREATE_FTS, new String[]{REBUILD_FTS}),
+            // 3 -> 4: message times and conversation summaries. Old messages get
+            // time 0 and count as read
+            concat(new String[]{ADD_CREATED_AT}, concat(CREATE_CONVERSATIONS, FILL_CONVERSATIONS)),
+            // 4 -> 5: message uids for history sync, old messages have none
+            {ADD_UID, CREATE_UID_INDEX},
+            // 5 -> 6: peer cache
+            {CREATE_PEERS},
+            // 6 -> 7: conversations last written before version 4 have time 0.
+            // They get the time of the oldest message that has one, or now:
+            // still below every later conversation, in chat id order among
+            // themselves
+            {
+                    "UPDATE " + CONVERSATIONS_TABLE + " SET " + KEY_LAST_AT + "=coalesce("
+                            + "(SELECT min(" + KEY_CREATED_AT + ") FROM " + CHATS_TABLE + " WHERE " + KEY_CREATED_AT + ">0),"
+                            + " CAST(strftime('%s','now') AS INTEGER)*1000)"
+                            + " WHERE " + KEY_LAST_AT + "=0 AND " + KEY_LAST_CHAT_ID + " IS NOT NULL",
+                    "DROP INDEX conversations_last_at",
+                    CREATE_CONVERSATIONS_INDEX,
+            },
+            // 7 -> 8: chats copied into an AUTOINCREMENT table, ids and FTS
+            // docids stay. Messages from before version 4 get the migration
+            // time, so they are not archived as if they were from 1970.
+            // Dropping the old table took its indexes and triggers along
+            concat(new String[]{
+                    "CREATE TABLE chats_v8" + CHATS_COLUMNS_V8,
+                    "INSERT INTO chats_v8 SELECT " + KEY_ID + "," + KEY_MESSAGE + "," + KEY_OTHER_USER + "," + KEY_SENDER + ","
+                            + " CASE WHEN " + KEY_CREATED_AT + "=0 THEN CAST(strftime('%s','now') AS INTEGER)*1000 ELSE " + KEY_CREATED_AT + " END,"
+                            + KEY_UID + " FROM " + CHATS_TABLE,
+                    "DROP TABLE " + CHATS_TABLE,
+                    "ALTER TABLE chats_v8 RENAME TO " + CHATS_TABLE,
+                    CREATE_CHATS_INDEX,
+                    CREATE_UID_INDEX,
+            }, concat(FTS_TRIGGERS, new String[]{CONVERSATION_TRIGGERS[1]})),
+            // 8 -> 9: search index of archived messages, DatabaseHelper fills
+            // it from the archive
+            {CREATE_ARCHIVE_FTS},
+    };
+
+    // Bulk import runs without the chats index and triggers, rows go in at
+    // table speed and the derived data is built once at the end. Each list
+    // runs in one transaction, so the index exists exactly when the triggers do.
+    // The uid index stays, it is what drops duplicates
+    public static final String[] IMPORT_BEGIN = {
+            "DROP INDEX IF EXISTS " + CHATS_INDEX,
+            "DROP TRIGGER IF EXISTS chats_fts_insert",
+            "DROP TRIGGER IF EXISTS chats_fts_delete",
+            "DROP TRIGGER IF EXISTS chats_fts_update_before",
+            "DROP TRIGGER IF EXISTS chats_fts_update_after",
+            "DROP TRIGGER IF EXISTS conversations_user_insert",
+            "DROP TRIGGER IF EXISTS conversations_chat_insert",
+    };
+
+    public static final String[] IMPORT_END = concat(concat(new String[]{CREATE_CHATS_INDEX}, concat(FTS_TRIGGERS, CONVERSATION_TRIGGERS)),
+            concat(new String[]{REBUILD_FTS}, concat(FILL_CONVERSATIONS, new String[]{
+                    "DELETE FROM " + CONVERSATIONS_TABLE + " WHERE " + KEY_USER_ID + " NOT IN (SELECT " + KEY_ID + " FROM " + USERS_TABLE + ")",
+            })));
+
+    // a row while the chats index exists, none after an import that did not finish
+    public static final String SELECT_CHATS_INDEX = "SELECT 1 FROM sqlite_master WHERE type='index' AND name='" + CHATS_INDEX + "'";
+
+    // the fifth argument is the uid or NULL. A uid already stored for the
+    // user inserts nothing
+    public static final String INSERT_CHAT = "INSERT OR IGNORE INTO " + CHATS_TABLE + "("
+            + KEY_MESSAGE + "," + KEY_OTHER_USER + "," + KEY_SENDER + "," + KEY_CREATED_AT + "," + KEY_UID + ") VALUES (?,?,?,?,?)";
+
+    public static final String INSERT_USER = "INSERT INTO " + USERS_TABLE + "("
+            + KEY_BLUETOOTH_NAME + "," + KEY_BLUETOOTH_ADDRESS + ") VALUES (?,?)";
+
+    // one argument: the other user's id
+    public static final String SELECT_USER_CHATS = "SELECT " + KEY_ID + "," + KEY_MESSAGE + "," + KEY_OTHER_USER + "," + KEY_SENDER
+            + " FROM " + CHATS_TABLE + " WHERE " + KEY_OTHER_USER + "=? ORDER BY " + KEY_ID;
+
+    // arguments: the other user's id, only messages with a smaller id, page size.
+    // Newest first, so the page ends where the previous one started
+    public static final String SELECT_CHAT_PAGE = "SELECT " + KEY_ID + "," + KEY_MESSAGE + "," + KEY_OTHER_USER + "," + KEY_SENDER
+            + " FROM " + CHATS_TABLE + " WHERE " + KEY_OTHER_USER + "=? AND " + KEY_ID + "<?"
+            + " ORDER BY " + KEY_ID + " DESC LIMIT ?";
+
+    // arguments: the other user's id, only messages with a larger id, batch size.
+    // Oldest first with their time and uid, for the archiver and export
+    public static final String SELECT_CHATS_AFTER = "SELECT " + KEY_ID + "," + KEY_MESSAGE + "," + KEY_OTHER_USER + "," + KEY_SENDER + "," + KEY_CREATED_AT + "," + KEY_UID
+            + " FROM " + CHATS_TABLE + " WHERE " + KEY_OTHER_USER + "=? AND " + KEY_ID + ">?"
+            + " ORDER BY " + KEY_ID + " LIMIT ?";
+
+    // Run once after the 7 -> 8 migration, both with one argument: the
+    // newest id in the archive. New ids start above it even when the
+    // archiver left the table empty
+    public static final String[] SEED_CHAT_IDS = {
+            "UPDATE sqlite_sequence SET seq=max(seq,?) WHERE name='" + CHATS_TABLE + "'",
+            "INSERT INTO sqlite_sequence(name,seq) SELECT '" + CHATS_TABLE + "',? WHERE NOT EXISTS"
+                    + " (SELECT 1 FROM sqlite_sequence WHERE name='" + CHATS_TABLE + "')",
+    };
+
+    // one argument: the other user's id. Off the uid index
+    public static final String SELECT_CHATS_WITHOUT_UID = "SELECT " + KEY_SENDER + "," + KEY_CREATED_AT + "," + KEY_MESSAGE
+            + " FROM " + CHATS_TABLE + " WHERE " + KEY_OTHER_USER + "=? AND " + KEY_UID + " IS NULL";
+
+    // Run before DELETE_ARCHIVED in the same transaction, with the same
+    // arguments: the rows leaving chats go on being searchable. Rows the
+    // archive already holds but chats still has are not in it yet
+    public static final String COPY_ARCHIVED_TO_FTS = "INSERT INTO " + ARCHIVE_FTS_TABLE + "(docid," + KEY_MESSAGE + ","
+            + KEY_OTHER_USER + "," + KEY_SENDER + ") SELECT " + KEY_ID + "," + KEY_MESSAGE + "," + KEY_OTHER_USER + "," + KEY_SENDER
+            + " FROM " + CHATS_TABLE + " WHERE " + KEY_OTHER_USER + "=? AND " + KEY_ID + "<=?";
+
+    // arguments: the other user's id, the newest archived id
+    public static final String DELETE_ARCHIVED = "DELETE FROM " + CHATS_TABLE + " WHERE " + KEY_OTHER_USER + "=? AND " + KEY_ID + "<=?";
+
+    // History sync only compares the messages of the last SYNC_WINDOW_MILLIS,
+    // the digests stay cheap however long the history is
+    public static final long SYNC_WINDOW_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    // arguments: the other user's id, the oldest created_at to sync
+    public static final String SELECT_SYNC_UIDS = "SELECT " + KEY_UID + " FROM " + CHATS_TABLE
+            + " WHERE " + KEY_OTHER_USER + "=? AND " + KEY_UID + " IS NOT NULL AND " + KEY_CREATED_AT + ">=?";
+
+    // at most this many uids per selectChatsByUid() query, below SQLite's 999 arguments
+    public static final int MAX_UIDS_PER_QUERY = 500;
+
+    // Search ranks the newest SEARCH_CANDIDATES matches, from chats and the
+    // archive together, by how often the terms occur, newest first among
+    // equals. offsets() is a list of four numbers per hit separated by
+    // spaces, so hits = (spaces + 1) / 4.
+    // Bounding the candidates keeps common words as fast as rare ones: an
+    // older message is not found however many hits it has, once newer
+    // candidates fill the bound. The COUNT_ queries tell when that happened
+    public static final int SEARCH_CANDIDATES = 500;
+
+    private static final String SEARCH_HOT = "SELECT * FROM (SELECT docid, c." + KEY_MESSAGE + ", c." + KEY_OTHER_USER + ", c." + KEY_SENDER + ","
+            + " snippet(" + FTS_TABLE + ",'[',']','...',-1,12) AS snippet, offsets(" + FTS_TABLE + ") AS offsets"
+            + " FROM " + FTS_TABLE + " JOIN " + CHATS_TABLE + " c ON c." + KEY_ID + "=" + FTS_TABLE + ".docid"
+            + " WHERE " + FTS_TABLE + " MATCH ?";
+    // column 0 is the only indexed one. The unindexed columns keep what was
+    // inserted, an integer, and compare to the bound argument without affinity
+    private static final String SEARCH_ARCHIVED = " UNION ALL SELECT * FROM (SELECT docid, " + KEY_MESSAGE + ", " + KEY_OTHER_USER + ", " + KEY_SENDER + ","
+            + " snippet(" + ARCHIVE_FTS_TABLE + ",'[',']','...',0,12) AS snippet, offsets(" + ARCHIVE_FTS_TABLE + ") AS offsets"
+            + " FROM " + ARCHIVE_FTS_TABLE + " WHERE " + ARCHIVE_FTS_TABLE + " MATCH ?";
+    private static final String SEARCH_ORDER = " ORDER BY docid DESC LIMIT " + SEARCH_CANDIDATES + ")";
+    private static final String SEARCH_RANK = " ORDER BY docid DESC LIMIT " + SEARCH_CANDIDATES + ")"
+            + " ORDER BY (length(offsets)-length(replace(offsets,' ',''))+1)/4 DESC, docid DESC LIMIT ? OFFSET ?";
+    private static final String SEARCH_COLUMNS = "SELECT docid, " + KEY_MESSAGE + ", " + KEY_OTHER_USER + ", " + KEY_SENDER + ", snippet FROM (";
+
+    // arguments: ftsQuery(text) twice, page size, offset
+    public static final String SEARCH_CHATS = SEARCH_COLUMNS
+            + SEARCH_HOT + SEARCH_ORDER
+            + SEARCH_ARCHIVED + SEARCH_ORDER
+            + SEARCH_RANK;
+
+    // arguments: ftsQuery(text), the other user's id, the same two again, page size, offset
+    public static final String SEARCH_USER_CHATS = SEARCH_COLUMNS
+            + SEARCH_HOT + " AND c." + KEY_OTHER_USER + "=?" + SEARCH_ORDER
+            + SEARCH_ARCHIVED + " AND " + KEY_OTHER_USER + "=CAST(? AS INTEGER)" + SEARCH_ORDER
+            + SEARCH_RANK;
+
+    // The matches of SEARCH_CHATS and SEARCH_USER_CHATS, counted up to one
+    // past SEARCH_CANDIDATES in each table; docids only where no user is
+    // given. Arguments: as for the search, without page size and offset
+    public static final String COUNT_SEARCH_CANDIDATES = "SELECT"
+            + " (SELECT count(*) FROM (SELECT docid FROM " + FTS_TABLE + " WHERE " + FTS_TABLE + " MATCH ? LIMIT " + (SEARCH_CANDIDATES + 1) + "))"
+            + "+(SELECT count(*) FROM (SELECT docid FROM " + ARCHIVE_FTS_TABLE + " WHERE " + ARCHIVE_FTS_TABLE + " MATCH ? LIMIT " + (SEARCH_CANDIDATES + 1) + "))";
+    public static final String COUNT_USER_SEARCH_CANDIDATES = "SELECT"
+            + " (SELECT count(*) FROM (SELECT docid FROM " + FTS_TABLE
+            + " JOIN " + CHATS_TABLE + " u ON u." + KEY_ID + "=" + FTS_TABLE + ".docid"
+            + " WHERE " + FTS_TABLE + " MATCH ? AND u." + KEY_OTHER_USER + "=? LIMIT " + (SEARCH_CANDIDATES + 1) + "))"
+            + "+(SELECT count(*) FROM (SELECT docid FROM " + ARCHIVE_FTS_TABLE
+            + " WHERE " + ARCHIVE_FTS_TABLE + " MATCH ? AND " + KEY_OTHER_USER + "=CAST(? AS INTEGER) LIMIT " + (SEARCH_CANDIDATES + 1) + "))";
+
+    // all users, latest conversation first, straight off the last_at index.
+    // Conversations with the same time keep the order of their messages
+    public static final String SELECT_CONVERSATIONS = "SELECT u." + KEY_ID + ",u." + KEY_BLUETOOTH_NAME + ",u." + KEY_BLUETOOTH_ADDRESS + ","
+            + "c." + KEY_LAST_CHAT_ID + ",c." + KEY_SNIPPET + ",c." + KEY_LAST_AT + ",c." + KEY_UNREAD
+            + " FROM " + CONVERSATIONS_TABLE + " c JOIN " + USERS_TABLE + " u ON u." + KEY_ID + "=c." + KEY_USER_ID
+            + " ORDER BY c." + KEY_LAST_AT + " DESC, c." + KEY_LAST_CHAT_ID + " DESC";
+
+    // one argument: the other user's id
+    public static final String MARK_READ = "UPDATE " + CONVERSATIONS_TABLE + " SET " + KEY_UNREAD + "=0 WHERE " + KEY_USER_ID + "=?";
+
+    private static final String PEER_COLUMNS = KEY_BLUETOOTH_ADDRESS + "," + KEY_BLUETOOTH_NAME + "," + KEY_LAST_SEEN + ","
+            + KEY_RSSI + "," + KEY_DEVICE_CLASS + "," + KEY_CHANNEL;
+
+    public static final String SELECT_PEERS = "SELECT " + PEER_COLUMNS + " FROM " + PEERS_TABLE;
+
+    // every column in PEER_COLUMNS order, the row is written whole
+    public static final String REPLACE_PEER = "INSERT OR REPLACE INTO " + PEERS_TABLE + "(" + PEER_COLUMNS + ") VALUES (?,?,?,?,?,?)";
+
+    public static final String SELECT_ALL_USERS = "SELECT " + KEY_ID + "," + KEY_BLUETOOTH_NAME + "," + KEY_BLUETOOTH_ADDRESS
+            + " FROM " + USERS_TABLE;
+
+    // one argument: the Bluetooth address
+    public static final String SELECT_USER_BY_ADDRESS = SELECT_ALL_USERS + " WHERE " + KEY_BLUETOOTH_ADDRESS + "=?";
+
+    // arguments: the other user's id, then count uids
+    public static String selectChatsByUid(int count) {
+        StringBuilder sql = new StringBuilder("SELECT " + KEY_UID + "," + KEY_SENDER + "," + KEY_CREATED_AT + "," + KEY_MESSAGE
+                + " FROM " + CHATS_TABLE + " WHERE " + KEY_OTHER_USER + "=? AND " + KEY_UID + " IN (");
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')').toString();
+    }
+
+    // statements to upgrade a database from one version to another, in order
+    public static List<String> migrations(int oldVersion, int newVersion) {
+        if (oldVersion < 1 || newVersion > VERSION || oldVersion > newVersion) {
+            throw new IllegalArgumentException("No migration from " + oldVersion + " to " + newVersion);
+        }
+        List<String> statements = new ArrayList<>();
+        for (int version = oldVersion; version < newVersion; version++) {
+            statements.addAll(Arrays.asList(MIGRATIONS[version - 1]));
+        }
+        return statements;
+    }
+
+    // MATCH expression for what the user typed: every word must occur, the last
+    // letters may still be missing. Quotes keep FTS operators in the text literal
+    public static String ftsQuery(String text) {
+        StringBuilder query = new StringBuilder();
+        for (String word : text.replace("\"", " ").trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append('"').append(word).append("*\"");
+        }
+        return query.toString();
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] all = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+
+    private ChatSchema() {
+    }
+}
@@ -0,0 +1,116 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.ankit.bluetoothchatapp.models.Conversation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Loads the conversation list on a background thread. The first load also
+// opens, and if needed migrates, the database, which is why the splash
+// screen starts one with prefetch(): the chat list then takes that snapshot
+// instead of waiting for the disk. A prefetched snapshot is handed out once
+// and only within SNAPSHOT_MAX_AGE_MILLIS of its query, as the splash may sit
+// at a permission prompt meanwhile; later loads query again. Main thread
+// only, results come back on it.
+class ConversationLoader {
+    private static final long SNAPSHOT_MAX_AGE_MILLIS = 5000;
+
+    private final DatabaseHelper helper;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ConversationLoader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // the prefetch in flight, and the snapshot it left that nobody took yet
+    private boolean prefetching;
+    private List<Conversation> prefetched;
+    // elapsedRealtime() when the snapshot's query started
+    private long prefetchedAt;
+    private final List<DatabaseHelper.ConversationsCallback> waiting = new ArrayList<>();
+
+    // counters
+    private long lastLoadMillis;
+    private int prefetchHits;
+
+    ConversationLoader(DatabaseHelper helper) {
+        this.helper = helper;
+    }
+
+    void prefetch() {
+        if (prefetching) {
+            return;
+        }
+        prefetching = true;
+        prefetched = null;
+        final long startedAt = SystemClock.elapsedRealtime();
+        load(new DatabaseHelper.ConversationsCallback() {
+            @Override
+            public void onConversations(List<Conversation> conversations) {
+                prefetching = false;
+                if (waiting.isEmpty()) {
+                    prefetched = conversations;
+                    prefetchedAt = startedAt;
+                    return;
+                }
+                prefetchHits++;
+                List<DatabaseHelper.ConversationsCallback> callbacks = new ArrayList<>(waiting);
+                waiting.clear();
+                for (DatabaseHelper.ConversationsCallback callback : callbacks) {
+                    callback.onConversations(conversations);
+                }
+            }
+        });
+    }
+
+    // the prefetched snapshot if there is a fresh one, at once when it is ready
+    void get(DatabaseHelper.ConversationsCallback callback) {
+        List<Conversation> conversations = prefetched;
+        prefetched = null;
+        if (conversations != null && SystemClock.elapsedRealtime() - prefetchedAt <= SNAPSHOT_MAX_AGE_MILLIS) {
+            prefetchHits++;
+            callback.onConversations(conversations);
+        } else if (prefetching) {
+            waiting.add(callback);
+        } else {
+            load(callback);
+        }
+    }
+
+    long getLastLoadMillis() {
+        return lastLoadMillis;
+    }
+
+    int getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    private void load(final DatabaseHelper.ConversationsCallback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                final List<Conversation> conversations = helper.getConversations();
+                final long millis = SystemClock.elapsedRealtime() - start;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        lastLoadMillis = millis;
+                        callback.onConversations(conversations);
+                    }
+                });
+            }
+        });
+    }
+}
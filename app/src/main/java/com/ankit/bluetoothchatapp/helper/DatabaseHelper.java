@@ -1,148 +1,746 @@
 package com.ankit.bluetoothchatapp.helper;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
+import com.ankit.bluetoothchatapp.models.ChatSearchResult;
+import com.ankit.bluetoothchatapp.models.ChatSearchResults;
 import com.ankit.bluetoothchatapp.models.Chats;
+import com.ankit.bluetoothchatapp.models.Conversation;
+import com.ankit.bluetoothchatapp.models.PeerInfo;
 import com.ankit.bluetoothchatapp.models.Users;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 // https://www.javatpoint.com/android-sqlite-tutorial
 
 public class DatabaseHelper extends SQLiteOpenHelper {
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = ChatSchema.VERSION;
     private static final String DATABASE_NAME = "bluetoothChat";
 
-    private static final String USERS_TABLE = "users";
-    private static final String KEY_ID = "id";
-    private static final String KEY_BLUETOOTH_NAME = "name";
-    private static final String KEY_BLUETOOTH_ADDRESS = "address";
+    // table and column names live in ChatSchema, shared with the benchmarks
+    private static final String USERS_TABLE = ChatSchema.USERS_TABLE;
+    private static final String KEY_ID = ChatSchema.KEY_ID;
+    private static final String KEY_BLUETOOTH_NAME = ChatSchema.KEY_BLUETOOTH_NAME;
+    private static final String KEY_BLUETOOTH_ADDRESS = ChatSchema.KEY_BLUETOOTH_ADDRESS;
 
-    private static final String CHATS_TABLE = "chats";
-    private static final String KEY_MESSAGE = "message";
-    private static final String KEY_OTHER_USER = "other_user_id";
-    private static final String KEY_SENDER = "sender"; // 1 - me,0 - other
+    // called on the main thread once a queued insert is committed, id is -1 if it failed
+    public interface InsertCallback {
+        void onInserted(long id);
+    }
+
+    // called on the main thread with the list getConversations() returns
+    public interface ConversationsCallback {
+        void onConversations(List<Conversation> conversations);
+    }
 
-    public DatabaseHelper(Context context) {
+    private static final int USER_CACHE_SIZE = 64;
+
+    private static DatabaseHelper instance;
+
+    // one long-lived connection for the whole process, writes go through writeQueue
+    private final WriteQueue writeQueue = new WriteQueue(this);
+    // compiled once, only used on the writer thread
+    private SQLiteStatement insertChat;
+    private SQLiteStatement insertUser;
+    private SQLiteStatement markRead;
+    private SQLiteStatement copyArchived;
+    private SQLiteStatement deleteArchived;
+    private SQLiteStatement replacePeer;
+    private final UserCache userCache = new UserCache(USER_CACHE_SIZE);
+    // old messages, moved out of SQLite by archiver
+    private final ChatArchive archive;
+    private final ChatArchiver archiver;
+    private ChatPeerCache peerCache;
+    private final ConversationLoader conversationLoader = new ConversationLoader(this);
+
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new DatabaseHelper(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private DatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // readers on the main thread do not wait for the writer
+        setWriteAheadLoggingEnabled(true);
+        writeQueue.start();
+        archive = new ChatArchive(new File(context.getFilesDir(), "archive"));
+        archiver = new ChatArchiver(this, archive);
+        archiver.start();
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("CREATE TABLE " + USERS_TABLE + "("
-                + KEY_ID + " INTEGER PRIMARY KEY,"
-                + KEY_BLUETOOTH_NAME + " TEXT,"
-                + KEY_BLUETOOTH_ADDRESS + " TEXT" + ")");
-
-        db.execSQL("CREATE TABLE " + CHATS_TABLE + "("
-                + KEY_ID + " INTEGER PRIMARY KEY,"
-                + KEY_MESSAGE + " TEXT,"
-                + KEY_OTHER_USER + " TEXT,"
-                + KEY_SENDER + " TEXT" + ")");
+        for (String sql : ChatSchema.CREATE) {
+            db.execSQL(sql);
+        }
     }
 
+    // step through the migrations, onUpgrade already runs inside a transaction
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + USERS_TABLE);
-        db.execSQL("DROP TABLE IF EXISTS " + CHATS_TABLE);
+        for (String sql : ChatSchema.migrations(oldVersion, newVersion)) {
+            db.execSQL(sql);
+        }
+        if (oldVersion < 8 && newVersion >= 8) {
+            seedChatIds(db);
+        }
+        if (oldVersion < 9 && newVersion >= 9) {
+            indexArchivedChats(db);
+        }
+    }
 
-        onCreate(db);
+    // messages archived before version 9 left the search index with their rows
+    private void indexArchivedChats(SQLiteDatabase db) {
+        SQLiteStatement insert = db.compileStatement(ChatSchema.INDEX_ARCHIVED_CHAT);
+        Cursor cursor = db.rawQuery(ChatSchema.SELECT_ALL_USERS, null);
+        try {
+            while (cursor.moveToNext()) {
+                int userId = cursor.getInt(0);
+                int lastId = 0;
+                try {
+                    List<Chats> batch;
+                    do {
+                        batch = archive.getChatsAfter(userId, lastId, ChatBackup.EXPORT_BATCH);
+                        for (Chats chat : batch) {
+                            insert.bindLong(1, chat.id);
+                            insert.bindString(2, chat.message);
+                            insert.bindLong(3, userId);
+                            insert.bindLong(4, chat.sender);
+                            insert.bindLong(5, chat.id);
+                            insert.executeInsert();
+                        }
+                        if (!batch.isEmpty()) {
+                            lastId = batch.get(batch.size() - 1).id;
+                        }
+                    } while (batch.size() == ChatBackup.EXPORT_BATCH);
+                } catch (IOException e) {
+                    // as in seedChatIds(), an unreadable archive is skipped
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            cursor.close();
+            insert.close();
+        }
     }
 
-    public List<Chats> getUserChats(String userId) {
-        List<Chats> chatsList = new ArrayList<Chats>();
-        // Select All Query
-        String selectQuery = "SELECT  * FROM " + CHATS_TABLE + " WHERE " + KEY_OTHER_USER + "='" + userId + "'";
+    // new chat ids start above every archived one, the archive may hold
+    // ids the table no longer has
+    private void seedChatIds(SQLiteDatabase db) {
+        int lastArchivedId = 0;
+        Cursor cursor = db.rawQuery(ChatSchema.SELECT_ALL_USERS, null);
+        try {
+            while (cursor.moveToNext()) {
+                lastArchivedId = Math.max(lastArchivedId, archive.getLastId(cursor.getInt(0)));
+            }
+        } catch (IOException e) {
+            // a user whose archive cannot be read is skipped by the archiver too
+            e.printStackTrace();
+        } finally {
+            cursor.close();
+        }
+        for (String sql : ChatSchema.SEED_CHAT_IDS) {
+            db.execSQL(sql, new Object[]{lastArchivedId});
+        }
+    }
 
-        SQLiteDatabase db = this.getWritableDatabase();
-        Cursor cursor = db.rawQuery(selectQuery, null);
+    // finish an import the process did not live to complete
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        Cursor cursor = db.rawQuery(ChatSchema.SELECT_CHATS_INDEX, null);
+        boolean indexed;
+        try {
+            indexed = cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+        if (!indexed) {
+            runInTransaction(db, ChatSchema.IMPORT_END);
+        }
+    }
+
+    private static void runInTransaction(SQLiteDatabase db, String[] statements) {
+        db.beginTransaction();
+        try {
+            for (String sql : statements) {
+                db.execSQL(sql);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public List<Chats> getUserChats(int userId) {
+        List<Chats> chatsList = new ArrayList<Chats>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery(ChatSchema.SELECT_USER_CHATS, new String[]{String.valueOf(userId)});
 
         // looping through all rows and adding to list
-        if (cursor.moveToFirst()) {
-            do {
-                chatsList.add(new Chats(Integer.parseInt(cursor.getString(0)), cursor.getString(1), cursor.getString(2), cursor.getString(3)));
-            } while (cursor.moveToNext());
+        try {
+            while (cursor.moveToNext()) {
+                chatsList.add(new Chats(cursor.getInt(0), cursor.getString(1), cursor.getInt(2), cursor.getInt(3)));
+            }
+        } finally {
+            cursor.close();
+        }
+        // the archived history goes in front
+        int oldestId = chatsList.isEmpty() ? Integer.MAX_VALUE : chatsList.get(0).id;
+        chatsList.addAll(0, getArchivedChats(userId, oldestId, Integer.MAX_VALUE));
+        return chatsList;
+    }
+
+    // up to limit messages older than beforeId, oldest first. Pass Integer.MAX_VALUE for the newest page
+    public List<Chats> getUserChats(int userId, int beforeId, int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery(ChatSchema.SELECT_CHAT_PAGE,
+                new String[]{String.valueOf(userId), String.valueOf(beforeId), String.valueOf(limit)});
+
+        Chats[] page = new Chats[cursor.getCount()];
+        try {
+            // the query returns newest first
+            for (int i = page.length - 1; cursor.moveToNext(); i--) {
+                page[i] = new Chats(cursor.getInt(0), cursor.getString(1), cursor.getInt(2), cursor.getInt(3));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (page.length == limit) {
+            return Arrays.asList(page);
+        }
+        // reached the archived part of the history, continue below the oldest row
+        List<Chats> chatsList = new ArrayList<>(limit);
+        chatsList.addAll(getArchivedChats(userId, page.length > 0 ? page[0].id : beforeId, limit - page.length));
+        chatsList.addAll(Arrays.asList(page));
+        return chatsList;
+    }
+
+    // up to limit messages newer than afterId, oldest first. New rows are never archived
+    public List<Chats> getUserChatsAfter(int userId, int afterId, int limit) {
+        List<Chats> chatsList = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery(ChatSchema.SELECT_CHATS_AFTER,
+                new String[]{String.valueOf(userId), String.valueOf(afterId), String.valueOf(limit)});
+        try {
+            while (cursor.moveToNext()) {
+                chatsList.add(new Chats(cursor.getInt(0), cursor.getString(1), cursor.getInt(2), cursor.getInt(3), cursor.getLong(4)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return chatsList;
+    }
+
+    private List<Chats> getArchivedChats(int userId, int beforeId, int limit) {
+        try {
+            return archive.getChats(userId, beforeId, limit);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    // messages older than this move to the archive, checked every few hours
+    public void setArchiveAge(long ageMillis) {
+        archiver.setAgeMillis(ageMillis);
+    }
+
+    public void archiveOldChats() {
+        archiver.request();
+    }
+
+    public long getArchivedChatCount() {
+        return archiver.getArchivedChats();
+    }
+
+    public long getArchiveSizeBytes() {
+        return archive.getSizeBytes();
+    }
+
+    // Queued, called by the archiver once rows up to lastId are safe in the
+    // archive. Their text moves to the archive's search index in the same
+    // transaction
+    void deleteArchivedChats(final int userId, final int lastId) {
+        writeQueue.add(new WriteQueue.Write() {
+            @Override
+            public long execute(SQLiteDatabase db) {
+                if (deleteArchived == null) {
+                    copyArchived = db.compileStatement(ChatSchema.COPY_ARCHIVED_TO_FTS);
+                    deleteArchived = db.compileStatement(ChatSchema.DELETE_ARCHIVED);
+                }
+                copyArchived.bindLong(1, userId);
+                copyArchived.bindLong(2, lastId);
+                copyArchived.executeInsert();
+                deleteArchived.bindLong(1, userId);
+                deleteArchived.bindLong(2, lastId);
+                return deleteArchived.executeUpdateDelete();
+            }
+        }, null);
+    }
+
+    // Messages of all conversations containing every word of text, archived
+    // ones too, best matches first. Only the newest ChatSchema.SEARCH_CANDIDATES matches are
+    // ranked, truncated says older ones were left out
+    public ChatSearchResults searchChats(String text, int limit, int offset) {
+        String query = ChatSchema.ftsQuery(text);
+        if (query.isEmpty()) {
+            return new ChatSearchResults(new ArrayList<ChatSearchResult>(), false);
+        }
+        return search(ChatSchema.SEARCH_CHATS, new String[]{query, query, String.valueOf(limit), String.valueOf(offset)},
+                ChatSchema.COUNT_SEARCH_CANDIDATES, new String[]{query, query});
+    }
+
+    // the same within the conversation with one user
+    public ChatSearchResults searchChats(String text, int userId, int limit, int offset) {
+        String query = ChatSchema.ftsQuery(text);
+        if (query.isEmpty()) {
+            return new ChatSearchResults(new ArrayList<ChatSearchResult>(), false);
+        }
+        String user = String.valueOf(userId);
+        return search(ChatSchema.SEARCH_USER_CHATS,
+                new String[]{query, user, query, user, String.valueOf(limit), String.valueOf(offset)},
+                ChatSchema.COUNT_USER_SEARCH_CANDIDATES, new String[]{query, user, query, user});
+    }
+
+    private ChatSearchResults search(String sql, String[] args, String countSql, String[] countArgs) {
+        List<ChatSearchResult> results = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            while (cursor.moveToNext()) {
+                Chats chat = new Chats(cursor.getInt(0), cursor.getString(1), cursor.getInt(2), cursor.getInt(3));
+                results.add(new ChatSearchResult(chat, cursor.getString(4)));
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = db.rawQuery(countSql, countArgs);
+        try {
+            boolean truncated = cursor.moveToFirst() && cursor.getLong(0) > ChatSchema.SEARCH_CANDIDATES;
+            return new ChatSearchResults(results, truncated);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long insertChat(SQLiteStatement statement, String message, int userId, int sender, long createdAt, long uid) {
+        statement.bindString(1, message);
+        statement.bindLong(2, userId);
+        statement.bindLong(3, sender);
+        statement.bindLong(4, createdAt);
+        if (uid == 0) {
+            statement.bindNull(5);
+        } else {
+            statement.bindLong(5, uid);
+        }
+        return statement.executeInsert();
+    }
+
+    // uids of the recent messages with userId, what history sync compares
+    public long[] getSyncIds(int userId) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery(ChatSchema.SELECT_SYNC_UIDS, new String[]{String.valueOf(userId),
+                String.valueOf(System.currentTimeMillis() - ChatSchema.SYNC_WINDOW_MILLIS)});
+        try {
+            long[] uids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                uids[i] = cursor.getLong(0);
+            }
+            return uids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // the messages with userId among uids, with uid, sender, created_at and message set
+    public List<Chats> getSyncChats(int userId, long[] uids) {
+        List<Chats> chatsList = new ArrayList<>(uids.length);
+        SQLiteDatabase db = this.getReadableDatabase();
+        for (int start = 0; start < uids.length; start += ChatSchema.MAX_UIDS_PER_QUERY) {
+            int end = Math.min(start + ChatSchema.MAX_UIDS_PER_QUERY, uids.length);
+            String[] args = new String[end - start + 1];
+            args[0] = String.valueOf(userId);
+            for (int i = start; i < end; i++) {
+                args[i - start + 1] = String.valueOf(uids[i]);
+            }
+            Cursor cursor = db.rawQuery(ChatSchema.selectChatsByUid(end - start), args);
+            try {
+                while (cursor.moveToNext()) {
+                    Chats chat = new Chats(0, cursor.getString(3), userId, cursor.getInt(1), cursor.getLong(2));
+                    chat.uid = cursor.getLong(0);
+                    chatsList.add(chat);
+                }
+            } finally {
+                cursor.close();
+            }
         }
         return chatsList;
     }
 
-    public void addChat(String message, String other_user_id, String sender) {
-        SQLiteDatabase db = this.getWritableDatabase();
+    // Queued, stores messages history sync brought from address, creating
+    // the user if needed. Messages already stored are skipped, the callback
+    // gets how many were new
+    public void addSyncedChats(final String address, final String name, final List<Chats> chats, InsertCallback callback) {
+        writeQueue.add(new WriteQueue.Write() {
+            @Override
+            public long execute(SQLiteDatabase db) {
+                Users user = getUser(address);
+                if (user == null) {
+                    if (insertUser == null) {
+                        insertUser = db.compileStatement(ChatSchema.INSERT_USER);
+                    }
+                    insertUser.bindString(1, name);
+                    insertUser.bindString(2, address);
+                    long id = insertUser.executeInsert();
+                    if (id == -1) {
+                        return -1;
+                    }
+                    user = new Users((int) id, name, address);
+                    userCache.put(user);
+                }
+                if (insertChat == null) {
+                    insertChat = db.compileStatement(ChatSchema.INSERT_CHAT);
+                }
+                long added = 0;
+                for (Chats chat : chats) {
+                    if (insertChat(insertChat, chat.message, user.id, chat.sender, chat.created_at, chat.uid) != -1) {
+                        added++;
+                    }
+                }
+                return added;
+            }
+        }, callback);
+    }
+
+    public void addUser(final String name, final String address, InsertCallback callback) {
+        writeQueue.add(new WriteQueue.Write() {
+            @Override
+            public long execute(SQLiteDatabase db) {
+                if (insertUser == null) {
+                    insertUser = db.compileStatement(ChatSchema.INSERT_USER);
+                }
+                insertUser.bindString(1, name);
+                insertUser.bindString(2, address);
+                long id = insertUser.executeInsert();
+                // write-through, the new user resolves without a query.
+                // put() also drops a cached row this one replaces
+                if (id != -1) {
+                    userCache.put(new Users((int) id, name, address));
+                }
+                return id;
+            }
+        }, callback);
+    }
+
+    // queued, the messages of userId count as seen
+    public void markRead(final int userId) {
+        writeQueue.add(new WriteQueue.Write() {
+            @Override
+            public long execute(SQLiteDatabase db) {
+                if (markRead == null) {
+                    markRead = db.compileStatement(ChatSchema.MARK_READ);
+                }
+                markRead.bindLong(1, userId);
+                return markRead.executeUpdateDelete();
+            }
+        }, null);
+    }
+
+    // every user with the newest message, latest conversation first. One
+    // indexed query however long the histories are
+    public List<Conversation> getConversations() {
+        List<Conversation> conversations = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery(ChatSchema.SELECT_CONVERSATIONS, null);
+        try {
+            while (cursor.moveToNext()) {
+                Users user = new Users(cursor.getInt(0), cursor.getString(1), cursor.getString(2));
+                conversations.add(new Conversation(user, cursor.getInt(3), cursor.getString(4), cursor.getLong(5), cursor.getInt(6)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return conversations;
+    }
+
+    // Opens the database and loads the conversation list in the background,
+    // for a loadConversations() soon after. Main thread only
+    public void prefetchConversations() {
+        conversationLoader.prefetch();
+    }
+
+    // getConversations() off the main thread, answered from the prefetch if
+    // one was started. Main thread only
+    public void loadConversations(ConversationsCallback callback) {
+        conversationLoader.get(callback);
+    }
+
+    // time the last background load took, and loads answered by a prefetch
+    public long getLastConversationsLoadMillis() {
+        return conversationLoader.getLastLoadMillis();
+    }
 
-        ContentValues values = new ContentValues();
-        values.put(KEY_MESSAGE, message);
-        values.put(KEY_OTHER_USER, other_user_id);
-        values.put(KEY_SENDER, sender);
+    public int getConversationPrefetchHits() {
+        return conversationLoader.getPrefetchHits();
+    }
 
-        db.insert(CHATS_TABLE, null, values);
-        db.close();
+    // Writes every user and chat, archived ones included, to out as a
+    // ChatBackup. Streams in batches, memory use does not grow with the
+    // history. Blocks, call it off the main thread
+    public ChatBackup.Stats exportChats(OutputStream out) throws IOException {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        synchronized (archiver.lock()) {
+            return ChatBackup.export(new ChatBackup.Source() {
+                @Override
+                public List<Users> getUsers() {
+                    return getAllUsers();
+                }
+
+                @Override
+                public List<Chats> getChatsAfter(int userId, int lastId, int limit) throws IOException {
+                    List<Chats> chats = new ArrayList<>(archive.getChatsAfter(userId, lastId, limit));
+                    if (chats.size() == limit) {
+                        return chats;
+                    }
+                    // the rest is still in the database, rows also in the archive are skipped
+                    if (!chats.isEmpty()) {
+                        lastId = chats.get(chats.size() - 1).id;
+                    }
+                    lastId = Math.max(lastId, archive.getLastId(userId));
+                    Cursor cursor = db.rawQuery(ChatSchema.SELECT_CHATS_AFTER, new String[]{String.valueOf(userId),
+                            String.valueOf(lastId), String.valueOf(limit - chats.size())});
+                    try {
+                        while (cursor.moveToNext()) {
+                            Chats chat = new Chats(cursor.getInt(0), cursor.getString(1), cursor.getInt(2), cursor.getInt(3), cursor.getLong(4));
+                            chat.uid = cursor.getLong(5);
+                            chats.add(chat);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    return chats;
+                }
+            }, out);
+        }
     }
 
-    public long addUser(String name, String address) {
-        SQLiteDatabase db = this.getWritableDatabase();
+    // Adds the users and chats of a ChatBackup, see ChatBackup.importFrom()
+    // for what counts as already stored. Rows go in ChatBackup.IMPORT_BATCH
+    // per transaction with the chats index and triggers dropped, which are
+    // rebuilt once at the end. Queued writes commit between the batches;
+    // messages arriving meanwhile do not add to the unread count. A failed
+    // import keeps the batches it committed, importing the same file again
+    // adds the rest. Blocks, call it off the main thread
+    public ChatBackup.Stats importChats(InputStream in) throws IOException {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        synchronized (archiver.lock()) {
+            final SQLiteStatement insertUser = db.compileStatement(ChatSchema.INSERT_USER);
+            final SQLiteStatement insertChat = db.compileStatement(ChatSchema.INSERT_CHAT);
+            runInTransaction(db, ChatSchema.IMPORT_BEGIN);
+            try {
+                db.beginTransactionNonExclusive();
+                try {
+                    return ChatBackup.importFrom(in, new ChatBackup.Target() {
+                        @Override
+                        public Set<Long> getMessageKeys(int userId) throws IOException {
+                            Set<Long> keys = new HashSet<>();
+                            int lastId = 0;
+                            List<Chats> batch;
+                            do {
+                                batch = archive.getChatsAfter(userId, lastId, ChatBackup.EXPORT_BATCH);
+                                for (Chats chat : batch) {
+                                    keys.add(ChatBackup.messageKey(chat.created_at, chat.sender, chat.message));
+                                    lastId = chat.id;
+                                }
+                            } while (batch.size() == ChatBackup.EXPORT_BATCH);
+                            Cursor cursor = db.rawQuery(ChatSchema.SELECT_CHATS_WITHOUT_UID, new String[]{String.valueOf(userId)});
+                            try {
+                                while (cursor.moveToNext()) {
+                                    keys.add(ChatBackup.messageKey(cursor.getLong(1), cursor.getInt(0), cursor.getString(2)));
+                                }
+                            } finally {
+                                cursor.close();
+                            }
+                            return keys;
+                        }
+
+                        @Override
+                        public int findUser(String address) {
+                            Users user = getUser(address);
+                            return user == null ? -1 : user.id;
+                        }
+
+                        @Override
+                        public int insertUser(Users user) {
+                            insertUser.bindString(1, user.name);
+                            insertUser.bindString(2, user.address);
+                            return (int) insertUser.executeInsert();
+                        }
+
+                        @Override
+                        public boolean insertChat(Chats chat, int userId) {
+                            // messages already here under the same uid are skipped
+                            return DatabaseHelper.insertChat(insertChat, chat.message, userId, chat.sender, chat.created_at, chat.uid) != -1;
+                        }
+
+                        // the write queue gets the database between two batches
+                        @Override
+                        public void commit() {
+                            db.setTransactionSuccessful();
+                            db.endTransaction();
+                            db.beginTransactionNonExclusive();
+                        }
+                    });
+                } finally {
+                    db.endTransaction();
+                }
+            } finally {
+                // users added behind the cache's back
+                userCache.clear();
+                insertUser.close();
+                insertChat.close();
+                runInTransaction(db, ChatSchema.IMPORT_END);
+            }
+        }
+    }
 
-        ContentValues values = new ContentValues();
-        values.put(KEY_BLUETOOTH_NAME, name);
-        values.put(KEY_BLUETOOTH_ADDRESS, address);
+    // the peers table as a PeerCache, for BluetoothTransport and DeviceDiscovery
+    public synchronized ChatPeerCache getPeerCache() {
+        if (peerCache == null) {
+            peerCache = new ChatPeerCache(this);
+        }
+        return peerCache;
+    }
 
-        long lastInsertId = db.insert(USERS_TABLE, null, values);
+    List<PeerInfo> getPeers() {
+        List<PeerInfo> peers = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery(ChatSchema.SELECT_PEERS, null);
+        try {
+            while (cursor.moveToNext()) {
+                peers.add(new PeerInfo(cursor.getString(0), cursor.getString(1), cursor.getLong(2),
+                        cursor.getInt(3), cursor.getInt(4), cursor.getInt(5)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return peers;
+    }
+
+    // queued, replaces the whole row
+    void putPeer(final PeerInfo peer) {
+        writeQueue.add(new WriteQueue.Write() {
+            @Override
+            public long execute(SQLiteDatabase db) {
+                if (replacePeer == null) {
+                    replacePeer = db.compileStatement(ChatSchema.REPLACE_PEER);
+                }
+                replacePeer.bindString(1, peer.address);
+                if (peer.name == null) {
+                    replacePeer.bindNull(2);
+                } else {
+                    replacePeer.bindString(2, peer.name);
+                }
+                replacePeer.bindLong(3, peer.last_seen);
+                replacePeer.bindLong(4, peer.rssi);
+                replacePeer.bindLong(5, peer.device_class);
+                replacePeer.bindLong(6, peer.channel);
+                return replacePeer.executeInsert();
+            }
+        }, null);
+    }
 
-        db.close();
+    // commits of the write queue so far and the rows they carried
+    public long getWriteTransactions() {
+        return writeQueue.getTransactions();
+    }
 
-        return lastInsertId;
+    public long getQueuedWrites() {
+        return writeQueue.getWrites();
     }
 
     public List<Users> getAllUsers() {
         List<Users> usersList = new ArrayList<Users>();
-        // Select All Query
-        String selectQuery = "SELECT  * FROM " + USERS_TABLE;
-
-        SQLiteDatabase db = this.getWritableDatabase();
-        Cursor cursor = db.rawQuery(selectQuery, null);
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.rawQuery(ChatSchema.SELECT_ALL_USERS, null);
 
         // looping through all rows and adding to list
-        if (cursor.moveToFirst()) {
-            do {
-                usersList.add(new Users(Integer.parseInt(cursor.getString(0)), cursor.getString(1), cursor.getString(2)));
-            } while (cursor.moveToNext());
+        try {
+            while (cursor.moveToNext()) {
+                usersList.add(new Users(cursor.getInt(0), cursor.getString(1), cursor.getString(2)));
+            }
+        } finally {
+            cursor.close();
         }
-
         return usersList;
     }
 
+    // cached, SQLite is only asked for peers not seen recently
     public Users getUser(String address) {
+        Users user = userCache.get(address);
+        if (user != null) {
+            return user;
+        }
         SQLiteDatabase db = this.getReadableDatabase();
-
         Cursor cursor = db.query(USERS_TABLE, new String[]{KEY_ID, KEY_BLUETOOTH_NAME, KEY_BLUETOOTH_ADDRESS}, KEY_BLUETOOTH_ADDRESS + "=?",
                 new String[]{address}, null, null, null, null);
-        if (cursor != null)
-            cursor.moveToFirst();
-        try {
-            Users user = new Users(Integer.parseInt(cursor.getString(0)), cursor.getString(1), cursor.getString(2));
-            return user;
-        } catch (Exception e) {
-            return null;
-        }
+        return cacheUser(cursor);
     }
 
     public Users getUser(long id) {
+        Users user = userCache.get((int) id);
+        if (user != null) {
+            return user;
+        }
         SQLiteDatabase db = this.getReadableDatabase();
-
         Cursor cursor = db.query(USERS_TABLE, new String[]{KEY_ID, KEY_BLUETOOTH_NAME, KEY_BLUETOOTH_ADDRESS}, KEY_ID + "=?",
                 new String[]{String.valueOf(id)}, null, null, null, null);
-        if (cursor != null)
-            cursor.moveToFirst();
+        return cacheUser(cursor);
+    }
 
+    // read the first row, if any, into the cache and close the cursor
+    private Users cacheUser(Cursor cursor) {
         try {
-            Users user = new Users(Integer.parseInt(cursor.getString(0)), cursor.getString(1), cursor.getString(2));
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            Users user = new Users(cursor.getInt(0), cursor.getString(1), cursor.getString(2));
+            userCache.put(user);
             return user;
-        } catch (Exception e) {
-            return null;
+        } finally {
+            cursor.close();
         }
     }
+
+    // Drop a user from the cache after changing its row outside addUser(),
+    // by either key: both the address and the id entry go
+    public void invalidateUser(String address) {
+        userCache.remove(address);
+    }
+
+    public void invalidateUser(long id) {
+        userCache.remove((int) id);
+    }
+
+    public void invalidateUsers() {
+        userCache.clear();
+    }
 }
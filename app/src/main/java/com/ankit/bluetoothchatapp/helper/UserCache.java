@@ -0,0 +1,68 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import android.util.LruCache;
+
+import com.ankit.bluetoothchatapp.models.Users;
+
+// Users by Bluetooth address and by id, both bounded to the same size. A user
+// evicted from one side is dropped from the other so the two never disagree,
+// and every change goes through both: a user stored under a new address, or
+// a new row taking an address, first drops what the id and the address
+// pointed to.
+class UserCache {
+    private final LruCache<String, Users> byAddress;
+    private final LruCache<Integer, Users> byId;
+
+    UserCache(int maxSize) {
+        byAddress = new LruCache<String, Users>(maxSize) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Users oldValue, Users newValue) {
+                if (evicted) {
+                    byId.remove(oldValue.id);
+                }
+            }
+        };
+        byId = new LruCache<Integer, Users>(maxSize) {
+            @Override
+            protected void entryRemoved(boolean evicted, Integer key, Users oldValue, Users newValue) {
+                if (evicted) {
+                    byAddress.remove(oldValue.address);
+                }
+            }
+        };
+    }
+
+    synchronized Users get(String address) {
+        return byAddress.get(address);
+    }
+
+    synchronized Users get(int id) {
+        return byId.get(id);
+    }
+
+    synchronized void put(Users user) {
+        remove(user.id);
+        remove(user.address);
+        byAddress.put(user.address, user);
+        byId.put(user.id, user);
+    }
+
+    synchronized void remove(String address) {
+        Users user = byAddress.remove(address);
+        if (user != null) {
+            byId.remove(user.id);
+        }
+    }
+
+    synchronized void remove(int id) {
+        Users user = byId.remove(id);
+        if (user != null) {
+            byAddress.remove(user.address);
+        }
+    }
+
+    synchronized void clear() {
+        byAddress.evictAll();
+        byId.evictAll();
+    }
+}
@@ -0,0 +1,124 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Background writer of the chat database. Writes that arrive within
+// BATCH_WINDOW_MILLIS of the first one share a transaction, so a burst of
+// messages pays for one commit instead of one per row. Callbacks run on the
+// main thread in the order the writes were queued.
+class WriteQueue extends Thread {
+    private static final long BATCH_WINDOW_MILLIS = 5;
+    private static final int MAX_BATCH = 256;
+
+    // runs on the writer thread inside the batch transaction, returns the row id
+    interface Write {
+        long execute(SQLiteDatabase db);
+    }
+
+    private static class Pending {
+        final Write write;
+        final DatabaseHelper.InsertCallback callback;
+
+        Pending(Write write, DatabaseHelper.InsertCallback callback) {
+            this.write = write;
+            this.callback = callback;
+        }
+    }
+
+    private final SQLiteOpenHelper helper;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // counters
+    private volatile long transactions;
+    private volatile long writes;
+
+    WriteQueue(SQLiteOpenHelper helper) {
+        this.helper = helper;
+        setName("DatabaseWriter");
+        setDaemon(true);
+    }
+
+    void add(Write write, DatabaseHelper.InsertCallback callback) {
+        queue.add(new Pending(write, callback));
+    }
+
+    public void run() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MILLIS);
+                while (batch.size() < MAX_BATCH) {
+                    Pending pending = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (pending == null) {
+                        break;
+                    }
+                    batch.add(pending);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        final List<Pending> done = new ArrayList<>(batch);
+        final long[] ids = new long[done.size()];
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    try {
+                        ids[i] = done.get(i).write.execute(db);
+                    } catch (SQLiteException e) {
+                        // only this row is lost, the rest of the batch still commits
+                        e.printStackTrace();
+                        ids[i] = -1;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            // the commit itself failed, e.g. disk full
+            e.printStackTrace();
+            Arrays.fill(ids, -1);
+        }
+        transactions++;
+        writes += ids.length;
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ids.length; i++) {
+                    if (done.get(i).callback != null) {
+                        done.get(i).callback.onInserted(ids[i]);
+                    }
+                }
+            }
+        });
+    }
+
+    long getTransactions() {
+        return transactions;
+    }
+
+    long getWrites() {
+        return writes;
+    }
+}
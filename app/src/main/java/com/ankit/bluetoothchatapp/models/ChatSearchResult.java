@@ -0,0 +1,14 @@
+package com.ankit.bluetoothchatapp.models;
+
+import java.io.Serializable;
+
+public class ChatSearchResult implements Serializable {
+    public Chats chat;
+    // the matching part of the message, hits wrapped in [ ]
+    public String snippet;
+
+    public ChatSearchResult(Chats chat, String snippet) {
+        this.chat = chat;
+        this.snippet = snippet;
+    }
+}
@@ -0,0 +1,16 @@
+package com.ankit.bluetoothchatapp.models;
+
+import java.io.Serializable;
+import java.util.List;
+
+// One page of search results
+public class ChatSearchResults implements Serializable {
+    public List<ChatSearchResult> results;
+    // more messages matched than search ranks, the oldest ones were not looked at
+    public boolean truncated;
+
+    public ChatSearchResults(List<ChatSearchResult> results, boolean truncated) {
+        this.results = results;
+        this.truncated = truncated;
+    }
+}
@@ -3,15 +3,27 @@ package com.ankit.bluetoothchatapp.models;
 import java.io.Serializable;
 
 public class Chats implements Serializable {
+    public static final int SENDER_OTHER = 0;
+    public static final int SENDER_ME = 1;
+
     public int id;
     public String message;
-    public String other_user_id;
-    public String sender;
+    public int other_user_id;
+    public int sender;
+    // milliseconds since epoch, 0 when unknown or not loaded
+    public long created_at;
+    // the message's id on both devices, 0 when it has none
+    public long uid;
 
-    public Chats(int id, String message, String other_user_id, String sender) {
+    public Chats(int id, String message, int other_user_id, int sender) {
         this.id = id;
         this.message = message;
         this.other_user_id = other_user_id;
         this.sender = sender;
     }
+
+    public Chats(int id, String message, int other_user_id, int sender, long created_at) {
+        this(id, message, other_user_id, sender);
+        this.created_at = created_at;
+    }
 }
@@ -0,0 +1,21 @@
+package com.ankit.bluetoothchatapp.models;
+
+import java.io.Serializable;
+
+// a row of the chat list: the user and the newest message exchanged with them
+public class Conversation implements Serializable {
+    public Users user;
+    // 0 and null while no message was exchanged yet
+    public int last_chat_id;
+    public String snippet;
+    public long last_at;
+    public int unread;
+
+    public Conversation(Users user, int last_chat_id, String snippet, long last_at, int unread) {
+        this.user = user;
+        this.last_chat_id = last_chat_id;
+        this.snippet = snippet;
+        this.last_at = last_at;
+        this.unread = unread;
+    }
+}
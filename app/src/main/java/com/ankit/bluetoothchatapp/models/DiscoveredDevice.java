@@ -0,0 +1,22 @@
+package com.ankit.bluetoothchatapp.models;
+
+import java.io.Serializable;
+
+// a row of the device list. Replaced, not changed, when the device is seen again
+public class DiscoveredDevice implements Serializable {
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    public String address;
+    // null until the device told its name
+    public String name;
+    // dBm of the last inquiry response, RSSI_UNKNOWN for paired devices not in range yet
+    public int rssi;
+    public boolean bonded;
+
+    public DiscoveredDevice(String address, String name, int rssi, boolean bonded) {
+        this.address = address;
+        this.name = name;
+        this.rssi = rssi;
+        this.bonded = bonded;
+    }
+}
@@ -0,0 +1,28 @@
+package com.ankit.bluetoothchatapp.models;
+
+import java.io.Serializable;
+
+// what the app remembers about a Bluetooth device. Replaced, not changed, on updates
+public class PeerInfo implements Serializable {
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+    public static final int CHANNEL_UNKNOWN = -1;
+
+    public String address;
+    public String name;
+    // milliseconds since epoch of the last inquiry response or connection
+    public long last_seen;
+    public int rssi;
+    // BluetoothClass.getDeviceClass(), 0 when unknown
+    public int device_class;
+    // RFCOMM channel our chat service had on the device last time
+    public int channel;
+
+    public PeerInfo(String address, String name, long last_seen, int rssi, int device_class, int channel) {
+        this.address = address;
+        this.name = name;
+        this.last_seen = last_seen;
+        this.rssi = rssi;
+        this.device_class = device_class;
+        this.channel = channel;
+    }
+}
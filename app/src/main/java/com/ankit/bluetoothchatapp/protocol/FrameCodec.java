@@ -0,0 +1,73 @@
+package com.ankit.bluetoothchatapp.protocol;
+
+// Wire format of a single frame:
+// [int payload length][byte type][int sequence number][payload bytes]
+// All integers are big endian.
+public class FrameCodec {
+    public static final int HEADER_SIZE = 9;
+    public static final int MAX_PAYLOAD_SIZE = 64 * 1024;
+
+    // chat text, sequence numbers count up from 1 per session. With CAP_SYNC
+    // on both ends: [long message uid][utf-8 text]
+    public static final byte TYPE_MESSAGE = 1;
+    // [long transfer id][long file size][utf-8 file name]
+    public static final byte TYPE_FILE_OFFER = 2;
+    // [long transfer id][long offset][int crc32][chunk bytes]
+    public static final byte TYPE_FILE_CHUNK = 3;
+    // [long transfer id][long next expected offset][byte 1 to resend from there]
+    public static final byte TYPE_FILE_ACK = 4;
+    // first frame of every session, the dialing side's goes first: [byte protocol
+    // version][int capabilities][long session token][int last message received][long node id]
+    public static final byte TYPE_HELLO = 5;
+    // cumulative ack of chat messages, the sequence number field carries the last one received
+    public static final byte TYPE_ACK = 6;
+    // history reconciliation at the start of a session: [byte op][op data], see HistorySync
+    public static final byte TYPE_SYNC = 7;
+
+    // set on the type byte when the payload went through PayloadCompressor
+    public static final byte FLAG_COMPRESSED = (byte) 0x80;
+
+    public static final byte PROTOCOL_VERSION = 1;
+    public static final int CAP_DEFLATE = 1;
+    // message uids and TYPE_SYNC
+    public static final int CAP_SYNC = 2;
+
+    private FrameCodec() {
+    }
+
+    public static byte[] encode(byte type, int seq, byte[] payload) {
+        return encode(type, seq, payload, 0, payload.length);
+    }
+
+    public static byte[] encode(byte type, int seq, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[HEADER_SIZE + length];
+        encode(type, seq, payload, offset, length, frame, 0);
+        return frame;
+    }
+
+    // encode into an existing buffer, returns the number of bytes written
+    public static int encode(byte type, int seq, byte[] payload, int offset, int length, byte[] dest, int destOffset) {
+        if (length > MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Payload too large: " + length);
+        }
+        putInt(dest, destOffset, length);
+        dest[destOffset + 4] = type;
+        putInt(dest, destOffset + 5, seq);
+        System.arraycopy(payload, offset, dest, destOffset + HEADER_SIZE, length);
+        return HEADER_SIZE + length;
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24)
+                | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8)
+                | (buffer[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,98 @@
+package com.ankit.bluetoothchatapp.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reassembles frames from a byte stream. Reads go straight into the decoder's
+// own buffer and complete frames are handed out as slices of it, so a chunk
+// is never copied again after it comes off the socket.
+public class FrameDecoder {
+
+    public interface FrameListener {
+        // buffer is only valid for the duration of the call
+        void onFrame(byte type, int seq, byte[] buffer, int offset, int length);
+    }
+
+    private byte[] buffer;
+    private int start;
+    private int end;
+
+    public FrameDecoder() {
+        this(4096);
+    }
+
+    public FrameDecoder(int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, FrameCodec.HEADER_SIZE)];
+    }
+
+    // read once from the stream, returns the number of frames decoded or -1 at end of stream
+    public int readFrom(InputStream inputStream, FrameListener listener) throws IOException {
+        ensureWritable(1);
+        int bytes = inputStream.read(buffer, end, buffer.length - end);
+        if (bytes < 0) {
+            return -1;
+        }
+        end += bytes;
+        return drain(listener);
+    }
+
+    // decode bytes that were already read somewhere else
+    public int feed(byte[] data, int offset, int length, FrameListener listener) throws IOException {
+        ensureWritable(length);
+        System.arraycopy(data, offset, buffer, end, length);
+        end += length;
+        return drain(listener);
+    }
+
+    // bytes of an incomplete frame still waiting for more input
+    public int pending() {
+        return end - start;
+    }
+
+    private int drain(FrameListener listener) throws IOException {
+        int frames = 0;
+        while (end - start >= FrameCodec.HEADER_SIZE) {
+            int length = FrameCodec.getInt(buffer, start);
+            if (length < 0 || length > FrameCodec.MAX_PAYLOAD_SIZE) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            int frameSize = FrameCodec.HEADER_SIZE + length;
+            if (end - start < frameSize) {
+                // make sure the rest of this frame fits without another resize later
+                ensureWritable(frameSize - (end - start));
+                break;
+            }
+            byte type = buffer[start + 4];
+            int seq = FrameCodec.getInt(buffer, start + 5);
+            listener.onFrame(type, seq, buffer, start + FrameCodec.HEADER_SIZE, length);
+            start += frameSize;
+            frames++;
+        }
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        return frames;
+    }
+
+    private void ensureWritable(int needed) {
+        if (buffer.length - end >= needed) {
+            return;
+        }
+        int used = end - start;
+        if (start > 0 && buffer.length - used >= needed) {
+            // compact the partial frame to the front
+            System.arraycopy(buffer, start, buffer, 0, used);
+        } else {
+            int capacity = buffer.length;
+            while (capacity - used < needed) {
+                capacity *= 2;
+            }
+            byte[] grown = new byte[capacity];
+            System.arraycopy(buffer, start, grown, 0, used);
+            buffer = grown;
+        }
+        start = 0;
+        end = used;
+    }
+}
@@ -0,0 +1,47 @@
+package com.ankit.bluetoothchatapp.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+
+// The read side of a link: frames off a stream, inflated when the sender
+// set FLAG_COMPRESSED, so listeners only ever see plain payloads with the
+// flag cleared. A frame that does not inflate is dropped.
+public class FrameReader {
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final PayloadCompressor decompressor = new PayloadCompressor();
+    private FrameDecoder.FrameListener listener;
+
+    private final FrameDecoder.FrameListener inflater = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(byte type, int seq, byte[] buffer, int offset, int length) {
+            if ((type & FrameCodec.FLAG_COMPRESSED) != 0) {
+                try {
+                    length = decompressor.decompress(buffer, offset, length);
+                } catch (DataFormatException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                buffer = decompressor.getBuffer();
+                offset = 0;
+                type &= ~FrameCodec.FLAG_COMPRESSED;
+            }
+            listener.onFrame(type, seq, buffer, offset, length);
+        }
+    };
+
+    // read once from the stream, returns the number of frames decoded or -1 at end of stream
+    public int readFrom(InputStream inputStream, FrameDecoder.FrameListener listener) throws IOException {
+        this.listener = listener;
+        return decoder.readFrom(inputStream, inflater);
+    }
+
+    // stats of what was inflated so far
+    public PayloadCompressor getDecompressor() {
+        return decompressor;
+    }
+
+    public void release() {
+        decompressor.release();
+    }
+}
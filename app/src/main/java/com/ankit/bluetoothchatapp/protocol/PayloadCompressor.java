@@ -0,0 +1,159 @@
+package com.ankit.bluetoothchatapp.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Raw deflate with a preset dictionary of common chat text, so even short
+// lines compress. One instance per direction of a session; the Deflater and
+// Inflater are reset and reused for every frame.
+// Compressed payload: [int raw length][deflate data]
+public class PayloadCompressor {
+    public static final int DEFAULT_THRESHOLD = 48;
+
+    // most frequent strings go last, deflate reaches them with the shortest distances
+    private static final byte[] DICTIONARY = ("http://www. https:// .com "
+            + "see you tomorrow morning tonight later today "
+            + "good night good morning how was your day "
+            + "can you call me when are you coming where are you "
+            + "I don't know I think I will let me know "
+            + "thank you thanks please sorry okay ok yes no "
+            + "what are you doing how are you hello hi hey ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final int threshold;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] buffer = new byte[1024];
+
+    // counters
+    private long rawBytes;
+    private long compressedBytes;
+    private long compressedFrames;
+    private long skippedFrames;
+    private long elapsedNanos;
+
+    public PayloadCompressor() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public PayloadCompressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    // output of the last compress() or decompress() call
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    // returns the compressed length in getBuffer(), or -1 to send the payload raw
+    public int compress(byte[] data, int offset, int length) {
+        if (length < threshold) {
+            skippedFrames++;
+            return -1;
+        }
+        long start = System.nanoTime();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        // not worth it unless it saves at least the length prefix
+        int limit = length - 4;
+        ensureCapacity(length);
+        FrameCodec.putInt(buffer, 0, length);
+        int size = 4;
+        while (!deflater.finished() && size < limit) {
+            size += deflater.deflate(buffer, size, limit - size);
+        }
+        elapsedNanos += System.nanoTime() - start;
+
+        if (!deflater.finished()) {
+            skippedFrames++;
+            return -1;
+        }
+        compressedFrames++;
+        rawBytes += length;
+        compressedBytes += size;
+        return size;
+    }
+
+    // returns the raw length in getBuffer()
+    public int decompress(byte[] data, int offset, int length) throws DataFormatException {
+        if (length < 4) {
+            throw new DataFormatException("Payload too short: " + length);
+        }
+        long start = System.nanoTime();
+        int rawLength = FrameCodec.getInt(data, offset);
+        if (rawLength < 0 || rawLength > FrameCodec.MAX_PAYLOAD_SIZE) {
+            throw new DataFormatException("Invalid raw length: " + rawLength);
+        }
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data, offset + 4, length - 4);
+
+        ensureCapacity(rawLength);
+        int size = 0;
+        while (size < rawLength) {
+            int n = inflater.inflate(buffer, size, rawLength - size);
+            if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                throw new DataFormatException("Truncated frame");
+            }
+            size += n;
+        }
+        elapsedNanos += System.nanoTime() - start;
+        compressedFrames++;
+        rawBytes += rawLength;
+        compressedBytes += length;
+        return rawLength;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity) {
+            buffer = new byte[Math.max(capacity, buffer.length * 2)];
+        }
+    }
+
+    public void release() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    public long getCompressedFrames() {
+        return compressedFrames;
+    }
+
+    // frames under the threshold or that did not shrink
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    // compressed size / raw size of the frames that were compressed
+    public double getCompressionRatio() {
+        return rawBytes == 0 ? 1 : (double) compressedBytes / rawBytes;
+    }
+
+    // wall time spent in deflate or inflate, including any time the thread was descheduled
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+}
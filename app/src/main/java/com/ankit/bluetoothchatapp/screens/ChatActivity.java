@@ -1,57 +1,76 @@
 package com.ankit.bluetoothchatapp.screens;
 
 import android.Manifest;
-import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.EditText;
-import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.app.ActivityCompat;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
 import androidx.recyclerview.widget.DefaultItemAnimator;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.ankit.bluetoothchatapp.R;
 import com.ankit.bluetoothchatapp.controller.ChatController;
+import com.ankit.bluetoothchatapp.controller.ChatEventListener;
 import com.ankit.bluetoothchatapp.helper.DatabaseHelper;
 import com.ankit.bluetoothchatapp.models.Chats;
 import com.ankit.bluetoothchatapp.models.Users;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 public class ChatActivity extends AppCompatActivity {
+    private static final String TAG = "ChatActivity";
+    // messages loaded at once, and how close to the top the next older page is fetched
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 10;
 
     private RecyclerView recyclerView;
+    private LinearLayoutManager layoutManager;
+    // older messages may exist before chatMessages.get(0)
+    private boolean hasOlderChats;
+    private boolean loadingOlderChats;
     private EditText inputLayout;
-    private List<Chats> chatMessages;
+    // what was last handed to the adapter, never changed in place. The
+    // adapter diffs each new list against it off the main thread
+    private List<Chats> chatMessages = new ArrayList<>();
     private ChatController chatController;
     private BluetoothDevice connectingDevice;
+    private MessageTextCache textCache;
+    private final FrameStats frameStats = new FrameStats();
     Users user;
-    DatabaseHelper db = new DatabaseHelper(this);
+    DatabaseHelper db;
     ChatAdapter adapter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_chat);
+        db = DatabaseHelper.getInstance(this);
 
         connectingDevice = getIntent().getParcelableExtra("connectingDevice");
-        user = (Users) getIntent().getSerializableExtra("user");
+        user = db.getUser(getIntent().getIntExtra("userId", -1));
+        if (user == null) {
+            finish();
+            return;
+        }
 
         setToolbar();
 
@@ -59,8 +78,25 @@ public class ChatActivity extends AppCompatActivity {
         inputLayout = findViewById(R.id.input_layout);
         View btnSend = findViewById(R.id.btn_send);
 
-        recyclerView.setLayoutManager(new LinearLayoutManager(ChatActivity.this));
+        layoutManager = new LinearLayoutManager(ChatActivity.this);
+        recyclerView.setLayoutManager(layoutManager);
         recyclerView.setItemAnimator(new DefaultItemAnimator());
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && hasOlderChats && !loadingOlderChats
+                        && layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+                    // the adapter must not change inside a scroll callback
+                    loadingOlderChats = true;
+                    recyclerView.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            loadOlderChats();
+                        }
+                    });
+                }
+            }
+        });
 
         btnSend.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -74,88 +110,171 @@ public class ChatActivity extends AppCompatActivity {
             }
         });
 
+        // both bubble layouts style the text alike, one measures for both
+        TextView probe = getLayoutInflater().inflate(R.layout.chat_item_received, recyclerView, false).findViewById(R.id.tvMessage);
+        textCache = new MessageTextCache(TextViewCompat.getTextMetricsParams(probe));
+
         //set chat adapter
-        chatMessages = new ArrayList<>();
-        adapter = new ChatAdapter(ChatActivity.this, chatMessages);
+        adapter = new ChatAdapter(textCache);
         recyclerView.setAdapter(adapter);
 
-        registerReceiver(messageReadReceiver, new IntentFilter("MESSAGE_READ"));
-        registerReceiver(messageWriteReceiver, new IntentFilter("MESSAGE_WRITE"));
-        registerReceiver(messageToastReceiver, new IntentFilter("MESSAGE_TOAST"));
-        registerReceiver(messageDeviceObjectReceiver, new IntentFilter("MESSAGE_DEVICE_OBJECT"));
+        chatController = ChatController.getInstance();
+        chatController.addListener(chatEventListener);
 
         getChats();
     }
 
+    // Show the newest page, older ones are loaded while scrolling up. Events
+    // and the posted page load can still arrive after onDestroy()
     void getChats() {
-        List<Chats> chatsList = db.getUserChats(user.id + "");
-        chatMessages.clear();
-        for (int i = 0; i < chatsList.size(); i++) {
-            chatMessages.add(chatsList.get(i));
-            adapter.notifyDataSetChanged();
+        if (isDestroyed()) {
+            return;
         }
-
-        recyclerView.scrollToPosition(recyclerView.getAdapter().getItemCount() - 1);
+        List<Chats> chatsList = db.getUserChats(user.id, Integer.MAX_VALUE, PAGE_SIZE);
+        hasOlderChats = chatsList.size() == PAGE_SIZE;
+        List<Chats> chats = new ArrayList<>(chatsList);
+        submitChats(chats, chats, true);
     }
 
-    class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.MyViewHolder> {
+    // Shows chats once the text of the added rows is measured and the diff
+    // applied, scrollToEnd after that. chatMessages is updated right away so
+    // the next change builds on this one
+    private void submitChats(final List<Chats> chats, List<Chats> added, final boolean scrollToEnd) {
+        chatMessages = chats;
+        textCache.precompute(added, new Runnable() {
+            @Override
+            public void run() {
+                if (isDestroyed()) {
+                    return;
+                }
+                adapter.submitList(chats, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (scrollToEnd && !chats.isEmpty()) {
+                            recyclerView.scrollToPosition(chats.size() - 1);
+                        }
+                    }
+                });
+            }
+        });
+    }
 
-        private List<Chats> listData;
-        Activity context;
+    // The controller stored the message before telling us, add the rows
+    // past the newest one shown. Several events can find the same rows,
+    // the first one takes them
+    private void appendNewChats(boolean sentByMe) {
+        if (isDestroyed()) {
+            return;
+        }
+        int lastId = chatMessages.isEmpty() ? 0 : chatMessages.get(chatMessages.size() - 1).id;
+        List<Chats> added = db.getUserChatsAfter(user.id, lastId, PAGE_SIZE);
+        if (added.isEmpty()) {
+            return;
+        }
+        boolean atBottom = layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - 1;
+        List<Chats> chats = new ArrayList<>(chatMessages.size() + added.size());
+        chats.addAll(chatMessages);
+        chats.addAll(added);
+        // follow the conversation unless the user scrolled up to read older messages
+        submitChats(chats, added, atBottom || sentByMe);
+    }
 
-        public ChatAdapter(Activity context, List<Chats> listData) {
-            this.context = context;
-            this.listData = listData;
+    private void loadOlderChats() {
+        if (isDestroyed() || !hasOlderChats || chatMessages.isEmpty()) {
+            loadingOlderChats = false;
+            return;
         }
+        List<Chats> chatsList = db.getUserChats(user.id, chatMessages.get(0).id, PAGE_SIZE);
+        hasOlderChats = chatsList.size() == PAGE_SIZE;
+        List<Chats> chats = new ArrayList<>(chatsList.size() + chatMessages.size());
+        chats.addAll(chatsList);
+        chats.addAll(chatMessages);
+        chatMessages = chats;
+        // the next page is not due before this one is on screen
+        textCache.precompute(chatsList, new Runnable() {
+            @Override
+            public void run() {
+                if (isDestroyed()) {
+                    return;
+                }
+                adapter.submitList(chats, new Runnable() {
+                    @Override
+                    public void run() {
+                        loadingOlderChats = false;
+                    }
+                });
+            }
+        });
+    }
 
+    // Stored messages never change, so a row is the same as long as its id is.
+    // Sent and received bubbles are separate view types with the background in
+    // the layout: binding only sets the text, measured ahead by MessageTextCache
+    private static final DiffUtil.ItemCallback<Chats> CHATS_DIFF = new DiffUtil.ItemCallback<Chats>() {
         @Override
-        public MyViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
-            View itemView = LayoutInflater.from(parent.getContext()).inflate(R.layout.chat_item_view, parent, false);
-            return new MyViewHolder(itemView);
+        public boolean areItemsTheSame(Chats oldItem, Chats newItem) {
+            return oldItem.id == newItem.id;
         }
 
         @Override
-        public void onBindViewHolder(MyViewHolder holder, int position) {
-
-            Chats data = listData.get(position);
-
-            if (data.sender.equals("1")) {
-                holder.leftView.setVisibility(View.VISIBLE);
-                holder.rightView.setVisibility(View.GONE);
-            } else {
-                holder.leftView.setVisibility(View.GONE);
-                holder.rightView.setVisibility(View.VISIBLE);
-            }
+        public boolean areContentsTheSame(Chats oldItem, Chats newItem) {
+            return oldItem.sender == newItem.sender && oldItem.message.equals(newItem.message);
+        }
+    };
 
-            holder.llParent.setBackgroundResource(data.sender.equals("1") ? R.drawable.my_chat_bg : R.drawable.other_chat_bg);
+    static class ChatAdapter extends ListAdapter<Chats, ChatAdapter.MyViewHolder> {
+        private final MessageTextCache textCache;
+        // binds since the last frame stats, and how many had to measure on the main thread
+        int binds;
+        int measuredBinds;
 
-            holder.tvMessage.setText(data.message);
+        ChatAdapter(MessageTextCache textCache) {
+            super(CHATS_DIFF);
+            this.textCache = textCache;
+            setHasStableIds(true);
+        }
 
-            holder.itemView.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
+        @Override
+        public int getItemViewType(int position) {
+            return getItem(position).sender;
+        }
 
-                }
-            });
+        @Override
+        public long getItemId(int position) {
+            return getItem(position).id;
+        }
 
+        @Override
+        public MyViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            int layout = viewType == Chats.SENDER_ME ? R.layout.chat_item_sent : R.layout.chat_item_received;
+            View itemView = LayoutInflater.from(parent.getContext()).inflate(layout, parent, false);
+            MyViewHolder holder = new MyViewHolder(itemView);
+            holder.precomputable = TextViewCompat.getTextMetricsParams(holder.tvMessage).equals(textCache.getParams());
+            return holder;
         }
 
         @Override
-        public int getItemCount() {
-            return listData.size();
+        public void onBindViewHolder(MyViewHolder holder, int position) {
+            Chats data = getItem(position);
+            PrecomputedTextCompat text = holder.precomputable ? textCache.get(data.id) : null;
+            binds++;
+            if (text != null) {
+                TextViewCompat.setPrecomputedText(holder.tvMessage, text);
+            } else {
+                // evicted from the cache, measure here
+                measuredBinds++;
+                holder.tvMessage.setText(data.message);
+            }
         }
 
-        public class MyViewHolder extends RecyclerView.ViewHolder {
+        static class MyViewHolder extends RecyclerView.ViewHolder {
             TextView tvMessage;
-            LinearLayout llParent;
-            View leftView, rightView;
+            // the TextView takes text measured with the cache's params
+            boolean precomputable;
 
-            public MyViewHolder(View view) {
+            MyViewHolder(View view) {
                 super(view);
                 tvMessage = view.findViewById(R.id.tvMessage);
-                llParent = view.findViewById(R.id.llParent);
-                leftView = view.findViewById(R.id.leftView);
-                rightView = view.findViewById(R.id.rightView);
             }
         }
     }
@@ -173,6 +292,7 @@ public class ChatActivity extends AppCompatActivity {
     @Override
     public void onResume() {
         super.onResume();
+        frameStats.start(this);
         if (chatController != null) {
             if (chatController.getState() == ChatController.STATE_NONE) {
                 chatController.start();
@@ -180,63 +300,94 @@ public class ChatActivity extends AppCompatActivity {
         }
     }
 
-    private final BroadcastReceiver messageToastReceiver = new BroadcastReceiver() {
+    // whatever arrived while the chat was open has been seen
+    @Override
+    public void onPause() {
+        super.onPause();
+        db.markRead(user.id);
+        String frames = frameStats.stop(this);
+        if (frames != null) {
+            Log.i(TAG, frames + ", " + adapter.binds + " binds, " + adapter.measuredBinds + " measured on the main thread");
+        }
+        adapter.binds = 0;
+        adapter.measuredBinds = 0;
+    }
+
+    private final ChatEventListener chatEventListener = new ChatEventListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            Toast.makeText(getApplicationContext(), intent.getStringExtra("toast"), Toast.LENGTH_SHORT).show();
+        public void onToast(String toast) {
+            Toast.makeText(getApplicationContext(), toast, Toast.LENGTH_SHORT).show();
         }
-    };
 
-    private final BroadcastReceiver messageWriteReceiver = new BroadcastReceiver() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            db.addChat(intent.getStringExtra("message"), user.id + "", "1");
-            getChats();
+        public void onMessageWritten(String address, String message, long uid) {
+            if (!address.equals(user.address)) {
+                return;
+            }
+            appendNewChats(true);
+        }
+
+        @Override
+        public void onMessageRead(String address, String message, long uid) {
+            if (!address.equals(user.address)) {
+                return;
+            }
+            appendNewChats(false);
         }
-    };
 
-    private final BroadcastReceiver messageReadReceiver = new BroadcastReceiver() {
+        // synced messages are stored by id like any other, reload to show them
         @Override
-        public void onReceive(Context context, Intent intent) {
-            db.addChat(intent.getStringExtra("message"), user.id + "", "0");
+        public void onHistorySynced(String address, int messages) {
+            if (!address.equals(user.address)) {
+                return;
+            }
             getChats();
         }
-    };
 
-    private final BroadcastReceiver messageDeviceObjectReceiver = new BroadcastReceiver() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                if (ActivityCompat.checkSelfPermission(ChatActivity.this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                    connectingDevice = intent.getParcelableExtra("DEVICE_OBJECT");
-                    Toast.makeText(getApplicationContext(), "Connected to " + connectingDevice.getName(), Toast.LENGTH_SHORT).show();
-                }
-            } else {
-                connectingDevice = intent.getParcelableExtra("DEVICE_OBJECT");
-                Toast.makeText(getApplicationContext(), "Connected to " + connectingDevice.getName(), Toast.LENGTH_SHORT).show();
+        public void onMessageFailed(String address, String message) {
+            if (!address.equals(user.address)) {
+                return;
             }
+            Toast.makeText(getApplicationContext(), "Message not delivered: " + message, Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onDeviceConnected(String address, String name) {
+            if (!address.equals(user.address)) {
+                return;
+            }
+            connectingDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+            Toast.makeText(getApplicationContext(), "Connected to " + name, Toast.LENGTH_SHORT).show();
         }
     };
 
     private void sendMessage(String message) {
-        if (chatController.getState() != ChatController.STATE_CONNECTED) {
+        if (!chatController.isConnected(user.address) && !chatController.isReconnecting(user.address)) {
             Toast.makeText(this, "Connection was lost!", Toast.LENGTH_SHORT).show();
             return;
         }
 
         if (message.length() > 0) {
-            byte[] send = message.getBytes();
-            chatController.write(send);
+            byte[] send = message.getBytes(StandardCharsets.UTF_8);
+            if (send.length > ChatController.MAX_MESSAGE_BYTES) {
+                Toast.makeText(this, "Message is too long", Toast.LENGTH_SHORT).show();
+            } else if (!chatController.write(user.address, send)) {
+                Toast.makeText(this, "Too many messages pending, try again", Toast.LENGTH_SHORT).show();
+            }
         }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        unregisterReceiver(messageReadReceiver);
-        unregisterReceiver(messageWriteReceiver);
-        unregisterReceiver(messageToastReceiver);
-        unregisterReceiver(messageDeviceObjectReceiver);
+        // no new events first, then no more measuring
+        if (chatController != null) {
+            chatController.removeListener(chatEventListener);
+        }
+        if (textCache != null) {
+            textCache.shutdown();
+        }
     }
 
     private void setToolbar() {
@@ -4,14 +4,13 @@ import android.Manifest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -22,30 +21,49 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
 
 import com.ankit.bluetoothchatapp.R;
 import com.ankit.bluetoothchatapp.controller.ChatController;
+import com.ankit.bluetoothchatapp.controller.ChatEventListener;
+import com.ankit.bluetoothchatapp.helper.ChatHistoryStore;
 import com.ankit.bluetoothchatapp.helper.DatabaseHelper;
+import com.ankit.bluetoothchatapp.models.Conversation;
 import com.ankit.bluetoothchatapp.models.Users;
+import com.ankit.bluetoothchatapp.transport.BluetoothTransport;
 
+import java.io.File;
 import java.util.List;
 
+// The launch screen after the splash. The list is drawn from the
+// conversations SplashActivity prefetched, and Bluetooth (transport, server
+// socket, peer cache) is only set up once the first frame is on screen.
+// reportFullyDrawn() marks the list being populated, for the startup
+// benchmark's time to full display.
 public class ChatUsersActivity extends AppCompatActivity {
+    private static final String TAG = "ChatUsersActivity";
 
     private BluetoothAdapter bluetoothAdapter;
     private static final int REQUEST_ENABLE_BLUETOOTH = 1;
     ListView chatsList;
     LinearLayout llProgressBar;
-    DatabaseHelper db = new DatabaseHelper(this);
+    DatabaseHelper db;
     private ArrayAdapter<String> discoveredDevicesAdapter;
     private ChatController chatController;
     private BluetoothDevice connectingDevice;
     Button btnScanForDevices;
+    private boolean firstFrameDrawn;
+    // Bluetooth is on, set up once the first frame is drawn
+    private boolean bluetoothEnabled;
+    private boolean resumed;
+    private boolean resumedBefore;
+    private boolean fullyDrawnReported;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_chat_users);
+        db = DatabaseHelper.getInstance(this);
 
         setToolbar();
 
@@ -66,28 +84,48 @@ public class ChatUsersActivity extends AppCompatActivity {
             finish();
         }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
-            return;
-        }
-        if (bluetoothAdapter.isDiscovering()) {
-            bluetoothAdapter.cancelDiscovery();
-        }
-        bluetoothAdapter.startDiscovery();
-
+        // discovery runs in DevicesActivity, this list is the users already chatted with
         discoveredDevicesAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
         chatsList.setAdapter(discoveredDevicesAdapter);
 
         getUsers();
+
+        chatsList.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                chatsList.getViewTreeObserver().removeOnPreDrawListener(this);
+                // runs once this frame is drawn
+                chatsList.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        firstFrameDrawn = true;
+                        startBluetooth();
+                    }
+                });
+                return true;
+            }
+        });
     }
 
     void getUsers() {
-        List<Users> users = db.getAllUsers();
+        db.loadConversations(new DatabaseHelper.ConversationsCallback() {
+            @Override
+            public void onConversations(List<Conversation> conversations) {
+                // a rotation may have destroyed this instance while the load ran
+                if (!isFinishing() && !isDestroyed()) {
+                    showUsers(conversations);
+                }
+            }
+        });
+    }
+
+    private void showUsers(List<Conversation> conversations) {
         discoveredDevicesAdapter.clear();
         discoveredDevicesAdapter.notifyDataSetChanged();
 
-        if (users.size() > 0) {
-            for (int i = 0; i < users.size(); i++) {
-                discoveredDevicesAdapter.add(users.get(i).name + "\n" + users.get(i).address);
+        if (conversations.size() > 0) {
+            for (int i = 0; i < conversations.size(); i++) {
+                discoveredDevicesAdapter.add(formatConversation(conversations.get(i)));
             }
             chatsList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
                 @Override
@@ -98,16 +136,62 @@ public class ChatUsersActivity extends AppCompatActivity {
             });
         } else {
             discoveredDevicesAdapter.add("No Chat Users");
+            // the placeholder row has no address to connect to
+            chatsList.setOnItemClickListener(null);
+        }
+        if (!fullyDrawnReported) {
+            fullyDrawnReported = true;
+            Log.i(TAG, "conversations loaded in " + db.getLastConversationsLoadMillis() + " ms, prefetch hits "
+                    + db.getConversationPrefetchHits());
+            reportFullyDrawn();
         }
     }
 
+    // after the first frame and once Bluetooth is on, whichever comes last
+    private void startBluetooth() {
+        if (!firstFrameDrawn || !bluetoothEnabled) {
+            return;
+        }
+        chatController = ChatController.getInstance();
+        if (chatController.getTransport() == null) {
+            BluetoothTransport transport = new BluetoothTransport(this);
+            // devices to dial without an SDP lookup
+            transport.setPeerCache(db.getPeerCache());
+            chatController.init(transport, new File(getFilesDir(), "received"), ContextCompat.getMainExecutor(this));
+        }
+        chatController.setMessageStore(new ChatHistoryStore(db));
+        if (resumed) {
+            chatController.addListener(chatEventListener);
+            if (chatController.getState() == ChatController.STATE_NONE) {
+                chatController.start();
+            }
+        }
+    }
+
+    // name (unread count), address, newest message. The address must stay on the second line
+    private String formatConversation(Conversation conversation) {
+        StringBuilder item = new StringBuilder(conversation.user.name);
+        if (conversation.unread > 0) {
+            item.append(" (").append(conversation.unread).append(")");
+        }
+        item.append("\n").append(conversation.user.address);
+        if (conversation.snippet != null) {
+            item.append("\n").append(conversation.snippet);
+        }
+        return item.toString();
+    }
+
     private void connectToDevice(String deviceAddress) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
             return;
         }
+        if (chatController == null) {
+            llProgressBar.setVisibility(View.GONE);
+            return;
+        }
         bluetoothAdapter.cancelDiscovery();
         BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
-        chatController.connect(device);
+        chatController.connect(device.getAddress());
     }
 
     @Override
@@ -116,8 +200,8 @@ public class ChatUsersActivity extends AppCompatActivity {
         switch (requestCode) {
             case REQUEST_ENABLE_BLUETOOTH:
                 if (resultCode == Activity.RESULT_OK) {
-                    chatController = ChatController.getInstance();
-                    chatController.init(this);
+                    bluetoothEnabled = true;
+                    startBluetooth();
                 } else {
                     Toast.makeText(this, "Bluetooth still disabled, turn off application!", Toast.LENGTH_SHORT).show();
                     finish();
@@ -135,64 +219,68 @@ public class ChatUsersActivity extends AppCompatActivity {
             }
             startActivityForResult(enableIntent, REQUEST_ENABLE_BLUETOOTH);
         } else {
-            chatController = ChatController.getInstance();
-            chatController.init(this);
+            bluetoothEnabled = true;
+            startBluetooth();
         }
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        registerReceiver(messageDeviceObjectReceiver, new IntentFilter("MESSAGE_DEVICE_OBJECT"));
         if (chatController != null) {
+            chatController.addListener(chatEventListener);
             if (chatController.getState() == ChatController.STATE_NONE) {
                 chatController.start();
             }
         }
-        getUsers();
+        // onCreate() already asked for the list on the first resume
+        if (resumedBefore) {
+            getUsers();
+        }
+        resumedBefore = true;
+        resumed = true;
     }
 
-    private final BroadcastReceiver messageDeviceObjectReceiver = new BroadcastReceiver() {
+    private final ChatEventListener chatEventListener = new ChatEventListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                if (ActivityCompat.checkSelfPermission(ChatUsersActivity.this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                    connectingDevice = intent.getParcelableExtra("DEVICE_OBJECT");
-                    Toast.makeText(getApplicationContext(), "Connected to " + connectingDevice.getName(), Toast.LENGTH_SHORT).show();
-                    unregisterReceiver(messageDeviceObjectReceiver);
-                    llProgressBar.setVisibility(View.GONE);
-
-                    Users user = db.getUser(connectingDevice.getAddress());
-
-                    if (user == null) {
-                        user = db.getUser(db.addUser(connectingDevice.getName(), connectingDevice.getAddress()));
-                    }
-
-                    Intent i = new Intent(ChatUsersActivity.this, ChatActivity.class);
-                    i.putExtra("connectingDevice", connectingDevice);
-                    i.putExtra("user", user);
-                    startActivity(i);
-                }
-            } else {
-                connectingDevice = intent.getParcelableExtra("DEVICE_OBJECT");
-                Toast.makeText(getApplicationContext(), "Connected to " + connectingDevice.getName(), Toast.LENGTH_SHORT).show();
-                unregisterReceiver(messageDeviceObjectReceiver);
-                llProgressBar.setVisibility(View.GONE);
-
-                Users user = db.getUser(connectingDevice.getAddress());
+        public void onDeviceConnected(final String address, final String name) {
+            connectingDevice = bluetoothAdapter.getRemoteDevice(address);
+            Toast.makeText(getApplicationContext(), "Connected to " + name, Toast.LENGTH_SHORT).show();
+            chatController.removeListener(chatEventListener);
+            llProgressBar.setVisibility(View.GONE);
 
-                if (user == null) {
-                    user = db.getUser(db.addUser(connectingDevice.getName(), connectingDevice.getAddress()));
-                }
+            Users user = db.getUser(address);
 
-                Intent i = new Intent(ChatUsersActivity.this, ChatActivity.class);
-                i.putExtra("connectingDevice", connectingDevice);
-                i.putExtra("user", user);
-                startActivity(i);
+            if (user == null) {
+                db.addUser(name, address, new DatabaseHelper.InsertCallback() {
+                    @Override
+                    public void onInserted(long id) {
+                        openChat(new Users((int) id, name, address));
+                    }
+                });
+            } else {
+                openChat(user);
             }
         }
     };
 
+    private void openChat(Users user) {
+        Intent i = new Intent(ChatUsersActivity.this, ChatActivity.class);
+        i.putExtra("connectingDevice", connectingDevice);
+        // ChatActivity looks the user up again, a cache hit
+        i.putExtra("userId", user.id);
+        startActivity(i);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        resumed = false;
+        if (chatController != null) {
+            chatController.removeListener(chatEventListener);
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
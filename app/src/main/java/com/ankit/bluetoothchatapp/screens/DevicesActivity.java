@@ -3,101 +3,115 @@ package com.ankit.bluetoothchatapp.screens;
 import android.Manifest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.util.Log;
+import android.view.MenuItem;
+import android.view.LayoutInflater;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
+import android.view.ViewGroup;
 import android.widget.LinearLayout;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.app.ActivityCompat;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.ankit.bluetoothchatapp.R;
 import com.ankit.bluetoothchatapp.controller.ChatController;
+import com.ankit.bluetoothchatapp.controller.ChatEventListener;
 import com.ankit.bluetoothchatapp.helper.DatabaseHelper;
+import com.ankit.bluetoothchatapp.models.DiscoveredDevice;
 import com.ankit.bluetoothchatapp.models.Users;
+import com.ankit.bluetoothchatapp.transport.BluetoothTransport;
+import com.ankit.bluetoothchatapp.transport.DeviceDiscovery;
+import com.ankit.bluetoothchatapp.transport.Transport;
 
-import java.util.Set;
+import java.util.List;
 
 public class DevicesActivity extends AppCompatActivity {
 
     private BluetoothAdapter bluetoothAdapter;
+    private static final String TAG = "DevicesActivity";
     private static final int REQUEST_ENABLE_BLUETOOTH = 1;
-    ListView pairedDeviceList;
+    private static final int REQUEST_LOCATION = 2;
+    RecyclerView deviceList;
+    TextView tvNoDevices;
+    private DeviceAdapter deviceAdapter;
+    private DeviceDiscovery discovery;
+    private Toolbar toolbar;
     private ChatController chatController;
     private BluetoothDevice connectingDevice;
     LinearLayout llProgressBar;
-    DatabaseHelper db = new DatabaseHelper(this);
+    DatabaseHelper db;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_devices);
+        db = DatabaseHelper.getInstance(this);
 
         setToolbar();
 
-        pairedDeviceList = findViewById(R.id.pairedDeviceList);
+        deviceList = findViewById(R.id.deviceList);
+        tvNoDevices = findViewById(R.id.tvNoDevices);
         llProgressBar = findViewById(R.id.llProgressBar);
 
+        deviceList.setLayoutManager(new LinearLayoutManager(this));
+        deviceAdapter = new DeviceAdapter(new DeviceClickListener() {
+            @Override
+            public void onDeviceClick(DiscoveredDevice device) {
+                llProgressBar.setVisibility(View.VISIBLE);
+                connectToDevice(device.address);
+            }
+        });
+        deviceList.setAdapter(deviceAdapter);
+
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         if (bluetoothAdapter == null) {
             Toast.makeText(this, "Bluetooth is not available!", Toast.LENGTH_SHORT).show();
             finish();
-        }
-
-        scanForDevices();
-    }
-
-    void scanForDevices() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
             return;
         }
-        if (bluetoothAdapter.isDiscovering()) {
-            bluetoothAdapter.cancelDiscovery();
-        }
-        bluetoothAdapter.startDiscovery();
-
-        ArrayAdapter<String> pairedDevicesAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
 
-        pairedDeviceList.setAdapter(pairedDevicesAdapter);
-
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
+        discovery = new DeviceDiscovery(this, db.getPeerCache(), new DeviceDiscovery.Listener() {
+            @Override
+            public void onDevicesChanged(List<DiscoveredDevice> devices) {
+                deviceAdapter.submitList(devices);
+                tvNoDevices.setVisibility(devices.isEmpty() && !discovery.isRunning() ? View.VISIBLE : View.GONE);
+            }
 
-        if (pairedDevices.size() > 0) {
-            for (BluetoothDevice device : pairedDevices) {
-                if (device.getBluetoothClass().getDeviceClass() == BluetoothClass.Device.PHONE_SMART) {
-                    pairedDevicesAdapter.add(device.getName() + "\n" + device.getAddress());
-                }
+            @Override
+            public void onDiscoveryFinished() {
+                toolbar.setSubtitle(null);
+                tvNoDevices.setVisibility(deviceAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
             }
-            pairedDeviceList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-                @Override
-                public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && ActivityCompat.checkSelfPermission(DevicesActivity.this, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
-                        return;
-                    }
-                    llProgressBar.setVisibility(View.VISIBLE);
-                    bluetoothAdapter.cancelDiscovery();
-                    String info = ((TextView) view).getText().toString();
-                    String address = info.substring(info.length() - 17);
+        });
+        scanForDevices(false);
+    }
 
-                    connectToDevice(address);
-                }
-            });
-        } else {
-            pairedDevicesAdapter.add("No devices have been paired");
+    // Paired and recently seen phones right away, the ones in range as the
+    // inquiry finds them. Without force the inquiry is skipped when phones
+    // were seen in the last few minutes, Scan in the toolbar forces it
+    void scanForDevices(boolean force) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                && !DeviceDiscovery.canDiscover(this)) {
+            toolbar.setSubtitle("Location permission needed to scan");
+            requestPermissions(new String[]{Manifest.permission.ACCESS_FINE_LOCATION}, REQUEST_LOCATION);
+            return;
+        }
+        if (discovery.start(force)) {
+            toolbar.setSubtitle("Scanning...");
+        } else if (!discovery.isRunning()) {
+            toolbar.setSubtitle("Recently seen");
         }
     }
 
@@ -105,9 +119,23 @@ public class DevicesActivity extends AppCompatActivity {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
             return;
         }
-        bluetoothAdapter.cancelDiscovery();
+        discovery.stop();
+        toolbar.setSubtitle(null);
         BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
-        chatController.connect(device);
+        chatController.connect(device.getAddress());
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_LOCATION) {
+            if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                scanForDevices(true);
+            } else {
+                toolbar.setSubtitle(null);
+                tvNoDevices.setVisibility(deviceAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+            }
+        }
     }
 
     @Override
@@ -141,58 +169,142 @@ public class DevicesActivity extends AppCompatActivity {
     @Override
     public void onResume() {
         super.onResume();
-        registerReceiver(messageDeviceObjectReceiver, new IntentFilter("MESSAGE_DEVICE_OBJECT"));
         if (chatController != null) {
+            chatController.addListener(chatEventListener);
             if (chatController.getState() == ChatController.STATE_NONE) {
                 chatController.start();
             }
         }
     }
 
-    private final BroadcastReceiver messageDeviceObjectReceiver = new BroadcastReceiver() {
+    private final ChatEventListener chatEventListener = new ChatEventListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                if (ActivityCompat.checkSelfPermission(DevicesActivity.this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                    connectingDevice = intent.getParcelableExtra("DEVICE_OBJECT");
-                    Toast.makeText(getApplicationContext(), "Connected to " + connectingDevice.getName(), Toast.LENGTH_SHORT).show();
-                    unregisterReceiver(messageDeviceObjectReceiver);
-                    llProgressBar.setVisibility(View.GONE);
-
-                    Users user = db.getUser(connectingDevice.getAddress());
-
-                    if (user == null) {
-                        user = db.getUser(db.addUser(connectingDevice.getName(), connectingDevice.getAddress()));
-                    }
+        public void onDeviceConnected(final String address, final String name) {
+            connectingDevice = bluetoothAdapter.getRemoteDevice(address);
+            Toast.makeText(getApplicationContext(), "Connected to " + name, Toast.LENGTH_SHORT).show();
+            chatController.removeListener(chatEventListener);
+            logConnectStats();
+            llProgressBar.setVisibility(View.GONE);
 
-                    Intent i = new Intent(DevicesActivity.this, ChatActivity.class);
-                    i.putExtra("connectingDevice", connectingDevice);
-                    i.putExtra("user", user);
-                    startActivity(i);
-                }
+            Users user = db.getUser(address);
+
+            if (user == null) {
+                db.addUser(name, address, new DatabaseHelper.InsertCallback() {
+                    @Override
+                    public void onInserted(long id) {
+                        openChat(new Users((int) id, name, address));
+                    }
+                });
             } else {
-                connectingDevice = intent.getParcelableExtra("DEVICE_OBJECT");
-                Toast.makeText(getApplicationContext(), "Connected to " + connectingDevice.getName(), Toast.LENGTH_SHORT).show();
-                unregisterReceiver(messageDeviceObjectReceiver);
-                llProgressBar.setVisibility(View.GONE);
+                openChat(user);
+            }
+        }
+    };
 
-                Users user = db.getUser(connectingDevice.getAddress());
+    private void logConnectStats() {
+        String stats = "connected in " + chatController.getLastConnectMillis() + " ms, average "
+                + chatController.getAverageConnectMillis() + " ms over " + chatController.getConnects();
+        Transport transport = chatController.getTransport();
+        if (transport instanceof BluetoothTransport) {
+            stats += "; " + ((BluetoothTransport) transport).getConnectStats();
+        }
+        Log.i(TAG, stats);
+    }
 
-                if (user == null) {
-                    user = db.getUser(db.addUser(connectingDevice.getName(), connectingDevice.getAddress()));
+    private void openChat(Users user) {
+        Intent i = new Intent(DevicesActivity.this, ChatActivity.class);
+        i.putExtra("connectingDevice", connectingDevice);
+        // ChatActivity looks the user up again, a cache hit
+        i.putExtra("userId", user.id);
+        startActivity(i);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (chatController != null) {
+            chatController.removeListener(chatEventListener);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (discovery != null) {
+            discovery.stop();
+        }
+    }
+
+    interface DeviceClickListener {
+        void onDeviceClick(DiscoveredDevice device);
+    }
+
+    private static final DiffUtil.ItemCallback<DiscoveredDevice> DEVICES_DIFF = new DiffUtil.ItemCallback<DiscoveredDevice>() {
+        @Override
+        public boolean areItemsTheSame(DiscoveredDevice oldItem, DiscoveredDevice newItem) {
+            return oldItem.address.equals(newItem.address);
+        }
+
+        // DeviceDiscovery replaces a row whenever it changes
+        @Override
+        public boolean areContentsTheSame(DiscoveredDevice oldItem, DiscoveredDevice newItem) {
+            return oldItem == newItem;
+        }
+    };
+
+    static class DeviceAdapter extends ListAdapter<DiscoveredDevice, DeviceAdapter.MyViewHolder> {
+        private final DeviceClickListener clickListener;
+
+        DeviceAdapter(DeviceClickListener clickListener) {
+            super(DEVICES_DIFF);
+            this.clickListener = clickListener;
+        }
+
+        @Override
+        public MyViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            View itemView = LayoutInflater.from(parent.getContext()).inflate(R.layout.device_item, parent, false);
+            final MyViewHolder holder = new MyViewHolder(itemView);
+            itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    int position = holder.getBindingAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        clickListener.onDeviceClick(getItem(position));
+                    }
                 }
+            });
+            return holder;
+        }
+
+        @Override
+        public void onBindViewHolder(MyViewHolder holder, int position) {
+            DiscoveredDevice device = getItem(position);
+            holder.tvName.setText(device.name != null ? device.name : device.address);
+            StringBuilder details = new StringBuilder(device.address);
+            if (device.rssi != DiscoveredDevice.RSSI_UNKNOWN) {
+                details.append("  ").append(device.rssi).append(" dBm");
+            }
+            if (device.bonded) {
+                details.append("  Paired");
+            }
+            holder.tvDetails.setText(details);
+        }
 
-                Intent i = new Intent(DevicesActivity.this, ChatActivity.class);
-                i.putExtra("connectingDevice", connectingDevice);
-                i.putExtra("user", user);
-                startActivity(i);
+        static class MyViewHolder extends RecyclerView.ViewHolder {
+            TextView tvName;
+            TextView tvDetails;
+
+            MyViewHolder(View view) {
+                super(view);
+                tvName = view.findViewById(R.id.tvName);
+                tvDetails = view.findViewById(R.id.tvDetails);
             }
         }
-    };
+    }
 
     private void setToolbar() {
-        Toolbar toolbar = findViewById(R.id.toolbar);
-        toolbar.setTitle("Paired Devices");
+        toolbar = findViewById(R.id.toolbar);
+        toolbar.setTitle("Devices");
         toolbar.setNavigationIcon(R.drawable.ic_back);
         toolbar.setNavigationOnClickListener(new View.OnClickListener() {
             @Override
@@ -200,5 +312,16 @@ public class DevicesActivity extends AppCompatActivity {
                 finish();
             }
         });
+        toolbar.inflateMenu(R.menu.devices);
+        toolbar.setOnMenuItemClickListener(new Toolbar.OnMenuItemClickListener() {
+            @Override
+            public boolean onMenuItemClick(MenuItem item) {
+                if (item.getItemId() == R.id.scan) {
+                    scanForDevices(true);
+                    return true;
+                }
+                return false;
+            }
+        });
     }
 }
\ No newline at end of file
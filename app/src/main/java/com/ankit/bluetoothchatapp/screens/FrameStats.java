@@ -0,0 +1,61 @@
+package com.ankit.bluetoothchatapp.screens;
+
+import android.app.Activity;
+import android.util.SparseIntArray;
+
+import androidx.core.app.FrameMetricsAggregator;
+
+// Render times of the frames an activity draws, from FrameMetricsAggregator.
+// Android 7.0 and up only, older versions record nothing.
+class FrameStats {
+    // a frame over this missed 60 Hz vsync
+    private static final int SLOW_FRAME_MILLIS = 16;
+
+    private final FrameMetricsAggregator aggregator = new FrameMetricsAggregator();
+    private boolean recording;
+
+    void start(Activity activity) {
+        if (!recording) {
+            aggregator.add(activity);
+            recording = true;
+        }
+    }
+
+    // stops recording and describes the frames since start(), null if there were none
+    String stop(Activity activity) {
+        if (!recording) {
+            return null;
+        }
+        recording = false;
+        aggregator.remove(activity);
+        SparseIntArray[] metrics = aggregator.reset();
+        SparseIntArray total = metrics == null ? null : metrics[FrameMetricsAggregator.TOTAL_INDEX];
+        if (total == null || total.size() == 0) {
+            return null;
+        }
+        // keys are whole milliseconds in ascending order, values frame counts
+        int frames = 0;
+        int slow = 0;
+        for (int i = 0; i < total.size(); i++) {
+            frames += total.valueAt(i);
+            if (total.keyAt(i) > SLOW_FRAME_MILLIS) {
+                slow += total.valueAt(i);
+            }
+        }
+        return frames + " frames, " + slow + " slow (" + slow * 100 / frames + "%), p50 " + percentile(total, frames, 50)
+                + " ms, p90 " + percentile(total, frames, 90) + " ms, p99 " + percentile(total, frames, 99)
+                + " ms, max " + total.keyAt(total.size() - 1) + " ms";
+    }
+
+    private static int percentile(SparseIntArray histogram, int frames, int percent) {
+        int rank = (frames * percent + 99) / 100;
+        int seen = 0;
+        for (int i = 0; i < histogram.size(); i++) {
+            seen += histogram.valueAt(i);
+            if (seen >= rank) {
+                return histogram.keyAt(i);
+            }
+        }
+        return histogram.keyAt(histogram.size() - 1);
+    }
+}
@@ -0,0 +1,140 @@
+package com.ankit.bluetoothchatapp.screens;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import androidx.core.text.PrecomputedTextCompat;
+
+import com.ankit.bluetoothchatapp.models.Chats;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Message text measured off the main thread. PrecomputedTextCompat does the
+// glyph measurement setText() would otherwise do while binding, only line
+// breaking is left for the main thread. Kept per message id, bounded by the
+// number of characters held. get() runs for every bind, so the ids stay
+// ints: a SparseArray with its own least recently used list instead of an
+// LruCache boxing each id.
+class MessageTextCache {
+    private static final int MAX_CHARS = 256 * 1024;
+
+    private static class Entry {
+        final int id;
+        final PrecomputedTextCompat text;
+        Entry newer;
+        Entry older;
+
+        Entry(int id, PrecomputedTextCompat text) {
+            this.id = id;
+            this.text = text;
+        }
+    }
+
+    private final PrecomputedTextCompat.Params params;
+    // guarded by this, filled on the executor and read on the main thread
+    private final SparseArray<Entry> entries = new SparseArray<>();
+    private Entry newest;
+    private Entry oldest;
+    private int chars;
+    // one thread, pages are measured and handed back in the order they were loaded
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // params of the TextView the text will go into
+    MessageTextCache(PrecomputedTextCompat.Params params) {
+        this.params = params;
+    }
+
+    PrecomputedTextCompat.Params getParams() {
+        return params;
+    }
+
+    // null if never measured or evicted since
+    synchronized PrecomputedTextCompat get(int id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        if (entry != newest) {
+            unlink(entry);
+            link(entry);
+        }
+        return entry.text;
+    }
+
+    private synchronized boolean contains(int id) {
+        return entries.get(id) != null;
+    }
+
+    private synchronized void put(int id, PrecomputedTextCompat text) {
+        if (entries.get(id) != null) {
+            return;
+        }
+        Entry entry = new Entry(id, text);
+        entries.put(id, entry);
+        link(entry);
+        chars += size(text);
+        while (chars > MAX_CHARS) {
+            Entry evicted = oldest;
+            unlink(evicted);
+            entries.remove(evicted.id);
+            chars -= size(evicted.text);
+        }
+    }
+
+    private static int size(PrecomputedTextCompat text) {
+        return Math.max(1, text.length());
+    }
+
+    // as the newest
+    private void link(Entry entry) {
+        entry.older = newest;
+        entry.newer = null;
+        if (newest != null) {
+            newest.newer = entry;
+        } else {
+            oldest = entry;
+        }
+        newest = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.newer != null) {
+            entry.newer.older = entry.older;
+        } else {
+            newest = entry.older;
+        }
+        if (entry.older != null) {
+            entry.older.newer = entry.newer;
+        } else {
+            oldest = entry.newer;
+        }
+    }
+
+    // Measure what is not cached yet, then run done on the main thread. Does
+    // nothing after shutdown(), both are called on the main thread
+    void precompute(final List<Chats> chats, final Runnable done) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Chats chat : chats) {
+                    // measured outside the lock, binds do not wait for it
+                    if (!contains(chat.id)) {
+                        put(chat.id, PrecomputedTextCompat.create(chat.message, params));
+                    }
+                }
+                mainHandler.post(done);
+            }
+        });
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -10,6 +10,7 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
 import com.ankit.bluetoothchatapp.R;
+import com.ankit.bluetoothchatapp.helper.DatabaseHelper;
 
 public class SplashActivity extends AppCompatActivity {
 
@@ -17,6 +18,9 @@ public class SplashActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_splash);
+        // the database opens while the splash and permission checks are up,
+        // ChatUsersActivity shows the list it loads
+        DatabaseHelper.getInstance(this).prefetchConversations();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             if (ActivityCompat.checkSelfPermission(SplashActivity.this, Manifest.permission.BLUETOOTH) == PackageManager.PERMISSION_GRANTED &&
@@ -31,12 +35,15 @@ public class SplashActivity extends AppCompatActivity {
                         Manifest.permission.BLUETOOTH_SCAN}, 2);
             }
         } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // the inquiry needs fine location until Android 12
             if (ActivityCompat.checkSelfPermission(SplashActivity.this, Manifest.permission.BLUETOOTH) == PackageManager.PERMISSION_GRANTED &&
-                    ActivityCompat.checkSelfPermission(SplashActivity.this, Manifest.permission.BLUETOOTH_ADMIN) == PackageManager.PERMISSION_GRANTED) {
+                    ActivityCompat.checkSelfPermission(SplashActivity.this, Manifest.permission.BLUETOOTH_ADMIN) == PackageManager.PERMISSION_GRANTED &&
+                    ActivityCompat.checkSelfPermission(SplashActivity.this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
                 gotoHome();
             } else {
                 requestPermissions(new String[]{Manifest.permission.BLUETOOTH,
-                        Manifest.permission.BLUETOOTH_ADMIN}, 1);
+                        Manifest.permission.BLUETOOTH_ADMIN,
+                        Manifest.permission.ACCESS_FINE_LOCATION}, 1);
             }
         }
     }
@@ -46,7 +53,8 @@ public class SplashActivity extends AppCompatActivity {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         switch (requestCode) {
             case 1:
-                if (grantResults.length > 0 &&
+                // without location the chats still work, DevicesActivity asks again
+                if (grantResults.length > 1 &&
                         grantResults[0] == PackageManager.PERMISSION_GRANTED &&
                         grantResults[1] == PackageManager.PERMISSION_GRANTED) {
                     gotoHome();
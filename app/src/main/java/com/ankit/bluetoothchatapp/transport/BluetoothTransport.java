@@ -0,0 +1,328 @@
+package com.ankit.bluetoothchatapp.transport;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+import com.ankit.bluetoothchatapp.models.PeerInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+// Insecure RFCOMM sockets, the transport the app uses on a real device.
+// With a PeerCache, a connect first dials the channel the peer's chat
+// service had last time and only falls back to the SDP lookup of
+// createInsecureRfcommSocketToServiceRecord() when that fails. A link on a
+// cached channel is tentative: the channel may now belong to another
+// service, so it is stored again only once the peer's HELLO confirms it.
+// Dialing a channel directly is a hidden BluetoothDevice method, reached by
+// reflection, which Android 9 and later may deny; where it is missing every
+// connect goes through SDP.
+public class BluetoothTransport implements Transport {
+    private static final String TAG = "BluetoothTransport";
+    private static final String APP_NAME = "BluetoothChatApp";
+    private static final UUID MY_UUID = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+
+    // the hidden API, looked up once; guarded by BluetoothTransport.class
+    private static boolean hiddenApiChecked;
+    private static Method createChannelSocket;
+    private static Field portField;
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private volatile PeerCache peerCache;
+
+    // connect latency by path; guarded by this
+    private int cachedConnects;
+    private long cachedConnectNanos;
+    private int cacheMisses;
+    private int sdpConnects;
+    private long sdpConnectNanos;
+
+    public BluetoothTransport(Context context) {
+        this.context = context.getApplicationContext();
+        this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        checkPermission(Manifest.permission.BLUETOOTH_CONNECT);
+        return new Server(bluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(APP_NAME, MY_UUID));
+    }
+
+    @Override
+    public TransportConnection openConnection(String address) throws IOException {
+        checkPermission(Manifest.permission.BLUETOOTH_CONNECT);
+        return new Connection(null, bluetoothAdapter.getRemoteDevice(address), false);
+    }
+
+    public void setPeerCache(PeerCache peerCache) {
+        this.peerCache = peerCache;
+    }
+
+    // connects that dialed the cached channel, and their average in milliseconds
+    public synchronized int getCachedConnects() {
+        return cachedConnects;
+    }
+
+    public synchronized long getAverageCachedConnectMillis() {
+        return cachedConnects == 0 ? 0 : cachedConnectNanos / cachedConnects / 1000000;
+    }
+
+    // cached channels that did not answer or reached another service, each followed by an SDP connect
+    public synchronized int getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public synchronized int getSdpConnects() {
+        return sdpConnects;
+    }
+
+    // SDP lookup and connect; a failed cached attempt before it is not included
+    public synchronized long getAverageSdpConnectMillis() {
+        return sdpConnects == 0 ? 0 : sdpConnectNanos / sdpConnects / 1000000;
+    }
+
+    public synchronized String getConnectStats() {
+        return "cached channel " + cachedConnects + " connects, avg " + getAverageCachedConnectMillis() + " ms, "
+                + cacheMisses + " misses; SDP " + sdpConnects + " connects, avg " + getAverageSdpConnectMillis() + " ms";
+    }
+
+    private synchronized void recordConnect(boolean cached, long nanos) {
+        if (cached) {
+            cachedConnects++;
+            cachedConnectNanos += nanos;
+        } else {
+            sdpConnects++;
+            sdpConnectNanos += nanos;
+        }
+    }
+
+    private synchronized void recordCacheMiss() {
+        cacheMisses++;
+    }
+
+    // whether channels can be dialed and read back; the first call looks the
+    // hidden members up and logs if they are not there
+    private static synchronized boolean canDialChannels() {
+        if (!hiddenApiChecked) {
+            hiddenApiChecked = true;
+            try {
+                createChannelSocket = BluetoothDevice.class.getMethod("createInsecureRfcommSocket", int.class);
+                portField = BluetoothSocket.class.getDeclaredField("mPort");
+                portField.setAccessible(true);
+            } catch (Exception e) {
+                createChannelSocket = null;
+                portField = null;
+                Log.w(TAG, "Hidden RFCOMM API not available, connecting through SDP only: " + e);
+            }
+        }
+        return createChannelSocket != null;
+    }
+
+    // hidden BluetoothDevice.createInsecureRfcommSocket(int), null where it is not reachable
+    private static BluetoothSocket createChannelSocket(BluetoothDevice device, int channel) {
+        if (!canDialChannels()) {
+            return null;
+        }
+        try {
+            return (BluetoothSocket) createChannelSocket.invoke(device, channel);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // the channel SDP resolved for a connected socket, from its hidden mPort field
+    private static int getChannel(BluetoothSocket socket) {
+        if (!canDialChannels()) {
+            return PeerInfo.CHANNEL_UNKNOWN;
+        }
+        try {
+            int channel = portField.getInt(socket);
+            return channel > 0 ? channel : PeerInfo.CHANNEL_UNKNOWN;
+        } catch (Exception e) {
+            return PeerInfo.CHANNEL_UNKNOWN;
+        }
+    }
+
+    private void checkPermission(String permission) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && ActivityCompat.checkSelfPermission(context, permission) != PackageManager.PERMISSION_GRANTED) {
+            throw new IOException("Missing permission " + permission);
+        }
+    }
+
+    private class Server implements TransportServer {
+        private final BluetoothServerSocket serverSocket;
+
+        Server(BluetoothServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public TransportConnection accept() throws IOException {
+            BluetoothSocket socket = serverSocket.accept();
+            Connection connection = new Connection(socket, socket.getRemoteDevice(), true);
+            PeerCache cache = peerCache;
+            if (cache != null) {
+                cache.onPeerConnected(connection.getRemoteAddress(), connection.getRemoteName(), PeerInfo.CHANNEL_UNKNOWN);
+            }
+            return connection;
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    public class Connection implements TransportConnection {
+        // set by connect() for outgoing connections, once per attempt
+        private volatile BluetoothSocket socket;
+        private final BluetoothDevice device;
+        private final boolean connected;
+        private volatile boolean closed;
+        // the cached channel this link was dialed on, until confirm()
+        private volatile int tentativeChannel = PeerInfo.CHANNEL_UNKNOWN;
+
+        Connection(BluetoothSocket socket, BluetoothDevice device, boolean connected) {
+            this.socket = socket;
+            this.device = device;
+            this.connected = connected;
+        }
+
+        public BluetoothDevice getDevice() {
+            return device;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (connected) {
+                return;
+            }
+            // Always cancel discovery because it will slow down a connection
+            checkPermission(Manifest.permission.BLUETOOTH_SCAN);
+            bluetoothAdapter.cancelDiscovery();
+
+            String address = device.getAddress();
+            PeerCache cache = peerCache;
+            PeerInfo peer = cache == null ? null : cache.getPeer(address);
+            if (peer != null && peer.channel != PeerInfo.CHANNEL_UNKNOWN) {
+                BluetoothSocket channelSocket = createChannelSocket(device, peer.channel);
+                if (channelSocket != null) {
+                    long start = System.nanoTime();
+                    try {
+                        attempt(channelSocket);
+                        recordConnect(true, System.nanoTime() - start);
+                        // stored again in confirm()
+                        tentativeChannel = peer.channel;
+                        return;
+                    } catch (IOException e) {
+                        if (closed) {
+                            throw e;
+                        }
+                        // the service moved to another channel, or the peer is away
+                        recordCacheMiss();
+                        cache.clearChannel(address);
+                    }
+                }
+            }
+
+            long start = System.nanoTime();
+            BluetoothSocket sdpSocket = device.createInsecureRfcommSocketToServiceRecord(MY_UUID);
+            attempt(sdpSocket);
+            recordConnect(false, System.nanoTime() - start);
+            if (cache != null) {
+                cache.onPeerConnected(address, getRemoteName(), getChannel(sdpSocket));
+            }
+        }
+
+        // a close() from another thread also closes the socket of the attempt in progress
+        private void attempt(BluetoothSocket attemptSocket) throws IOException {
+            socket = attemptSocket;
+            if (closed) {
+                attemptSocket.close();
+                throw new IOException("Connection closed");
+            }
+            try {
+                attemptSocket.connect();
+            } catch (IOException e) {
+                try {
+                    attemptSocket.close();
+                } catch (IOException e2) {
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isTentative() {
+            return tentativeChannel != PeerInfo.CHANNEL_UNKNOWN;
+        }
+
+        // the peer's HELLO came over the cached channel, it is still ours
+        @Override
+        public void confirm() {
+            int channel = tentativeChannel;
+            PeerCache cache = peerCache;
+            tentativeChannel = PeerInfo.CHANNEL_UNKNOWN;
+            if (channel != PeerInfo.CHANNEL_UNKNOWN && cache != null) {
+                cache.onPeerConnected(getRemoteAddress(), getRemoteName(), channel);
+            }
+        }
+
+        // no HELLO, or something else answered: the next connect goes through SDP.
+        // The link stays tentative, the caller closes it
+        @Override
+        public void reject() {
+            PeerCache cache = peerCache;
+            if (tentativeChannel != PeerInfo.CHANNEL_UNKNOWN && cache != null) {
+                recordCacheMiss();
+                cache.clearChannel(getRemoteAddress());
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return device.getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+                return null;
+            }
+            return device.getName();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            BluetoothSocket current = socket;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+}
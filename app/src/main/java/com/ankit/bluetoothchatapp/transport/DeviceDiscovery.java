@@ -0,0 +1,237 @@
+package com.ankit.bluetoothchatapp.transport;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.core.app.ActivityCompat;
+
+import com.ankit.bluetoothchatapp.models.DiscoveredDevice;
+import com.ankit.bluetoothchatapp.models.PeerInfo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Bluetooth discovery as a stream of device lists. Paired phones are listed
+// first, phones found by the inquiry follow in the order they answered. A
+// device seen again replaces its row, RSSI changes below RSSI_STEP are
+// ignored. However fast ACTION_FOUND arrives, the listener gets at most one
+// list per UPDATE_INTERVAL_MILLIS. With a PeerCache, devices seen in the
+// last FRESH_MILLIS are listed from it and the inquiry, which occupies the
+// radio for about 12 seconds, is skipped unless forced. Main thread only.
+public class DeviceDiscovery {
+    private static final long UPDATE_INTERVAL_MILLIS = 250;
+    private static final int RSSI_STEP = 3;
+    public static final long FRESH_MILLIS = 5 * 60 * 1000;
+
+    public interface Listener {
+        // a new list, the previous one is not changed
+        void onDevicesChanged(List<DiscoveredDevice> devices);
+
+        default void onDiscoveryFinished() {
+        }
+    }
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final Listener listener;
+    // may be null
+    private final PeerCache peerCache;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // by address, in the order the devices were first seen
+    private final Map<String, DiscoveredDevice> devices = new LinkedHashMap<>();
+    private boolean running;
+    private boolean updatePending;
+    private long lastUpdateAt = -UPDATE_INTERVAL_MILLIS;
+
+    // counters
+    private int foundEvents;
+    private int updates;
+    private int skippedScans;
+
+    private final Runnable update = new Runnable() {
+        @Override
+        public void run() {
+            updatePending = false;
+            lastUpdateAt = SystemClock.uptimeMillis();
+            updates++;
+            listener.onDevicesChanged(new ArrayList<>(devices.values()));
+        }
+    };
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+                foundEvents++;
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+                BluetoothClass bluetoothClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+                int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                if (device != null && isPhone(bluetoothClass)) {
+                    merge(device.getAddress(), name, rssi, device.getBondState() == BluetoothDevice.BOND_BONDED);
+                    if (peerCache != null) {
+                        peerCache.onPeerSeen(device.getAddress(), name, rssi, bluetoothClass == null ? 0 : bluetoothClass.getDeviceClass());
+                    }
+                }
+            } else if (BluetoothDevice.ACTION_NAME_CHANGED.equals(action)) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                DiscoveredDevice known = device == null ? null : devices.get(device.getAddress());
+                if (known != null) {
+                    merge(known.address, intent.getStringExtra(BluetoothDevice.EXTRA_NAME), known.rssi, known.bonded);
+                }
+            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                // the last batch goes out now rather than after the interval
+                if (updatePending) {
+                    handler.removeCallbacks(update);
+                    update.run();
+                }
+                // the inquiry is over, a later start() registers again
+                running = false;
+                context.unregisterReceiver(receiver);
+                listener.onDiscoveryFinished();
+            }
+        }
+    };
+
+    public DeviceDiscovery(Context context, PeerCache peerCache, Listener listener) {
+        this.context = context;
+        this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        this.peerCache = peerCache;
+        this.listener = listener;
+    }
+
+    // Lists the paired phones and recently seen devices at once. The inquiry
+    // runs if force is set or nothing was seen recently, found devices are
+    // added as they answer. Returns whether the inquiry runs
+    public boolean start(boolean force) {
+        if (running || !canDiscover(context)) {
+            return running;
+        }
+        for (BluetoothDevice device : bluetoothAdapter.getBondedDevices()) {
+            if (isPhone(device.getBluetoothClass())) {
+                merge(device.getAddress(), device.getName(), DiscoveredDevice.RSSI_UNKNOWN, true);
+            }
+        }
+        List<PeerInfo> recent = peerCache == null ? new ArrayList<PeerInfo>()
+                : peerCache.getPeersSeenSince(System.currentTimeMillis() - FRESH_MILLIS);
+        for (PeerInfo peer : recent) {
+            DiscoveredDevice known = devices.get(peer.address);
+            merge(peer.address, peer.name, peer.rssi, known != null && known.bonded);
+        }
+        if (!force && !recent.isEmpty()) {
+            skippedScans++;
+            scheduleUpdate();
+            return false;
+        }
+        running = true;
+        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        context.registerReceiver(receiver, filter);
+        if (bluetoothAdapter.isDiscovering()) {
+            bluetoothAdapter.cancelDiscovery();
+        }
+        bluetoothAdapter.startDiscovery();
+        // the paired ones, or an empty list
+        scheduleUpdate();
+        return true;
+    }
+
+    // also call it before connecting, the inquiry slows down RFCOMM setup
+    public void stop() {
+        handler.removeCallbacks(update);
+        updatePending = false;
+        if (!running) {
+            return;
+        }
+        running = false;
+        context.unregisterReceiver(receiver);
+        if (hasPermission(Manifest.permission.BLUETOOTH_SCAN)) {
+            bluetoothAdapter.cancelDiscovery();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // ACTION_FOUND broadcasts received, and lists handed to the listener
+    public int getFoundEvents() {
+        return foundEvents;
+    }
+
+    public int getUpdates() {
+        return updates;
+    }
+
+    // starts answered from the cache alone
+    public int getSkippedScans() {
+        return skippedScans;
+    }
+
+    private void merge(String address, String name, int rssi, boolean bonded) {
+        DiscoveredDevice known = devices.get(address);
+        if (known != null) {
+            // a found event without a name keeps the one we have
+            if (name == null) {
+                name = known.name;
+            }
+            if (rssi == DiscoveredDevice.RSSI_UNKNOWN
+                    || (known.rssi != DiscoveredDevice.RSSI_UNKNOWN && Math.abs(rssi - known.rssi) < RSSI_STEP)) {
+                rssi = known.rssi;
+            }
+            if (rssi == known.rssi && bonded == known.bonded && (name == null ? known.name == null : name.equals(known.name))) {
+                return;
+            }
+        }
+        devices.put(address, new DiscoveredDevice(address, name, rssi, bonded));
+        scheduleUpdate();
+    }
+
+    // at once if the last list went out long enough ago, else at the end of the interval
+    private void scheduleUpdate() {
+        if (updatePending) {
+            return;
+        }
+        updatePending = true;
+        long delay = lastUpdateAt + UPDATE_INTERVAL_MILLIS - SystemClock.uptimeMillis();
+        handler.postDelayed(update, Math.max(0, delay));
+    }
+
+    // phones only, as the paired list had; a device without a class is kept
+    private static boolean isPhone(BluetoothClass bluetoothClass) {
+        return bluetoothClass == null || bluetoothClass.getMajorDeviceClass() == BluetoothClass.Device.Major.PHONE;
+    }
+
+    // Android 12 has its own scan permission, from 6 to 11 the inquiry
+    // finds nothing without fine location
+    public static boolean canDiscover(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            return isGranted(context, Manifest.permission.BLUETOOTH_SCAN) && isGranted(context, Manifest.permission.BLUETOOTH_CONNECT);
+        }
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.M || isGranted(context, Manifest.permission.ACCESS_FINE_LOCATION);
+    }
+
+    private static boolean isGranted(Context context, String permission) {
+        return ActivityCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private boolean hasPermission(String permission) {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                || ActivityCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+}
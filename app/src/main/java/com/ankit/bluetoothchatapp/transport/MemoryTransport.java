@@ -0,0 +1,256 @@
+package com.ankit.bluetoothchatapp.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// In-process transport backed by ring buffer pipes. Endpoints that share a
+// Network can connect to each other by address.
+public class MemoryTransport implements Transport {
+    private static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    public static class Network {
+        private final ConcurrentHashMap<String, Server> servers = new ConcurrentHashMap<>();
+    }
+
+    private final Network network;
+    private final String localAddress;
+    private final int pipeSize;
+
+    public MemoryTransport(Network network, String localAddress) {
+        this(network, localAddress, DEFAULT_PIPE_SIZE);
+    }
+
+    public MemoryTransport(Network network, String localAddress, int pipeSize) {
+        this.network = network;
+        this.localAddress = localAddress;
+        this.pipeSize = pipeSize;
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        Server server = new Server();
+        if (network.servers.putIfAbsent(localAddress, server) != null) {
+            throw new IOException("Already listening on " + localAddress);
+        }
+        return server;
+    }
+
+    @Override
+    public TransportConnection openConnection(final String address) {
+        return new Connection(address, null, null) {
+            @Override
+            public void connect() throws IOException {
+                Server server = network.servers.get(address);
+                if (server == null) {
+                    throw new IOException("Nobody listening on " + address);
+                }
+                Pipe up = new Pipe(pipeSize);
+                Pipe down = new Pipe(pipeSize);
+                attach(down, up);
+                server.offer(new Connection(localAddress, up, down));
+            }
+        };
+    }
+
+    private class Server implements TransportServer {
+        private final BlockingQueue<Connection> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        void offer(Connection connection) throws IOException {
+            if (closed) {
+                throw new IOException("Connection refused");
+            }
+            pending.add(connection);
+        }
+
+        @Override
+        public TransportConnection accept() throws IOException {
+            try {
+                Connection connection = pending.take();
+                if (closed) {
+                    throw new IOException("Server closed");
+                }
+                return connection;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            network.servers.remove(localAddress, this);
+            // wake up a blocked accept()
+            pending.add(new Connection(null, null, null));
+        }
+    }
+
+    private static class Connection implements TransportConnection {
+        private final String remoteAddress;
+        private Pipe in;
+        private Pipe out;
+
+        Connection(String remoteAddress, Pipe in, Pipe out) {
+            this.remoteAddress = remoteAddress;
+            this.in = in;
+            this.out = out;
+        }
+
+        void attach(Pipe in, Pipe out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void connect() throws IOException {
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteAddress;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (in == null) {
+                throw new IOException("Not connected");
+            }
+            return in.inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                throw new IOException("Not connected");
+            }
+            return out.outputStream;
+        }
+
+        @Override
+        public void close() {
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    // single producer, single consumer byte ring
+    private static class Pipe {
+        private final byte[] ring;
+        private int readPos;
+        private int size;
+        private boolean closed;
+
+        final InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return size;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            ring = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (size == 0 && !closed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (size == 0) {
+                return -1;
+            }
+            int n = Math.min(len, size);
+            int first = Math.min(n, ring.length - readPos);
+            System.arraycopy(ring, readPos, b, off, first);
+            System.arraycopy(ring, 0, b, off + first, n - first);
+            readPos = (readPos + n) % ring.length;
+            size -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                try {
+                    while (size == ring.length && !closed) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+                int writePos = (readPos + size) % ring.length;
+                int n = Math.min(len, ring.length - size);
+                int first = Math.min(n, ring.length - writePos);
+                System.arraycopy(b, off, ring, writePos, first);
+                System.arraycopy(b, off + first, ring, 0, n - first);
+                size += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.ankit.bluetoothchatapp.transport;
+
+import com.ankit.bluetoothchatapp.models.PeerInfo;
+
+import java.util.List;
+
+// Devices remembered across runs. Lets BluetoothTransport dial the RFCOMM
+// channel it used last time instead of asking the peer over SDP, and
+// DeviceDiscovery list recent devices without an inquiry. Thread safe.
+public interface PeerCache {
+
+    // null if never seen
+    PeerInfo getPeer(String address);
+
+    // devices seen or connected to at or after time, milliseconds since epoch
+    List<PeerInfo> getPeersSeenSince(long time);
+
+    // an inquiry response. name null keeps the known one
+    void onPeerSeen(String address, String name, int rssi, int deviceClass);
+
+    // a link came up; channel PeerInfo.CHANNEL_UNKNOWN keeps the known one
+    void onPeerConnected(String address, String name, int channel);
+
+    // the cached channel did not answer
+    void clearChannel(String address);
+}
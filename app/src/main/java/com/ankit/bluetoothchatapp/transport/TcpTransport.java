@@ -0,0 +1,92 @@
+package com.ankit.bluetoothchatapp.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// Localhost TCP transport. Addresses are "host:port" strings.
+public class TcpTransport implements Transport {
+    private final int listenPort;
+
+    public TcpTransport(int listenPort) {
+        this.listenPort = listenPort;
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort));
+        return new TransportServer() {
+            @Override
+            public TransportConnection accept() throws IOException {
+                return new Connection(serverSocket.accept(), null);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public TransportConnection openConnection(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Expected host:port but got " + address);
+        }
+        InetSocketAddress remote = new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        return new Connection(new Socket(), remote);
+    }
+
+    private static class Connection implements TransportConnection {
+        private final Socket socket;
+        private final InetSocketAddress remote;
+
+        Connection(Socket socket, InetSocketAddress remote) throws IOException {
+            this.socket = socket;
+            this.remote = remote;
+            socket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!socket.isConnected()) {
+                socket.connect(remote);
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            if (remote != null) {
+                return remote.getHostString() + ":" + remote.getPort();
+            }
+            return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
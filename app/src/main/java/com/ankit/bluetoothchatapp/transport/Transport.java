@@ -0,0 +1,14 @@
+package com.ankit.bluetoothchatapp.transport;
+
+import java.io.IOException;
+
+// Link layer the ChatController runs on. RFCOMM on a phone, in-memory pipes
+// or localhost TCP when driving the controller on a plain JVM.
+public interface Transport {
+
+    // start listening for incoming connections
+    TransportServer listen() throws IOException;
+
+    // create a connection to the given address, call connect() on it to open the link
+    TransportConnection openConnection(String address) throws IOException;
+}
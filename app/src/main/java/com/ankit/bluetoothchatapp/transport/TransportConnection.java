@@ -0,0 +1,33 @@
+package com.ankit.bluetoothchatapp.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public interface TransportConnection extends Closeable {
+
+    // open the link, does nothing for connections returned by TransportServer.accept()
+    void connect() throws IOException;
+
+    String getRemoteAddress();
+
+    String getRemoteName();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    // The link was opened on a guess, such as a cached RFCOMM channel, and
+    // may have reached some other service. The controller calls confirm()
+    // once the peer's HELLO is in, or reject() and dials again
+    default boolean isTentative() {
+        return false;
+    }
+
+    default void confirm() {
+    }
+
+    default void reject() {
+    }
+}
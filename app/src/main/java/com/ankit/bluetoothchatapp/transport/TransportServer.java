@@ -0,0 +1,10 @@
+package com.ankit.bluetoothchatapp.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface TransportServer extends Closeable {
+
+    // blocks until a peer connects, throws once the server is closed
+    TransportConnection accept() throws IOException;
+}
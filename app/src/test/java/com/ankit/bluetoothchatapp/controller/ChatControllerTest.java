@@ -0,0 +1,193 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import com.ankit.bluetoothchatapp.transport.MemoryTransport;
+import com.ankit.bluetoothchatapp.transport.TcpTransport;
+import com.ankit.bluetoothchatapp.transport.Transport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// Two controllers on one JVM: B dials A, both exchange HELLO, B sends a chat
+// message and gets A's ACK, over in-memory pipes and over localhost TCP
+public class ChatControllerTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private ChatController server;
+    private ChatController client;
+    private final Events serverEvents = new Events();
+    private final Events clientEvents = new Events();
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void messageOverMemoryTransport() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        exchange(new MemoryTransport(network, "A"), new MemoryTransport(network, "B"), "A");
+    }
+
+    @Test
+    public void messageOverTcpTransport() throws Exception {
+        int port = freePort();
+        exchange(new TcpTransport(port), new TcpTransport(0), "127.0.0.1:" + port);
+    }
+
+    @Test
+    public void writeTakesMessagesUpToOneFrame() throws Exception {
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        connect(new MemoryTransport(network, "A"), new MemoryTransport(network, "B"), "A");
+
+        byte[] tooLong = new byte[ChatController.MAX_MESSAGE_BYTES + 1];
+        Arrays.fill(tooLong, (byte) 'x');
+        assertFalse(client.write("A", tooLong));
+        assertFalse(client.write("A", tooLong, 100));
+
+        // the longest one still goes through, and so does what follows it
+        byte[] longest = Arrays.copyOf(tooLong, ChatController.MAX_MESSAGE_BYTES);
+        assertTrue(client.write("A", longest));
+        assertTrue(client.write("A", "next".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(ChatController.MAX_MESSAGE_BYTES, poll(serverEvents.read).length());
+        assertEquals("next", poll(serverEvents.read));
+        assertEquals(ChatController.MAX_MESSAGE_BYTES, poll(clientEvents.written).length());
+        assertEquals("next", poll(clientEvents.written));
+    }
+
+    @Test
+    public void messagesAreStoredBeforeTheEvents() throws Exception {
+        MemoryStore serverStore = new MemoryStore();
+        MemoryStore clientStore = new MemoryStore();
+        MemoryTransport.Network network = new MemoryTransport.Network();
+        server = new ChatController(new MemoryTransport(network, "A"));
+        client = new ChatController(new MemoryTransport(network, "B"));
+        server.setMessageStore(serverStore);
+        client.setMessageStore(clientStore);
+        exchange(server, client, "A");
+
+        List<MessageStore.Message> received = serverStore.messages("B");
+        assertEquals(1, received.size());
+        assertFalse(received.get(0).outgoing);
+        assertEquals("hello over the link", received.get(0).text);
+        List<MessageStore.Message> sent = clientStore.messages("A");
+        assertEquals(1, sent.size());
+        assertTrue(sent.get(0).outgoing);
+        assertEquals(received.get(0).uid, sent.get(0).uid);
+    }
+
+    private void exchange(Transport serverTransport, Transport clientTransport, String serverAddress) throws Exception {
+        exchange(new ChatController(serverTransport), new ChatController(clientTransport), serverAddress);
+    }
+
+    private void exchange(ChatController server, ChatController client, String serverAddress) throws Exception {
+        connect(server, client, serverAddress);
+        assertTrue(client.write(serverAddress, "hello over the link".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("hello over the link", poll(serverEvents.read));
+        // onMessageWritten fires for the peer's ACK
+        assertEquals("hello over the link", poll(clientEvents.written));
+        assertEquals(0, client.getSendWindow(serverAddress).getInFlight());
+    }
+
+    private void connect(Transport serverTransport, Transport clientTransport, String serverAddress) throws Exception {
+        connect(new ChatController(serverTransport), new ChatController(clientTransport), serverAddress);
+    }
+
+    private void connect(ChatController server, ChatController client, String serverAddress) throws Exception {
+        this.server = server;
+        this.client = client;
+        server.addListener(serverEvents);
+        client.addListener(clientEvents);
+        // listening once start() returns
+        server.start();
+
+        client.connect(serverAddress);
+        assertEquals(serverAddress, poll(clientEvents.connected));
+        assertNotNull(poll(serverEvents.connected));
+    }
+
+    private static String poll(BlockingQueue<String> queue) throws InterruptedException {
+        String value = queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(value);
+        return value;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            return socket.getLocalPort();
+        }
+    }
+
+    // keeps what the controller stores, sync finds nothing to exchange
+    private static class MemoryStore implements MessageStore {
+        private final Map<String, List<Message>> messages = new HashMap<>();
+
+        synchronized List<Message> messages(String address) {
+            List<Message> list = messages.get(address);
+            return list != null ? new ArrayList<>(list) : new ArrayList<Message>();
+        }
+
+        @Override
+        public synchronized long[] getSyncIds(String address) {
+            return new long[0];
+        }
+
+        @Override
+        public synchronized List<Message> getMessages(String address, long[] uids) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public synchronized int addMessages(String address, String name, List<Message> added) {
+            List<Message> list = messages.get(address);
+            if (list == null) {
+                list = new ArrayList<>();
+                messages.put(address, list);
+            }
+            list.addAll(added);
+            return added.size();
+        }
+    }
+
+    private static class Events implements ChatEventListener {
+        final BlockingQueue<String> connected = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> read = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> written = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onDeviceConnected(String address, String name) {
+            connected.add(address);
+        }
+
+        @Override
+        public void onMessageRead(String address, String message) {
+            read.add(message);
+        }
+
+        @Override
+        public void onMessageWritten(String address, String message) {
+            written.add(message);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class FileReceiverTest {
+    private static final long ID = 42;
+
+    private File directory;
+    private FileReceiver receiver;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("receiver").toFile();
+        receiver = new FileReceiver(directory, ID, "notes.txt", 8);
+    }
+
+    @After
+    public void tearDown() {
+        receiver.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void acksEachChunkInOrder() throws IOException {
+        assertAck(receiver.onChunk(chunk(0, "abcd", false), 0, chunkLength(4)), 4, false);
+        assertAck(receiver.onChunk(chunk(4, "efgh", false), 0, chunkLength(4)), 8, false);
+        assertTrue(receiver.isComplete());
+        File file = receiver.finish();
+        assertEquals("abcdefgh", new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void duplicateChunkRepeatsTheAck() throws IOException {
+        receiver.onChunk(chunk(0, "abcd", false), 0, chunkLength(4));
+        // the first ack was lost and the sender went back
+        assertAck(receiver.onChunk(chunk(0, "abcd", false), 0, chunkLength(4)), 4, false);
+        assertEquals(4, receiver.getExpectedOffset());
+    }
+
+    @Test
+    public void corruptChunkAsksForResendOnce() throws IOException {
+        assertAck(receiver.onChunk(chunk(0, "abcd", true), 0, chunkLength(4)), 0, true);
+        assertNull(receiver.onChunk(chunk(0, "abcd", true), 0, chunkLength(4)));
+        // chunks after the gap wait for the resend
+        assertNull(receiver.onChunk(chunk(4, "efgh", false), 0, chunkLength(4)));
+        assertAck(receiver.onChunk(chunk(0, "abcd", false), 0, chunkLength(4)), 4, false);
+    }
+
+    private static int chunkLength(int dataLength) {
+        return FileTransfer.CHUNK_HEADER_SIZE + dataLength;
+    }
+
+    private static byte[] chunk(long offset, String data, boolean corrupt) {
+        byte[] bytes = data.getBytes();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer chunk = ByteBuffer.allocate(FileTransfer.CHUNK_HEADER_SIZE + bytes.length);
+        chunk.putLong(ID).putLong(offset).putInt((int) crc.getValue() ^ (corrupt ? 1 : 0)).put(bytes);
+        return chunk.array();
+    }
+
+    private static void assertAck(byte[] ack, long offset, boolean resend) {
+        assertNotNull(ack);
+        ByteBuffer buffer = ByteBuffer.wrap(ack);
+        assertEquals(ID, buffer.getLong());
+        assertEquals(offset, buffer.getLong());
+        assertEquals(resend ? 1 : 0, buffer.get());
+    }
+}
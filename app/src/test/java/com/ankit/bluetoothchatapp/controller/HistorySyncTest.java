@@ -0,0 +1,223 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import com.ankit.bluetoothchatapp.protocol.FrameCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class HistorySyncTest {
+
+    @Test
+    public void bothEndsEndUpWithEveryMessage() {
+        Link link = new Link();
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            long uid = random.nextLong() & Long.MAX_VALUE;
+            link.a.store.put(uid, i % 2 == 0, "shared " + i);
+            link.b.store.put(uid, i % 2 != 0, "shared " + i);
+        }
+        for (int i = 0; i < 4; i++) {
+            link.a.store.put(random.nextLong() & Long.MAX_VALUE, true, "only a " + i);
+        }
+        for (int i = 0; i < 3; i++) {
+            link.b.store.put(random.nextLong() & Long.MAX_VALUE, true, "only b " + i);
+        }
+        link.run();
+
+        assertEquals(5007, link.a.store.messages.size());
+        assertEquals(link.a.store.messages.keySet(), link.b.store.messages.keySet());
+        assertEquals(3, link.a.synced);
+        assertEquals(4, link.b.synced);
+        // what one end sent counts as received on the other
+        for (MessageStore.Message message : link.b.store.messages.values()) {
+            if (message.text.startsWith("only a")) {
+                assertFalse(message.outgoing);
+            }
+        }
+    }
+
+    @Test
+    public void equalHistoriesCostOneRoundTrip() {
+        Link link = new Link();
+        for (long uid = 1; uid <= 1000; uid++) {
+            link.a.store.put(uid * 7919, true, "m" + uid);
+            link.b.store.put(uid * 7919, false, "m" + uid);
+        }
+        link.run();
+        assertEquals(1, link.frames);
+        assertEquals(0, link.a.synced + link.b.synced);
+    }
+
+    @Test
+    public void onlyNewMessagesAreReported() {
+        Link link = new Link();
+        link.a.store.put(11, true, "one");
+        link.a.store.put(12, true, "two");
+        // the store already got "one" live while the digest was underway
+        link.b.store.stored.add(11L);
+        link.run();
+        assertEquals(1, link.b.synced);
+    }
+
+    @Test
+    public void messageOverAFrameIsLeftOut() {
+        Link link = new Link();
+        StringBuilder text = new StringBuilder();
+        while (text.length() <= FrameCodec.MAX_PAYLOAD_SIZE) {
+            text.append("long message ");
+        }
+        link.a.store.put(21, true, "before");
+        link.a.store.put(22, true, text.toString());
+        link.a.store.put(23, true, "after");
+        link.run();
+        assertTrue(link.largest <= FrameCodec.MAX_PAYLOAD_SIZE);
+        assertEquals(2, link.b.synced);
+        assertFalse(link.b.store.messages.containsKey(22L));
+    }
+
+    @Test
+    public void countLargerThanTheFrameDropsTheSync() {
+        End end = new End("A");
+        end.store.put(5, true, "hello");
+        ByteBuffer request = ByteBuffer.allocate(13);
+        request.put(HistorySync.OP_REQUEST).putInt(Integer.MAX_VALUE).putLong(5);
+        request.flip();
+        end.sync.onFrame(request);
+        assertTrue(end.sync.isDropped());
+        assertTrue(end.sent.isEmpty());
+
+        // later frames are ignored
+        ByteBuffer valid = ByteBuffer.allocate(13);
+        valid.put(HistorySync.OP_REQUEST).putInt(1).putLong(5);
+        valid.flip();
+        end.sync.onFrame(valid);
+        assertTrue(end.sent.isEmpty());
+    }
+
+    @Test
+    public void messageLengthPastTheEndDropsTheSync() {
+        End end = new End("A");
+        ByteBuffer messages = ByteBuffer.allocate(5 + 21 + 2);
+        messages.put(HistorySync.OP_MESSAGES).putInt(1);
+        messages.putLong(9).put((byte) 1).putLong(1000).putInt(1 << 20).put((byte) 'h').put((byte) 'i');
+        messages.flip();
+        end.sync.onFrame(messages);
+        assertTrue(end.sync.isDropped());
+        assertTrue(end.store.messages.isEmpty());
+    }
+
+    @Test
+    public void truncatedFrameDropsTheSync() {
+        End end = new End("A");
+        ByteBuffer ranges = ByteBuffer.allocate(5 + 10);
+        ranges.put(HistorySync.OP_RANGES).putInt(0).putLong(1).put((byte) 0).put((byte) 0);
+        ranges.flip();
+        // n = 0 is fine, a range cut short is not
+        end.sync.onFrame(ranges);
+        assertFalse(end.sync.isDropped());
+
+        ByteBuffer ids = ByteBuffer.allocate(1 + 8);
+        ids.put(HistorySync.OP_IDS).putLong(1);
+        ids.flip();
+        end.sync.onFrame(ids);
+        assertTrue(end.sync.isDropped());
+    }
+
+    // uid -> message, counts what addMessages() stored
+    private static class Store implements MessageStore {
+        final Map<Long, Message> messages = new TreeMap<>();
+        final List<Long> stored = new ArrayList<>();
+
+        void put(long uid, boolean outgoing, String text) {
+            messages.put(uid, new Message(uid, outgoing, uid, text));
+        }
+
+        @Override
+        public long[] getSyncIds(String address) {
+            long[] ids = new long[messages.size()];
+            int i = 0;
+            for (long uid : messages.keySet()) {
+                ids[i++] = uid;
+            }
+            return ids;
+        }
+
+        @Override
+        public List<Message> getMessages(String address, long[] uids) {
+            List<Message> found = new ArrayList<>();
+            for (long uid : uids) {
+                if (messages.containsKey(uid)) {
+                    found.add(messages.get(uid));
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public int addMessages(String address, String name, List<Message> added) {
+            int count = 0;
+            for (Message message : added) {
+                if (messages.put(message.uid, message) == null && !stored.contains(message.uid)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static class End {
+        final Store store = new Store();
+        final Queue<byte[]> sent = new ArrayDeque<>();
+        final HistorySync sync;
+        int synced;
+
+        End(String peer) {
+            sync = new HistorySync(peer, "Device " + peer, store, new HistorySync.Sender() {
+                @Override
+                public void send(byte[] payload) {
+                    sent.add(payload);
+                }
+            }, new HistorySync.Listener() {
+                @Override
+                public void onSynced(String address, int messages) {
+                    synced += messages;
+                }
+            });
+        }
+    }
+
+    // two ends passing frames until both are quiet
+    private static class Link {
+        final End a = new End("B");
+        final End b = new End("A");
+        int frames;
+        int largest;
+
+        void run() {
+            a.sync.start();
+            while (!a.sent.isEmpty() || !b.sent.isEmpty()) {
+                deliver(a, b);
+                deliver(b, a);
+            }
+        }
+
+        private void deliver(End from, End to) {
+            byte[] payload;
+            while ((payload = from.sent.poll()) != null) {
+                frames++;
+                largest = Math.max(largest, payload.length);
+                to.sync.onFrame(ByteBuffer.wrap(payload));
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import com.ankit.bluetoothchatapp.protocol.FrameCodec;
+import com.ankit.bluetoothchatapp.protocol.FrameDecoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class OutboundWriterTest {
+
+    private static class Recorder implements OutboundWriter.Listener {
+        final List<Integer> written = new ArrayList<>();
+        final List<Integer> rejected = new ArrayList<>();
+        IOException failure;
+
+        @Override
+        public void onWritten(byte type, int seq, byte[] payload, long latencyNanos) {
+            written.add(seq);
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            failure = e;
+        }
+
+        @Override
+        public void onFrameRejected(byte type, int seq, byte[] payload, RuntimeException e) {
+            rejected.add(seq);
+        }
+    }
+
+    // runs the drain only when the test says so, so the offers share one batch
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    @Test
+    public void oversizeFrameDoesNotTakeTheBatchWithIt() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        OutboundWriter writer = new OutboundWriter(out, OutboundWriter.DEFAULT_CAPACITY, executor, recorder);
+
+        writer.offer(FrameCodec.TYPE_MESSAGE, 1, new byte[]{1});
+        writer.offer(FrameCodec.TYPE_MESSAGE, 2, new byte[FrameCodec.MAX_PAYLOAD_SIZE + 1]);
+        writer.offer(FrameCodec.TYPE_ACK, 3, new byte[0]);
+        executor.runAll();
+
+        assertNull(recorder.failure);
+        assertEquals(1, recorder.rejected.size());
+        assertEquals(2, (int) recorder.rejected.get(0));
+        assertEquals(2, recorder.written.size());
+
+        final List<Integer> seqs = new ArrayList<>();
+        new FrameDecoder().readFrom(new ByteArrayInputStream(out.toByteArray()), new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(byte type, int seq, byte[] buffer, int offset, int length) {
+                seqs.add(seq);
+            }
+        });
+        assertEquals(2, seqs.size());
+        assertEquals(1, (int) seqs.get(0));
+        assertEquals(3, (int) seqs.get(1));
+
+        // the writer keeps going
+        writer.offer(FrameCodec.TYPE_MESSAGE, 4, new byte[]{4});
+        executor.runAll();
+        assertEquals(3, recorder.written.size());
+    }
+}
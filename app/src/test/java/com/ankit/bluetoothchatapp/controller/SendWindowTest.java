@@ -0,0 +1,107 @@
+package com.ankit.bluetoothchatapp.controller;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SendWindowTest {
+    private static final long MS = 1000000;
+
+    @Test
+    public void cumulativeAckReleasesEverythingUpToIt() {
+        SendWindow window = new SendWindow();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, window.add(new byte[]{(byte) i}, 0).seq);
+        }
+        List<SendWindow.Entry> acked = window.ack(2, 50 * MS);
+        assertEquals(2, acked.size());
+        assertEquals(1, acked.get(0).seq);
+        assertEquals(2, acked.get(1).seq);
+        assertEquals(1, window.getInFlight());
+        assertEquals(50, window.getSmoothedRttMillis());
+    }
+
+    @Test
+    public void staleAndRepeatedAcksAreIgnored() {
+        SendWindow window = new SendWindow();
+        window.add(new byte[0], 0);
+        window.add(new byte[0], 0);
+        assertEquals(1, window.ack(1, 10 * MS).size());
+        assertTrue(window.ack(1, 20 * MS).isEmpty());
+        assertTrue(window.ack(0, 20 * MS).isEmpty());
+        assertEquals(1, window.getInFlight());
+    }
+
+    @Test
+    public void fillsUpToTheWindowSize() {
+        SendWindow window = new SendWindow();
+        for (int i = 0; i < SendWindow.INITIAL_WINDOW; i++) {
+            assertFalse(window.isFull());
+            window.add(new byte[0], 0);
+        }
+        assertTrue(window.isFull());
+    }
+
+    @Test
+    public void timeoutResendsEverythingAndBacksOff() {
+        SendWindow window = new SendWindow();
+        window.add(new byte[0], 0);
+        window.add(new byte[0], 0);
+        long rto = window.getRetransmissionTimeoutMillis();
+        assertTrue(window.due((rto - 1) * MS).isEmpty());
+
+        List<SendWindow.Entry> resend = window.due(rto * MS);
+        assertEquals(2, resend.size());
+        assertTrue(resend.get(0).retransmitted);
+        assertEquals(2 * rto, window.getRetransmissionTimeoutMillis());
+        assertEquals(SendWindow.MIN_WINDOW, window.getWindowSize());
+        assertEquals(2, window.getRetransmissions());
+    }
+
+    @Test
+    public void retransmittedEntriesGiveNoRttSample() {
+        SendWindow window = new SendWindow();
+        window.add(new byte[0], 0);
+        window.due(window.getRetransmissionTimeoutMillis() * MS);
+        window.ack(1, 5000 * MS);
+        assertEquals(-1, window.getSmoothedRttMillis());
+    }
+
+    @Test
+    public void windowGrowsOnSteadyRtt() {
+        SendWindow window = new SendWindow();
+        long now = 0;
+        for (int i = 1; i <= 10; i++) {
+            window.add(new byte[0], now);
+            now += 20 * MS;
+            window.ack(i, now);
+        }
+        assertEquals(SendWindow.INITIAL_WINDOW + 10, window.getWindowSize());
+    }
+
+    @Test
+    public void resumeKeepsWhatThePeerMissed() {
+        SendWindow window = new SendWindow();
+        for (int i = 0; i < 4; i++) {
+            window.add(new byte[0], 0);
+        }
+        assertEquals(2, window.resume(2).size());
+        List<SendWindow.Entry> resend = window.rewind(100 * MS);
+        assertEquals(2, resend.size());
+        assertEquals(3, resend.get(0).seq);
+        // numbering goes on where it was
+        assertEquals(5, window.add(new byte[0], 0).seq);
+    }
+
+    @Test
+    public void clearRestartsNumbering() {
+        SendWindow window = new SendWindow();
+        window.add(new byte[0], 0);
+        window.add(new byte[0], 0);
+        assertEquals(2, window.clear().size());
+        assertEquals(0, window.getInFlight());
+        assertEquals(1, window.add(new byte[0], 0).seq);
+    }
+}
@@ -0,0 +1,98 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import com.ankit.bluetoothchatapp.models.Chats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChatArchiveTest {
+    private static final int USER = 3;
+
+    private File directory;
+    private ChatArchive archive;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("archive").toFile();
+        archive = new ChatArchive(directory);
+    }
+
+    @After
+    public void tearDown() {
+        archive.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void pagesAcrossBlocks() throws IOException {
+        archive.append(USER, chats(1, 300));
+        assertEquals(300, archive.getLastId(USER));
+        assertEquals(300, archive.getCount(USER));
+
+        List<Chats> page = archive.getChats(USER, 200, 50);
+        assertEquals(50, page.size());
+        assertEquals(150, page.get(0).id);
+        assertEquals(199, page.get(49).id);
+        assertEquals("message 150", page.get(0).message);
+
+        List<Chats> after = archive.getChatsAfter(USER, 120, 20);
+        assertEquals(121, after.get(0).id);
+        assertEquals(140, after.get(19).id);
+        assertTrue(archive.getChatsAfter(USER, 300, 20).isEmpty());
+    }
+
+    @Test
+    public void keepsSenderAndTime() throws IOException {
+        archive.append(USER, chats(5, 6));
+        Chats chat = archive.getChats(USER, Integer.MAX_VALUE, 1).get(0);
+        assertEquals(6, chat.id);
+        assertEquals(0, chat.sender);
+        assertEquals(1500000006000L, chat.created_at);
+        assertEquals(USER, chat.other_user_id);
+    }
+
+    @Test
+    public void reopenedArchiveReadsTheIndex() throws IOException {
+        archive.append(USER, chats(1, 200));
+        archive.append(USER, chats(201, 260));
+        archive.close();
+        archive = new ChatArchive(directory);
+        assertEquals(260, archive.getLastId(USER));
+        assertEquals(260, archive.getCount(USER));
+        assertEquals(0, archive.getLastId(USER + 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIdsAlreadyArchived() throws IOException {
+        archive.append(USER, chats(1, 10));
+        archive.append(USER, chats(10, 12));
+    }
+
+    @Test
+    public void emptyAppendIsIgnored() throws IOException {
+        archive.append(USER, Collections.<Chats>emptyList());
+        assertEquals(0, archive.getLastId(USER));
+        assertTrue(archive.getChats(USER, Integer.MAX_VALUE, 10).isEmpty());
+    }
+
+    static List<Chats> chats(int firstId, int lastId) {
+        List<Chats> chats = new ArrayList<>();
+        for (int id = firstId; id <= lastId; id++) {
+            chats.add(new Chats(id, "message " + id, USER, id & 1, 1500000000000L + id * 1000L));
+        }
+        return chats;
+    }
+}
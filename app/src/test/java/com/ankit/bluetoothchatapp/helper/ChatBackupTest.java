@@ -0,0 +1,185 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import com.ankit.bluetoothchatapp.models.Chats;
+import com.ankit.bluetoothchatapp.models.Users;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ChatBackupTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        Store source = new Store();
+        source.users.add(new Users(1, "Phone", "00:11:22:33:44:55"));
+        source.users.add(new Users(2, "Tablet", "00:11:22:33:44:66"));
+        for (int i = 0; i < 2500; i++) {
+            source.chats.add(chat(i + 1, i % 2 + 1, "message " + i, i + 1));
+        }
+        byte[] backup = export(source);
+
+        Store target = new Store();
+        ChatBackup.Stats stats = ChatBackup.importFrom(new ByteArrayInputStream(backup), target);
+        assertEquals(2, stats.users);
+        assertEquals(2500, stats.chats);
+        assertEquals(2500, target.chats.size());
+        // 2500 rows plus two users, committed every IMPORT_BATCH and at the end
+        assertEquals(1, target.commits);
+        // grouped by user: every chat of the first user comes first
+        assertEquals("message 2", target.chats.get(1).message);
+        assertEquals(3, target.chats.get(1).uid);
+        assertEquals("message 1", target.chats.get(1250).message);
+        assertEquals(2, target.chats.get(1250).other_user_id);
+    }
+
+    @Test
+    public void secondImportAddsNothing() throws IOException {
+        Store source = new Store();
+        source.users.add(new Users(1, "Phone", "00:11:22:33:44:55"));
+        source.chats.add(chat(1, 1, "from before uids", 0));
+        source.chats.add(chat(2, 1, "with a uid", 77));
+        byte[] backup = export(source);
+
+        Store target = new Store();
+        ChatBackup.importFrom(new ByteArrayInputStream(backup), target);
+        ChatBackup.Stats again = ChatBackup.importFrom(new ByteArrayInputStream(backup), target);
+        assertEquals(0, again.users);
+        assertEquals(0, again.chats);
+        assertEquals(2, target.chats.size());
+    }
+
+    @Test
+    public void archivedChatsAreNotImportedAgain() throws IOException {
+        Store source = new Store();
+        source.users.add(new Users(1, "Phone", "00:11:22:33:44:55"));
+        source.chats.add(chat(1, 1, "old", 5));
+        source.chats.add(chat(2, 1, "new", 6));
+        byte[] backup = export(source);
+
+        Store target = new Store();
+        target.users.add(new Users(9, "Phone", "00:11:22:33:44:55"));
+        // "old" moved to the archive, which keeps no uid
+        target.archived.add(chat(1, 9, "old", 0));
+        ChatBackup.Stats stats = ChatBackup.importFrom(new ByteArrayInputStream(backup), target);
+        assertEquals(0, stats.users);
+        assertEquals(1, stats.chats);
+        assertEquals("new", target.chats.get(0).message);
+        assertEquals(9, target.chats.get(0).other_user_id);
+    }
+
+    @Test
+    public void sameTextAtAnotherTimeIsImported() throws IOException {
+        Store source = new Store();
+        source.users.add(new Users(1, "Phone", "00:11:22:33:44:55"));
+        source.chats.add(chat(1, 1, "ok", 0));
+        byte[] backup = export(source);
+
+        Store target = new Store();
+        target.users.add(new Users(1, "Phone", "00:11:22:33:44:55"));
+        Chats earlier = chat(1, 1, "ok", 0);
+        earlier.created_at--;
+        target.chats.add(earlier);
+        assertEquals(1, ChatBackup.importFrom(new ByteArrayInputStream(backup), target).chats);
+    }
+
+    @Test(expected = IOException.class)
+    public void notABackup() throws IOException {
+        ChatBackup.importFrom(new ByteArrayInputStream(new byte[]{1, 2, 3}), new Store());
+    }
+
+    private static Chats chat(int id, int userId, String message, long uid) {
+        Chats chat = new Chats(id, message, userId, id & 1, 1500000000000L + id * 1000L);
+        chat.uid = uid;
+        return chat;
+    }
+
+    private static byte[] export(Store source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChatBackup.export(source, out);
+        return out.toByteArray();
+    }
+
+    // users and chats in lists, INSERT OR IGNORE on (user, uid) like the table
+    private static class Store implements ChatBackup.Source, ChatBackup.Target {
+        final List<Users> users = new ArrayList<>();
+        final List<Chats> chats = new ArrayList<>();
+        final List<Chats> archived = new ArrayList<>();
+        int commits;
+
+        @Override
+        public List<Users> getUsers() {
+            return users;
+        }
+
+        @Override
+        public List<Chats> getChatsAfter(int userId, int lastId, int limit) {
+            List<Chats> batch = new ArrayList<>();
+            for (Chats chat : chats) {
+                if (chat.other_user_id == userId && chat.id > lastId && batch.size() < limit) {
+                    batch.add(chat);
+                }
+            }
+            return batch;
+        }
+
+        @Override
+        public Set<Long> getMessageKeys(int userId) {
+            Set<Long> keys = new HashSet<>();
+            for (Chats chat : archived) {
+                if (chat.other_user_id == userId) {
+                    keys.add(ChatBackup.messageKey(chat.created_at, chat.sender, chat.message));
+                }
+            }
+            for (Chats chat : chats) {
+                if (chat.other_user_id == userId && chat.uid == 0) {
+                    keys.add(ChatBackup.messageKey(chat.created_at, chat.sender, chat.message));
+                }
+            }
+            return keys;
+        }
+
+        @Override
+        public int findUser(String address) {
+            for (Users user : users) {
+                if (user.address.equals(address)) {
+                    return user.id;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int insertUser(Users user) {
+            int id = users.size() + 1;
+            users.add(new Users(id, user.name, user.address));
+            return id;
+        }
+
+        @Override
+        public boolean insertChat(Chats chat, int userId) {
+            for (Chats stored : chats) {
+                if (chat.uid != 0 && stored.other_user_id == userId && stored.uid == chat.uid) {
+                    return false;
+                }
+            }
+            Chats stored = new Chats(chats.size() + 1, chat.message, userId, chat.sender, chat.created_at);
+            stored.uid = chat.uid;
+            chats.add(stored);
+            return true;
+        }
+
+        @Override
+        public void commit() {
+            commits++;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.ankit.bluetoothchatapp.helper;
+
+import com.ankit.bluetoothchatapp.models.Chats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// The chat SQL on a desktop SQLite, with the archiver's steps done by hand:
+// select the oldest rows, append them to a ChatArchive, delete them
+public class ChatSchemaTest {
+    private static final String CREATE_CHATS_V1 = "CREATE TABLE chats(id INTEGER PRIMARY KEY,message TEXT,other_user_id TEXT,sender TEXT)";
+
+    private File directory;
+    private ChatArchive archive;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws IOException, SQLException {
+        directory = Files.createTempDirectory("schema").toFile();
+        archive = new ChatArchive(directory);
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+        archive.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void idsAreNotReusedAfterArchivingEverything() throws IOException, SQLException {
+        execute(ChatSchema.CREATE);
+        int user = insertUser("00:11:22:33:44:55");
+        for (int i = 0; i < 3; i++) {
+            insertChat(user, "old " + i, 1000);
+        }
+        int lastId = archiveAll(user);
+        assertEquals(3, lastId);
+        assertEquals(0, count("SELECT count(*) FROM chats"));
+
+        long id = insertChat(user, "new", System.currentTimeMillis());
+        assertTrue(id > lastId);
+
+        // the next pass deletes up to the archive's last id again
+        deleteArchived(user, archive.getLastId(user));
+        assertEquals(1, count("SELECT count(*) FROM chats"));
+    }
+
+    @Test
+    public void migrationKeepsIdsAboveTheArchive() throws IOException, SQLException {
+        execute(new String[]{ChatSchema.CREATE_USERS, CREATE_CHATS_V1});
+        execute(ChatSchema.migrations(1, 7).toArray(new String[0]));
+        int user = insertUser("00:11:22:33:44:55");
+        insertChat(user, "archived one", 0);
+        insertChat(user, "archived two", 0);
+        insertChat(user, "kept", 0);
+        // what a version 7 archiver did to the oldest rows
+        List<Chats> oldest = new ArrayList<>();
+        try (PreparedStatement select = connection.prepareStatement(ChatSchema.SELECT_CHATS_AFTER)) {
+            select.setInt(1, user);
+            select.setInt(2, 0);
+            select.setInt(3, 2);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    oldest.add(new Chats(resultSet.getInt(1), resultSet.getString(2), user, resultSet.getInt(4), resultSet.getLong(5)));
+                }
+            }
+        }
+        archive.append(user, oldest);
+        // version 7 had no archive search index
+        try (PreparedStatement delete = connection.prepareStatement(ChatSchema.DELETE_ARCHIVED)) {
+            delete.setInt(1, user);
+            delete.setInt(2, 2);
+            delete.executeUpdate();
+        }
+
+        long before = System.currentTimeMillis() / 1000 * 1000;
+        execute(ChatSchema.migrations(7, 8).toArray(new String[0]));
+        for (String sql : ChatSchema.SEED_CHAT_IDS) {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setInt(1, archive.getLastId(user));
+                statement.executeUpdate();
+            }
+        }
+
+        // time 0 became the migration time
+        assertTrue(count("SELECT created_at FROM chats WHERE id=3") >= before);
+        assertEquals(4, insertChat(user, "after", System.currentTimeMillis()));
+        // the triggers came back with the table
+        assertEquals(2, count("SELECT count(*) FROM chats_fts WHERE chats_fts MATCH 'kept OR after'"));
+        assertEquals(4, count("SELECT last_chat_id FROM conversations WHERE user_id=" + user));
+
+        // 8 -> 9: the archived rows become searchable again, what
+        // DatabaseHelper does with each of them
+        execute(ChatSchema.migrations(8, 9).toArray(new String[0]));
+        for (Chats chat : archive.getChatsAfter(user, 0, 100)) {
+            try (PreparedStatement insert = connection.prepareStatement(ChatSchema.INDEX_ARCHIVED_CHAT)) {
+                insert.setInt(1, chat.id);
+                insert.setString(2, chat.message);
+                insert.setInt(3, user);
+                insert.setInt(4, chat.sender);
+                insert.setInt(5, chat.id);
+                insert.executeUpdate();
+            }
+        }
+        assertEquals(2, search(ChatSchema.ftsQuery("archived"), user).size());
+    }
+
+    @Test
+    public void seedingAnEmptyTable() throws SQLException {
+        execute(ChatSchema.CREATE);
+        for (String sql : ChatSchema.SEED_CHAT_IDS) {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setInt(1, 41);
+                statement.executeUpdate();
+            }
+        }
+        int user = insertUser("00:11:22:33:44:55");
+        assertEquals(42, insertChat(user, "first", 1000));
+    }
+
+    @Test
+    public void searchRanksOnlyTheNewestCandidates() throws SQLException {
+        execute(ChatSchema.CREATE);
+        int user = insertUser("00:11:22:33:44:55");
+        // the best match is the oldest, behind a full set of newer ones
+        int best = insertChat(user, "lamp lamp lamp", 1000);
+        for (int i = 0; i < ChatSchema.SEARCH_CANDIDATES; i++) {
+            insertChat(user, "lamp " + i, 1000);
+        }
+        List<Integer> ids = search(ChatSchema.ftsQuery("lamp"), user);
+        assertEquals(10, ids.size());
+        assertFalse(ids.contains(best));
+        assertEquals(ChatSchema.SEARCH_CANDIDATES + 1, countMatches(ChatSchema.COUNT_USER_SEARCH_CANDIDATES, user));
+
+        // under the bound it ranks first
+        execute(new String[]{"DELETE FROM chats WHERE id>" + (best + 1)});
+        assertEquals(best, (int) search(ChatSchema.ftsQuery("lamp"), user).get(0));
+        assertEquals(2, countMatches(ChatSchema.COUNT_USER_SEARCH_CANDIDATES, user));
+        assertEquals(2, countMatches(ChatSchema.COUNT_SEARCH_CANDIDATES, 0));
+    }
+
+    @Test
+    public void archivedMessagesStaySearchable() throws IOException, SQLException {
+        execute(ChatSchema.CREATE);
+        int user = insertUser("00:11:22:33:44:55");
+        int other = insertUser("66:77:88:99:AA:BB");
+        int archived = insertChat(user, "lamp lamp in the archive", 1000);
+        archiveAll(user);
+        int hot = insertChat(user, "lamp here", 2000);
+        insertChat(other, "lamp elsewhere", 2000);
+
+        List<Integer> ids = search(ChatSchema.ftsQuery("lamp"), user);
+        assertEquals(2, ids.size());
+        // more hits rank first, wherever the message is kept
+        assertEquals(archived, (int) ids.get(0));
+        assertEquals(hot, (int) ids.get(1));
+        assertTrue(search(ChatSchema.ftsQuery("archive"), other).isEmpty());
+        assertEquals(2, countMatches(ChatSchema.COUNT_USER_SEARCH_CANDIDATES, user));
+        assertEquals(3, countMatches(ChatSchema.COUNT_SEARCH_CANDIDATES, 0));
+    }
+
+    private List<Integer> search(String query, int user) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        try (PreparedStatement select = connection.prepareStatement(ChatSchema.SEARCH_USER_CHATS)) {
+            select.setString(1, query);
+            select.setInt(2, user);
+            select.setString(3, query);
+            select.setString(4, String.valueOf(user));
+            select.setInt(5, 10);
+            select.setInt(6, 0);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    ids.add(resultSet.getInt(1));
+                }
+            }
+        }
+        return ids;
+    }
+
+    // user 0 for the count over all conversations
+    private long countMatches(String sql, int user) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(sql)) {
+            int i = 1;
+            for (int table = 0; table < 2; table++) {
+                select.setString(i++, ChatSchema.ftsQuery("lamp"));
+                if (user != 0) {
+                    select.setInt(i++, user);
+                }
+            }
+            try (ResultSet resultSet = select.executeQuery()) {
+                assertTrue(resultSet.next());
+                return resultSet.getLong(1);
+            }
+        }
+    }
+
+    private int archiveAll(int user) throws IOException, SQLException {
+        List<Chats> chats = new ArrayList<>();
+        try (PreparedStatement select = connection.prepareStatement(ChatSchema.SELECT_CHATS_AFTER)) {
+            select.setInt(1, user);
+            select.setInt(2, archive.getLastId(user));
+            select.setInt(3, 100);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    chats.add(new Chats(resultSet.getInt(1), resultSet.getString(2), user, resultSet.getInt(4), resultSet.getLong(5)));
+                }
+            }
+        }
+        archive.append(user, chats);
+        int lastId = chats.get(chats.size() - 1).id;
+        deleteArchived(user, lastId);
+        return lastId;
+    }
+
+    private void deleteArchived(int user, int lastId) throws SQLException {
+        for (String sql : new String[]{ChatSchema.COPY_ARCHIVED_TO_FTS, ChatSchema.DELETE_ARCHIVED}) {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setInt(1, user);
+                statement.setInt(2, lastId);
+                statement.executeUpdate();
+            }
+        }
+    }
+
+    private int insertUser(String address) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(ChatSchema.INSERT_USER, Statement.RETURN_GENERATED_KEYS)) {
+            insert.setString(1, "Device");
+            insert.setString(2, address);
+            insert.executeUpdate();
+            return generatedKey(insert);
+        }
+    }
+
+    private int insertChat(int user, String message, long createdAt) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(ChatSchema.INSERT_CHAT, Statement.RETURN_GENERATED_KEYS)) {
+            insert.setString(1, message);
+            insert.setInt(2, user);
+            insert.setInt(3, 0);
+            insert.setLong(4, createdAt);
+            insert.setNull(5, java.sql.Types.INTEGER);
+            insert.executeUpdate();
+            return generatedKey(insert);
+        }
+    }
+
+    private static int generatedKey(PreparedStatement statement) throws SQLException {
+        try (ResultSet keys = statement.getGeneratedKeys()) {
+            assertTrue(keys.next());
+            return keys.getInt(1);
+        }
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery(sql)) {
+            assertTrue(resultSet.next());
+            return resultSet.getLong(1);
+        }
+    }
+
+    private void execute(String[] statements) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.ankit.bluetoothchatapp.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private static class Frame {
+        final byte type;
+        final int seq;
+        final byte[] payload;
+
+        Frame(byte type, int seq, byte[] payload) {
+            this.type = type;
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+
+    private static class Collector implements FrameDecoder.FrameListener {
+        final List<Frame> frames = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte type, int seq, byte[] buffer, int offset, int length) {
+            // the buffer is reused, keep a copy
+            frames.add(new Frame(type, seq, Arrays.copyOfRange(buffer, offset, offset + length)));
+        }
+    }
+
+    @Test
+    public void encodeWritesHeaderAndPayload() {
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_MESSAGE, 7, new byte[]{1, 2, 3});
+        assertEquals(FrameCodec.HEADER_SIZE + 3, frame.length);
+        assertEquals(3, FrameCodec.getInt(frame, 0));
+        assertEquals(FrameCodec.TYPE_MESSAGE, frame[4]);
+        assertEquals(7, FrameCodec.getInt(frame, 5));
+        assertArrayEquals(new byte[]{1, 2, 3}, Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encodeRejectsOversizedPayload() {
+        FrameCodec.encode(FrameCodec.TYPE_MESSAGE, 1, new byte[FrameCodec.MAX_PAYLOAD_SIZE + 1]);
+    }
+
+    @Test
+    public void roundTripOfSeveralFramesInOneRead() throws IOException {
+        byte[] stream = concat(
+                FrameCodec.encode(FrameCodec.TYPE_HELLO, 0, new byte[]{FrameCodec.PROTOCOL_VERSION}),
+                FrameCodec.encode(FrameCodec.TYPE_MESSAGE, 1, "hi".getBytes(StandardCharsets.UTF_8)),
+                FrameCodec.encode(FrameCodec.TYPE_ACK, 5, new byte[0]));
+        Collector collector = new Collector();
+        assertEquals(3, new FrameDecoder().feed(stream, 0, stream.length, collector));
+        assertEquals(FrameCodec.TYPE_HELLO, collector.frames.get(0).type);
+        assertEquals("hi", new String(collector.frames.get(1).payload, StandardCharsets.UTF_8));
+        assertEquals(5, collector.frames.get(2).seq);
+        assertEquals(0, collector.frames.get(2).payload.length);
+    }
+
+    @Test
+    public void frameSplitAcrossReadsOneByteAtATime() throws IOException {
+        byte[] payload = new byte[10000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_FILE_CHUNK, 3, payload);
+        FrameDecoder decoder = new FrameDecoder(16);
+        Collector collector = new Collector();
+        for (int i = 0; i < frame.length - 1; i++) {
+            assertEquals(0, decoder.feed(frame, i, 1, collector));
+        }
+        assertEquals(frame.length - 1, decoder.pending());
+        assertEquals(1, decoder.feed(frame, frame.length - 1, 1, collector));
+        assertEquals(0, decoder.pending());
+        assertArrayEquals(payload, collector.frames.get(0).payload);
+    }
+
+    @Test
+    public void readFromStreamUntilEnd() throws IOException {
+        byte[] stream = concat(
+                FrameCodec.encode(FrameCodec.TYPE_MESSAGE, 1, new byte[5000]),
+                FrameCodec.encode(FrameCodec.TYPE_MESSAGE, 2, new byte[7]));
+        // at most 100 bytes per read, like a slow socket
+        InputStream inputStream = new ByteArrayInputStream(stream) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 100));
+            }
+        };
+        FrameDecoder decoder = new FrameDecoder();
+        Collector collector = new Collector();
+        while (decoder.readFrom(inputStream, collector) >= 0) {
+        }
+        assertEquals(2, collector.frames.size());
+        assertEquals(5000, collector.frames.get(0).payload.length);
+        assertEquals(2, collector.frames.get(1).seq);
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeLengthIsRejected() throws IOException {
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_MESSAGE, 1, new byte[0]);
+        FrameCodec.putInt(frame, 0, -1);
+        new FrameDecoder().feed(frame, 0, frame.length, new Collector());
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedLengthIsRejected() throws IOException {
+        byte[] header = new byte[FrameCodec.HEADER_SIZE];
+        FrameCodec.putInt(header, 0, FrameCodec.MAX_PAYLOAD_SIZE + 1);
+        new FrameDecoder().feed(header, 0, header.length, new Collector());
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] all = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        return all;
+    }
+}
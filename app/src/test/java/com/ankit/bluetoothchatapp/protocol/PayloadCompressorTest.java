@@ -0,0 +1,61 @@
+package com.ankit.bluetoothchatapp.protocol;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class PayloadCompressorTest {
+
+    @Test
+    public void roundTrip() throws DataFormatException {
+        byte[] text = "hey, how are you? see you tomorrow morning, let me know when are you coming"
+                .getBytes(StandardCharsets.UTF_8);
+        PayloadCompressor sender = new PayloadCompressor();
+        PayloadCompressor receiver = new PayloadCompressor();
+        int size = sender.compress(text, 0, text.length);
+        assertTrue(size > 0 && size < text.length);
+
+        byte[] compressed = Arrays.copyOf(sender.getBuffer(), size);
+        assertEquals(text.length, receiver.decompress(compressed, 0, compressed.length));
+        assertArrayEquals(text, Arrays.copyOf(receiver.getBuffer(), text.length));
+    }
+
+    @Test
+    public void shortAndIncompressiblePayloadsGoRaw() {
+        PayloadCompressor compressor = new PayloadCompressor();
+        byte[] small = "ok".getBytes(StandardCharsets.UTF_8);
+        assertEquals(-1, compressor.compress(small, 0, small.length));
+
+        byte[] noise = new byte[512];
+        new Random(1).nextBytes(noise);
+        assertEquals(-1, compressor.compress(noise, 0, noise.length));
+        assertEquals(2, compressor.getSkippedFrames());
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void payloadShorterThanLengthPrefix() throws DataFormatException {
+        new PayloadCompressor().decompress(new byte[]{0, 0}, 0, 2);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void rawLengthOverLimit() throws DataFormatException {
+        byte[] payload = new byte[8];
+        FrameCodec.putInt(payload, 0, FrameCodec.MAX_PAYLOAD_SIZE + 1);
+        new PayloadCompressor().decompress(payload, 0, payload.length);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void truncatedDeflateData() throws DataFormatException {
+        byte[] text = "what are you doing tonight? can you call me when you are free, thank you"
+                .getBytes(StandardCharsets.UTF_8);
+        PayloadCompressor sender = new PayloadCompressor();
+        int size = sender.compress(text, 0, text.length);
+        byte[] truncated = Arrays.copyOf(sender.getBuffer(), size / 2);
+        new PayloadCompressor().decompress(truncated, 0, truncated.length);
+    }
+}
@@ -0,0 +1,81 @@
+package com.ankit.bluetoothchatapp.benchmark;
+
+import com.ankit.bluetoothchatapp.helper.ChatArchive;
+import com.ankit.bluetoothchatapp.models.Chats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Pages of an archived conversation of 100000 messages, the same page size
+// as DatabaseBenchmark.getOlderPage so the two can be compared. scrollBack
+// walks pages backwards like ChatActivity does, mostly hitting the block
+// decoded for the previous page.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ArchiveBenchmark {
+    private static final int MESSAGES = 100000;
+    private static final int PAGE_SIZE = 50;
+    private static final int USER = 1;
+
+    private File dir;
+    private ChatArchive archive;
+    private int next;
+    private int beforeId;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("archive-benchmark").toFile();
+        archive = new ChatArchive(dir);
+        List<Chats> chats = new ArrayList<>();
+        for (int id = 1; id <= MESSAGES; id++) {
+            chats.add(new Chats(id, Messages.text(20 + id % 60), USER, id & 1, 1500000000000L + id * 60000L));
+            if (chats.size() == 10000) {
+                archive.append(USER, chats);
+                chats.clear();
+            }
+        }
+        archive.append(USER, chats);
+        beforeId = MESSAGES;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        archive.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    // a page somewhere in the history, usually a block not decoded yet
+    @Benchmark
+    public List<Chats> getPage() throws IOException {
+        next = (next + 7919) % MESSAGES;
+        return archive.getChats(USER, next + PAGE_SIZE + 1, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Chats> scrollBack() throws IOException {
+        List<Chats> page = archive.getChats(USER, beforeId, PAGE_SIZE);
+        beforeId = page.isEmpty() ? MESSAGES : page.get(0).id;
+        return page;
+    }
+}
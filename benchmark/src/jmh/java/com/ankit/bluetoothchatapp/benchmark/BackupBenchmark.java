@@ -0,0 +1,317 @@
+package com.ankit.bluetoothchatapp.benchmark;
+
+import com.ankit.bluetoothchatapp.helper.ChatBackup;
+import com.ankit.bluetoothchatapp.helper.ChatSchema;
+import com.ankit.bluetoothchatapp.models.Chats;
+import com.ankit.bluetoothchatapp.models.Users;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Export and import of a 200000 message history through the same
+// ChatBackup.export() and importFrom() loops as DatabaseHelper, over JDBC:
+// keyset batches out, batched transactions in. deferIndexes compares the
+// import with the chats index and triggers live against dropping them and
+// rebuilding at the end. Rows per second = 200000 * 1000 / score.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class BackupBenchmark {
+    private static final int USERS = 10;
+    private static final int MESSAGES = 200000;
+
+    @Param({"false", "true"})
+    public boolean deferIndexes;
+
+    private byte[] backup;
+    private File file;
+    private Connection connection;
+
+    @Setup(Level.Trial)
+    public void createBackup() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChatBackup.Writer writer = new ChatBackup.Writer(out);
+        for (int i = 1; i <= USERS; i++) {
+            writer.writeUser(new Users(i, "Device " + i, String.format("00:11:22:33:44:%02X", i)));
+        }
+        // grouped by user like an export
+        for (int i = 0; i < MESSAGES; i++) {
+            int user = i / (MESSAGES / USERS) + 1;
+            writer.writeChat(new Chats(i + 1, Messages.text(20 + i % 60), user, i & 1, 1500000000000L + i * 1000L));
+        }
+        writer.finish();
+        backup = out.toByteArray();
+    }
+
+    @Setup(Level.Invocation)
+    public void createDatabase() throws IOException, SQLException {
+        file = File.createTempFile("backup-benchmark", ".db");
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+            for (String sql : ChatSchema.CREATE) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDatabase() throws SQLException {
+        connection.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long importBackup() throws IOException, SQLException {
+        return importInto(connection);
+    }
+
+    @Benchmark
+    public long exportBackup(Exported exported) throws IOException, SQLException {
+        final long[] bytes = new long[1];
+        OutputStream counter = new OutputStream() {
+            @Override
+            public void write(int b) {
+                bytes[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bytes[0] += len;
+            }
+        };
+        try (JdbcSource source = new JdbcSource(exported.connection)) {
+            ChatBackup.export(source, counter);
+        }
+        return bytes[0];
+    }
+
+    // a database holding the whole backup, filled once for exportBackup
+    @State(Scope.Thread)
+    public static class Exported {
+        private File file;
+        private Connection connection;
+
+        @Setup(Level.Trial)
+        public void setup(BackupBenchmark benchmark) throws IOException, SQLException {
+            file = File.createTempFile("export-benchmark", ".db");
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                for (String sql : ChatSchema.CREATE) {
+                    statement.execute(sql);
+                }
+            }
+            benchmark.importInto(connection);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            connection.close();
+            file.delete();
+        }
+    }
+
+    private long importInto(Connection connection) throws IOException, SQLException {
+        if (deferIndexes) {
+            execute(connection, ChatSchema.IMPORT_BEGIN);
+        }
+        ChatBackup.Stats stats;
+        connection.setAutoCommit(false);
+        try (JdbcTarget target = new JdbcTarget(connection)) {
+            stats = ChatBackup.importFrom(new ByteArrayInputStream(backup), target);
+        }
+        connection.setAutoCommit(true);
+        if (deferIndexes) {
+            execute(connection, ChatSchema.IMPORT_END);
+        }
+        return stats.users + stats.chats;
+    }
+
+    private static void execute(Connection connection, String[] statements) throws SQLException {
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    // what DatabaseHelper.exportChats() reads, through JDBC
+    private static class JdbcSource implements ChatBackup.Source, AutoCloseable {
+        private final PreparedStatement selectUsers;
+        private final PreparedStatement selectChats;
+
+        JdbcSource(Connection connection) throws SQLException {
+            selectUsers = connection.prepareStatement(ChatSchema.SELECT_ALL_USERS);
+            selectChats = connection.prepareStatement(ChatSchema.SELECT_CHATS_AFTER);
+        }
+
+        @Override
+        public List<Users> getUsers() throws IOException {
+            List<Users> users = new ArrayList<>();
+            try (ResultSet resultSet = selectUsers.executeQuery()) {
+                while (resultSet.next()) {
+                    users.add(new Users(resultSet.getInt(1), resultSet.getString(2), resultSet.getString(3)));
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+            return users;
+        }
+
+        @Override
+        public List<Chats> getChatsAfter(int userId, int lastId, int limit) throws IOException {
+            List<Chats> chats = new ArrayList<>(limit);
+            try {
+                selectChats.setInt(1, userId);
+                selectChats.setInt(2, lastId);
+                selectChats.setInt(3, limit);
+                try (ResultSet resultSet = selectChats.executeQuery()) {
+                    while (resultSet.next()) {
+                        Chats chat = new Chats(resultSet.getInt(1), resultSet.getString(2), resultSet.getInt(3), resultSet.getInt(4), resultSet.getLong(5));
+                        chat.uid = resultSet.getLong(6);
+                        chats.add(chat);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+            return chats;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            selectUsers.close();
+            selectChats.close();
+        }
+    }
+
+    // what DatabaseHelper.importChats() writes, through JDBC
+    private static class JdbcTarget implements ChatBackup.Target, AutoCloseable {
+        private final Connection connection;
+        private final PreparedStatement selectUser;
+        private final PreparedStatement selectWithoutUid;
+        private final PreparedStatement insertUser;
+        private final PreparedStatement insertChat;
+
+        JdbcTarget(Connection connection) throws SQLException {
+            this.connection = connection;
+            selectUser = connection.prepareStatement(ChatSchema.SELECT_USER_BY_ADDRESS);
+            selectWithoutUid = connection.prepareStatement(ChatSchema.SELECT_CHATS_WITHOUT_UID);
+            insertUser = connection.prepareStatement(ChatSchema.INSERT_USER, Statement.RETURN_GENERATED_KEYS);
+            insertChat = connection.prepareStatement(ChatSchema.INSERT_CHAT);
+        }
+
+        // there is no archive here, only the table
+        @Override
+        public Set<Long> getMessageKeys(int userId) throws IOException {
+            Set<Long> keys = new HashSet<>();
+            try {
+                selectWithoutUid.setInt(1, userId);
+                try (ResultSet resultSet = selectWithoutUid.executeQuery()) {
+                    while (resultSet.next()) {
+                        keys.add(ChatBackup.messageKey(resultSet.getLong(2), resultSet.getInt(1), resultSet.getString(3)));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+            return keys;
+        }
+
+        @Override
+        public int findUser(String address) throws IOException {
+            try {
+                selectUser.setString(1, address);
+                try (ResultSet resultSet = selectUser.executeQuery()) {
+                    return resultSet.next() ? resultSet.getInt(1) : -1;
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public int insertUser(Users user) throws IOException {
+            try {
+                insertUser.setString(1, user.name);
+                insertUser.setString(2, user.address);
+                insertUser.executeUpdate();
+                try (ResultSet keys = insertUser.getGeneratedKeys()) {
+                    keys.next();
+                    return keys.getInt(1);
+                }
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public boolean insertChat(Chats chat, int userId) throws IOException {
+            try {
+                insertChat.setString(1, chat.message);
+                insertChat.setInt(2, userId);
+                insertChat.setInt(3, chat.sender);
+                insertChat.setLong(4, chat.created_at);
+                if (chat.uid == 0) {
+                    insertChat.setNull(5, Types.INTEGER);
+                } else {
+                    insertChat.setLong(5, chat.uid);
+                }
+                return insertChat.executeUpdate() == 1;
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void commit() throws IOException {
+            try {
+                connection.commit();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            selectUser.close();
+            selectWithoutUid.close();
+            insertUser.close();
+            insertChat.close();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.ankit.bluetoothchatapp.benchmark;
+
+import com.ankit.bluetoothchatapp.helper.ChatSchema;
+import com.ankit.bluetoothchatapp.models.Chats;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The SQL of DatabaseHelper on a desktop SQLite file in WAL mode, like the app.
+// addChat pays for a transaction per row, addChatBatch shows the cost per row
+// when the write queue groups a burst into one commit.
+// Schema 1 is the original TEXT columns without an index; schema 2 stands
+// for the current version, reached by filling a version 1 database and
+// running the app's migrations.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DatabaseBenchmark {
+    private static final int USERS = 4;
+    private static final int PAGE_SIZE = 50;
+    private static final int BATCH = 32;
+
+    private static final String CREATE_CHATS_V1 = "CREATE TABLE chats(id INTEGER PRIMARY KEY,message TEXT,other_user_id TEXT,sender TEXT)";
+    private static final String INSERT_CHAT_V1 = "INSERT INTO chats(message,other_user_id,sender) VALUES (?,?,?)";
+    private static final String SELECT_USER_CHATS_V1 = "SELECT * FROM chats WHERE other_user_id=?";
+    private static final String SELECT_CHAT_PAGE_V1 = "SELECT * FROM chats WHERE other_user_id=? AND id<? ORDER BY id DESC LIMIT ?";
+    // the home screen without the conversations table: the last message of every user
+    private static final String SELECT_LAST_CHAT_V1 = "SELECT * FROM chats WHERE other_user_id=? ORDER BY id DESC LIMIT 1";
+
+    @Param({"1", "2"})
+    public int schema;
+
+    @Param({"1000", "100000"})
+    public int rowsPerUser;
+
+    private File file;
+    private Connection connection;
+    private PreparedStatement insertChat;
+    private PreparedStatement selectUserChats;
+    private PreparedStatement selectChatPage;
+    private PreparedStatement selectUserByAddress;
+    private PreparedStatement selectAllUsers;
+    private PreparedStatement selectLastChat;
+    private PreparedStatement selectConversations;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        file = File.createTempFile("chat-benchmark", ".db");
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+        }
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(ChatSchema.CREATE_USERS);
+            statement.execute(CREATE_CHATS_V1);
+        }
+        try (PreparedStatement insertUser = connection.prepareStatement(ChatSchema.INSERT_USER)) {
+            for (int i = 1; i <= USERS; i++) {
+                insertUser.setString(1, "Device " + i);
+                insertUser.setString(2, address(i));
+                insertUser.executeUpdate();
+            }
+        }
+        // an old install with a long history
+        String message = Messages.text(48);
+        try (PreparedStatement insert = connection.prepareStatement(INSERT_CHAT_V1)) {
+            for (int i = 0; i < rowsPerUser * USERS; i++) {
+                insert.setString(1, message);
+                insert.setString(2, String.valueOf(i % USERS + 1));
+                insert.setString(3, String.valueOf(i & 1));
+                insert.executeUpdate();
+            }
+        }
+        if (schema == 2) {
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : ChatSchema.migrations(1, ChatSchema.VERSION)) {
+                    statement.execute(sql);
+                }
+            }
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+
+        insertChat = connection.prepareStatement(schema == 1 ? INSERT_CHAT_V1 : ChatSchema.INSERT_CHAT);
+        selectUserChats = connection.prepareStatement(schema == 1 ? SELECT_USER_CHATS_V1 : ChatSchema.SELECT_USER_CHATS);
+        selectChatPage = connection.prepareStatement(schema == 1 ? SELECT_CHAT_PAGE_V1 : ChatSchema.SELECT_CHAT_PAGE);
+        selectUserByAddress = connection.prepareStatement(ChatSchema.SELECT_USER_BY_ADDRESS);
+        if (schema == 1) {
+            selectAllUsers = connection.prepareStatement(ChatSchema.SELECT_ALL_USERS);
+            selectLastChat = connection.prepareStatement(SELECT_LAST_CHAT_V1);
+        } else {
+            selectConversations = connection.prepareStatement(ChatSchema.SELECT_CONVERSATIONS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        connection.close();
+        file.delete();
+    }
+
+    private static String address(int user) {
+        return String.format("00:11:22:33:44:%02X", user);
+    }
+
+    private int nextUser() {
+        return next++ % USERS + 1;
+    }
+
+    @Benchmark
+    public int addChat() throws SQLException {
+        int user = nextUser();
+        insertChat.setString(1, "benchmark message");
+        if (schema == 1) {
+            insertChat.setString(2, String.valueOf(user));
+            insertChat.setString(3, String.valueOf(user & 1));
+        } else {
+            insertChat.setInt(2, user);
+            insertChat.setInt(3, user & 1);
+            insertChat.setLong(4, System.currentTimeMillis());
+            // unique like the random uids of live messages
+            insertChat.setLong(5, next);
+        }
+        return insertChat.executeUpdate();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void addChatBatch() throws SQLException {
+        connection.setAutoCommit(false);
+        for (int i = 0; i < BATCH; i++) {
+            addChat();
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    // the whole conversation with one user, as ChatActivity loads it
+    @Benchmark
+    public List<Chats> getUserChats() throws SQLException {
+        int user = nextUser();
+        if (schema == 1) {
+            selectUserChats.setString(1, String.valueOf(user));
+        } else {
+            selectUserChats.setInt(1, user);
+        }
+        List<Chats> chats = new ArrayList<>();
+        try (ResultSet resultSet = selectUserChats.executeQuery()) {
+            while (resultSet.next()) {
+                chats.add(new Chats(resultSet.getInt(1), resultSet.getString(2), resultSet.getInt(3), resultSet.getInt(4)));
+            }
+        }
+        return chats;
+    }
+
+    // the newest page, what ChatActivity shows first
+    @Benchmark
+    public List<Chats> getNewestPage() throws SQLException {
+        return getPage(Integer.MAX_VALUE);
+    }
+
+    // a page from the middle of the history, loaded while scrolling up
+    @Benchmark
+    public List<Chats> getOlderPage() throws SQLException {
+        return getPage(rowsPerUser * USERS / 2);
+    }
+
+    private List<Chats> getPage(int beforeId) throws SQLException {
+        int user = nextUser();
+        if (schema == 1) {
+            selectChatPage.setString(1, String.valueOf(user));
+        } else {
+            selectChatPage.setInt(1, user);
+        }
+        selectChatPage.setInt(2, beforeId);
+        selectChatPage.setInt(3, PAGE_SIZE);
+        List<Chats> chats = new ArrayList<>(PAGE_SIZE);
+        try (ResultSet resultSet = selectChatPage.executeQuery()) {
+            while (resultSet.next()) {
+                chats.add(new Chats(resultSet.getInt(1), resultSet.getString(2), resultSet.getInt(3), resultSet.getInt(4)));
+            }
+        }
+        return chats;
+    }
+
+    @Benchmark
+    public String getUser() throws SQLException {
+        selectUserByAddress.setString(1, address(nextUser()));
+        try (ResultSet resultSet = selectUserByAddress.executeQuery()) {
+            return resultSet.next() ? resultSet.getString(2) : null;
+        }
+    }
+
+    // the list ChatUsersActivity shows: every user with the newest message
+    @Benchmark
+    public int getConversations() throws SQLException {
+        int count = 0;
+        if (schema == 1) {
+            try (ResultSet users = selectAllUsers.executeQuery()) {
+                while (users.next()) {
+                    selectLastChat.setString(1, users.getString(1));
+                    try (ResultSet resultSet = selectLastChat.executeQuery()) {
+                        if (resultSet.next()) {
+                            count += resultSet.getString(2).length();
+                        }
+                    }
+                }
+            }
+        } else {
+            try (ResultSet resultSet = selectConversations.executeQuery()) {
+                while (resultSet.next()) {
+                    count += resultSet.getString(5).length();
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,86 @@
+package com.ankit.bluetoothchatapp.benchmark;
+
+import com.ankit.bluetoothchatapp.protocol.FrameCodec;
+import com.ankit.bluetoothchatapp.protocol.FrameDecoder;
+import com.ankit.bluetoothchatapp.protocol.PayloadCompressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+// encode and decode of single chat frames
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameCodecBenchmark {
+    @Param({"16", "256", "4096"})
+    public int messageLength;
+
+    private byte[] payload;
+    private byte[] frame;
+    private byte[] dest;
+    private byte[] compressedFrame;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private final PayloadCompressor decompressor = new PayloadCompressor();
+
+    private final FrameDecoder.FrameListener sink = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(byte type, int seq, byte[] buffer, int offset, int length) {
+            lastLength = length;
+        }
+    };
+    private int lastLength;
+
+    @Setup
+    public void setup() {
+        payload = Messages.text(messageLength).getBytes(StandardCharsets.UTF_8);
+        frame = FrameCodec.encode(FrameCodec.TYPE_MESSAGE, 1, payload);
+        dest = new byte[FrameCodec.HEADER_SIZE + payload.length];
+        int length = compressor.compress(payload, 0, payload.length);
+        compressedFrame = length < 0 ? frame
+                : FrameCodec.encode((byte) (FrameCodec.TYPE_MESSAGE | FrameCodec.FLAG_COMPRESSED), 1, compressor.getBuffer(), 0, length);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return FrameCodec.encode(FrameCodec.TYPE_MESSAGE, 1, payload);
+    }
+
+    // the writer's path: encode into a reused batch buffer
+    @Benchmark
+    public int encodeInto() {
+        return FrameCodec.encode(FrameCodec.TYPE_MESSAGE, 1, payload, 0, payload.length, dest, 0);
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        decoder.feed(frame, 0, frame.length, sink);
+        return lastLength;
+    }
+
+    @Benchmark
+    public int compress() {
+        return compressor.compress(payload, 0, payload.length);
+    }
+
+    @Benchmark
+    public void decodeCompressed(Blackhole blackhole) throws DataFormatException {
+        if (compressedFrame == frame) {
+            blackhole.consume(frame.length);
+            return;
+        }
+        blackhole.consume(decompressor.decompress(compressedFrame, FrameCodec.HEADER_SIZE, compressedFrame.length - FrameCodec.HEADER_SIZE));
+    }
+}
@@ -0,0 +1,127 @@
+package com.ankit.bluetoothchatapp.benchmark;
+
+import com.ankit.bluetoothchatapp.controller.ChatController;
+import com.ankit.bluetoothchatapp.controller.ChatEventListener;
+import com.ankit.bluetoothchatapp.transport.MemoryTransport;
+import com.ankit.bluetoothchatapp.transport.TcpTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Two ChatControllers in one JVM, the same code as on the phone with the
+// Bluetooth transport swapped for in-memory pipes or localhost TCP.
+// messageAck is one chat message out and its ACK back on an open link;
+// connectHelloMessageAck also opens the link and exchanges HELLO first.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LinkBenchmark {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Param({"memory", "tcp"})
+    public String transport;
+
+    @Param({"64"})
+    public int messageLength;
+
+    private ChatController server;
+    private ChatController client;
+    private String serverAddress;
+    private byte[] message;
+    private final BlockingQueue<String> connected = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> written = new LinkedBlockingQueue<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        if (transport.equals("tcp")) {
+            int port = freePort();
+            serverAddress = "127.0.0.1:" + port;
+            server = new ChatController(new TcpTransport(port));
+            client = new ChatController(new TcpTransport(0));
+        } else {
+            MemoryTransport.Network network = new MemoryTransport.Network();
+            serverAddress = "A";
+            server = new ChatController(new MemoryTransport(network, "A"));
+            client = new ChatController(new MemoryTransport(network, "B"));
+        }
+        client.addListener(new ChatEventListener() {
+            @Override
+            public void onDeviceConnected(String address, String name) {
+                connected.add(address);
+            }
+
+            @Override
+            public void onMessageWritten(String address, String message) {
+                written.add(message);
+            }
+        });
+        message = Messages.text(messageLength).getBytes(StandardCharsets.UTF_8);
+        // listening once start() returns
+        server.start();
+        connect();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.stop();
+        server.stop();
+    }
+
+    @Benchmark
+    public String messageAck() throws InterruptedException {
+        return send();
+    }
+
+    @Benchmark
+    public String connectHelloMessageAck() throws InterruptedException {
+        client.disconnect(serverAddress);
+        connect();
+        // the message waits in the backlog until the HELLOs are through
+        return send();
+    }
+
+    private void connect() throws InterruptedException {
+        connected.clear();
+        client.connect(serverAddress);
+        take(connected);
+    }
+
+    private String send() throws InterruptedException {
+        if (!client.write(serverAddress, message)) {
+            throw new IllegalStateException("send queue full");
+        }
+        return take(written);
+    }
+
+    private static String take(BlockingQueue<String> queue) throws InterruptedException {
+        String value = queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (value == null) {
+            throw new IllegalStateException("no answer from the peer");
+        }
+        return value;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            return socket.getLocalPort();
+        }
+    }
+}
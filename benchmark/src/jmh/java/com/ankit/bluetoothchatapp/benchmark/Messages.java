@@ -0,0 +1,25 @@
+package com.ankit.bluetoothchatapp.benchmark;
+
+import java.util.Random;
+
+// chat-like text for the benchmarks, the same for every run
+final class Messages {
+    private static final String[] WORDS = {"hi", "hello", "how", "are", "you", "see", "you", "tomorrow",
+            "ok", "thanks", "where", "what", "time", "call", "me", "later", "good", "night", "lol", "yes", "no"};
+
+    static String text(int length) {
+        Random random = new Random(length);
+        StringBuilder builder = new StringBuilder(length + 10);
+        while (builder.length() < length) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        builder.setLength(length);
+        return builder.toString();
+    }
+
+    private Messages() {
+    }
+}
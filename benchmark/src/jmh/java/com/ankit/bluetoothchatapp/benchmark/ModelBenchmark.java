@@ -0,0 +1,34 @@
+package com.ankit.bluetoothchatapp.benchmark;
+
+import com.ankit.bluetoothchatapp.models.Chats;
+import com.ankit.bluetoothchatapp.models.Users;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// model objects as built for every row the database returns
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ModelBenchmark {
+    private int id;
+    private final String message = Messages.text(64);
+
+    @Benchmark
+    public Chats newChat() {
+        id++;
+        return new Chats(id, message, id & 15, id & 1);
+    }
+
+    @Benchmark
+    public Users newUser() {
+        id++;
+        return new Users(id, "Device " + id, "00:11:22:33:44:" + Integer.toHexString(id & 0xff));
+    }
+}
@@ -0,0 +1,105 @@
+package com.ankit.bluetoothchatapp.benchmark;
+
+import com.ankit.bluetoothchatapp.protocol.FrameCodec;
+import com.ankit.bluetoothchatapp.protocol.FrameDecoder;
+import com.ankit.bluetoothchatapp.protocol.FrameReader;
+import com.ankit.bluetoothchatapp.protocol.PayloadCompressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// The session read loop of ChatController: frames of a recorded stream go
+// through the same FrameReader, decoded and inflated when flagged, and are
+// turned into Strings like chat messages.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReadLoopBenchmark {
+    private static final int FRAMES = 1000;
+
+    @Param({"64", "256"})
+    public int messageLength;
+
+    // bytes handed out per read() call, Bluetooth sockets return up to about 1 KB at a time
+    @Param({"990", "8192"})
+    public int readSize;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private byte[] stream;
+    private final FrameReader reader = new FrameReader();
+
+    @Setup
+    public void setup() throws IOException {
+        PayloadCompressor compressor = new PayloadCompressor();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] payload = Messages.text(messageLength + i % 7).getBytes(StandardCharsets.UTF_8);
+            int length = compressed ? compressor.compress(payload, 0, payload.length) : -1;
+            if (length < 0) {
+                out.write(FrameCodec.encode(FrameCodec.TYPE_MESSAGE, i + 1, payload));
+            } else {
+                out.write(FrameCodec.encode((byte) (FrameCodec.TYPE_MESSAGE | FrameCodec.FLAG_COMPRESSED), i + 1,
+                        compressor.getBuffer(), 0, length));
+            }
+        }
+        stream = out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void readLoop(final Blackhole blackhole) throws IOException {
+        InputStream inputStream = new ChunkedInputStream(stream, readSize);
+        FrameDecoder.FrameListener listener = new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(byte type, int seq, byte[] buffer, int offset, int length) {
+                blackhole.consume(new String(buffer, offset, length, StandardCharsets.UTF_8));
+            }
+        };
+        while (reader.readFrom(inputStream, listener) >= 0) {
+        }
+    }
+
+    // hands out at most chunkSize bytes per read, like a socket
+    private static class ChunkedInputStream extends InputStream {
+        private final byte[] data;
+        private final int chunkSize;
+        private int position;
+
+        ChunkedInputStream(byte[] data, int chunkSize) {
+            this.data = data;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, chunkSize), data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}
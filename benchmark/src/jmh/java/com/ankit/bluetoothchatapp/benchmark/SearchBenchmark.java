@@ -0,0 +1,111 @@
+package com.ankit.bluetoothchatapp.benchmark;
+
+import com.ankit.bluetoothchatapp.helper.ChatSchema;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+// First page of full-text search results on a database with a million
+// messages. "rare" hits one message in 5000, "common" about a third of them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SearchBenchmark {
+    private static final int MESSAGES = 1000000;
+    private static final int USERS = 20;
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"zanzibar", "pizza", "pizza party", "hel"})
+    public String text;
+
+    private File file;
+    private Connection connection;
+    private PreparedStatement searchChats;
+    private PreparedStatement searchUserChats;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        file = File.createTempFile("search-benchmark", ".db");
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : ChatSchema.CREATE) {
+                statement.execute(sql);
+            }
+        }
+        try (PreparedStatement insert = connection.prepareStatement(ChatSchema.INSERT_CHAT)) {
+            for (int i = 0; i < MESSAGES; i++) {
+                String message = Messages.text(20 + i % 60) + (i % 3 == 0 ? " pizza" : "") + (i % 7 == 0 ? " party" : "")
+                        + (i % 5000 == 0 ? " zanzibar" : "");
+                insert.setString(1, message);
+                insert.setInt(2, i % USERS + 1);
+                insert.setInt(3, i & 1);
+                insert.setLong(4, i);
+                insert.setNull(5, Types.INTEGER);
+                insert.executeUpdate();
+            }
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+        searchChats = connection.prepareStatement(ChatSchema.SEARCH_CHATS);
+        searchUserChats = connection.prepareStatement(ChatSchema.SEARCH_USER_CHATS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        connection.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public int searchAll() throws SQLException {
+        String query = ChatSchema.ftsQuery(text);
+        searchChats.setString(1, query);
+        searchChats.setString(2, query);
+        searchChats.setInt(3, PAGE_SIZE);
+        searchChats.setInt(4, 0);
+        return count(searchChats);
+    }
+
+    @Benchmark
+    public int searchOneUser() throws SQLException {
+        String query = ChatSchema.ftsQuery(text);
+        searchUserChats.setString(1, query);
+        searchUserChats.setInt(2, 1);
+        searchUserChats.setString(3, query);
+        searchUserChats.setInt(4, 1);
+        searchUserChats.setInt(5, PAGE_SIZE);
+        searchUserChats.setInt(6, 0);
+        return count(searchUserChats);
+    }
+
+    private static int count(PreparedStatement statement) throws SQLException {
+        int rows = 0;
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                resultSet.getString(5);
+                rows++;
+            }
+        }
+        return rows;
+    }
+}
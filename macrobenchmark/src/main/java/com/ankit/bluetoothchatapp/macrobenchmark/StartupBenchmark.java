@@ -0,0 +1,82 @@
+package com.ankit.bluetoothchatapp.macrobenchmark;
+
+import android.os.Build;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.Until;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import kotlin.Unit;
+import kotlin.jvm.functions.Function1;
+
+// Launch from the home screen to a filled chat list. StartupTimingMetric
+// reports timeToInitialDisplayMs and, from Android 10, timeToFullDisplayMs.
+// Cold starts a new process, which opens the database; warm keeps the
+// process and only recreates the activities. Code runs unoptimized (no AOT
+// compilation), the worst case right after an install.
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    private static final String PACKAGE = "com.ankit.bluetoothchatapp";
+    private static final int ITERATIONS = 10;
+    private static final long LIST_TIMEOUT_MILLIS = 5000;
+
+    @Rule
+    public MacrobenchmarkRule rule = new MacrobenchmarkRule();
+
+    // SplashActivity would stop at the permission prompt
+    @Before
+    public void grantPermissions() throws IOException {
+        UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            device.executeShellCommand("pm grant " + PACKAGE + " android.permission.BLUETOOTH_CONNECT");
+            device.executeShellCommand("pm grant " + PACKAGE + " android.permission.BLUETOOTH_SCAN");
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            device.executeShellCommand("pm grant " + PACKAGE + " android.permission.ACCESS_FINE_LOCATION");
+        }
+    }
+
+    @Test
+    public void coldStartup() {
+        startup(StartupMode.COLD);
+    }
+
+    @Test
+    public void warmStartup() {
+        startup(StartupMode.WARM);
+    }
+
+    private void startup(StartupMode mode) {
+        rule.measureRepeated(PACKAGE, Collections.singletonList(new StartupTimingMetric()), new CompilationMode.None(),
+                mode, ITERATIONS, new Function1<MacrobenchmarkScope, Unit>() {
+                    @Override
+                    public Unit invoke(MacrobenchmarkScope scope) {
+                        scope.pressHome();
+                        return Unit.INSTANCE;
+                    }
+                }, new Function1<MacrobenchmarkScope, Unit>() {
+                    @Override
+                    public Unit invoke(MacrobenchmarkScope scope) {
+                        scope.startActivityAndWait();
+                        // the list has its first row, reportFullyDrawn() is in the trace
+                        scope.getDevice().wait(Until.hasObject(By.res(PACKAGE, "chatsList").hasChild(By.res("android", "text1"))),
+                                LIST_TIMEOUT_MILLIS);
+                        return Unit.INSTANCE;
+                    }
+                });
+    }
+}